@@ -0,0 +1,180 @@
+package io.grimlock257.sccc.sharebrokering.bench;
+
+import io.github.grimlock257.stocks.StockPriceResponse;
+import io.grimlock257.sccc.jaxb.binding.SharePrice;
+import io.grimlock257.sccc.jaxb.binding.Stock;
+import io.grimlock257.sccc.jaxb.binding.Stocks;
+import io.grimlock257.sccc.jaxb.binding.users.Role;
+import io.grimlock257.sccc.jaxb.binding.users.User;
+import io.grimlock257.sccc.jaxb.binding.users.Users;
+import io.grimlock257.sccc.sharebrokering.manager.PersistenceManager;
+import io.grimlock257.sccc.sharebrokering.manager.StocksFileManager;
+import io.grimlock257.sccc.sharebrokering.manager.UsersFileManager;
+import io.grimlock257.sccc.sharebrokering.service.CurrencyConverterAPIService;
+import io.grimlock257.sccc.sharebrokering.service.StockPriceClient;
+import io.grimlock257.sccc.sharebrokering.util.UserUtils;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BenchmarkData
+ *
+ * Builds the synthetic stock and user catalogues the benchmarks run against and installs them as the resident models, with the currency converter API and the stock price service replaced by
+ * in-process stubs so the benchmarks run offline. Catalogues are generated from a fixed seed, so every run of a given size works on the same data
+ *
+ * @author Adam Watson
+ */
+public class BenchmarkData {
+
+    static final String[] CURRENCIES = {"GBP", "USD", "EUR", "JPY"};
+
+    // The value of one unit of each currency in GBP, in the same order as CURRENCIES
+    private static final double[] GBP_VALUES = {1, 0.79, 0.86, 0.0053};
+
+    private static final String[] SYLLABLES = {"al", "ba", "cor", "den", "ex", "fin", "gra", "hol", "in", "jet", "kin", "lo", "mar", "nor", "ox", "per", "qua", "ro", "sol", "tek", "un",
+        "vis", "wel", "xen", "yor", "zen"};
+
+    private static final String[] SUFFIXES = {"Holdings", "Group", "Systems", "Energy", "Foods", "Motors", "Media", "Pharma", "Mining", "Bank"};
+
+    private static final long SEED = 257;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Replace the remote services with in-process stubs and hold back snapshots, so nothing leaves the process while a benchmark runs
+     */
+    public static void installStubs() {
+        CurrencyConverterAPIService.getInstance().setRateSource(BenchmarkData::stubRate);
+        StockPriceClient.getInstance().setPortFactory(StubStockPriceSoap::new);
+
+        // Snapshots of large catalogues would otherwise be written to disk in the middle of a measurement
+        PersistenceManager.getInstance().setSnapshotDelay(TimeUnit.DAYS.toMillis(1));
+    }
+
+    /**
+     * Generate a catalogue of stocks, priced through the stubbed stock price service, and install it as the resident Stocks model
+     *
+     * @param stockCount The amount of stocks to generate
+     * @return The stock symbols, in the order the stocks were generated
+     */
+    public static List<String> installStocks(int stockCount) {
+        Random random = new Random(SEED);
+
+        Stocks stocks = new Stocks();
+        List<String> symbols = new ArrayList<>(stockCount);
+
+        for (int i = 0; i < stockCount; i++) {
+            String name = generateName(random);
+            String symbol = name.substring(0, Math.min(3, name.length())).toUpperCase(Locale.ROOT) + i;
+
+            StockPriceResponse stockPrice = StockPriceClient.getInstance().getSharePrice(symbol);
+
+            SharePrice sharePrice = new SharePrice();
+            sharePrice.setCurrency(stockPrice.getStockCurrency());
+            sharePrice.setPrice(stockPrice.getStockPrice());
+            sharePrice.setUpdated(stockPrice.getStockPriceTime());
+
+            Stock stock = new Stock();
+            stock.setStockName(name + " " + SUFFIXES[random.nextInt(SUFFIXES.length)]);
+            stock.setStockSymbol(symbol);
+            stock.setAvailableShares(1000000000d);
+            stock.setPrice(sharePrice);
+
+            stocks.getStocks().add(stock);
+            symbols.add(symbol);
+        }
+
+        StocksFileManager.getInstance().setStocks(stocks);
+
+        return symbols;
+    }
+
+    /**
+     * Generate a set of users with ample funds and install it as the resident Users model
+     *
+     * @param userCount The amount of users to generate
+     * @return The generated users, in the order they were generated
+     */
+    public static List<User> installUsers(int userCount) {
+        Random random = new Random(SEED);
+
+        Users users = new Users();
+
+        for (int i = 0; i < userCount; i++) {
+            User user = new User();
+            user.setGuid(new UUID(random.nextLong(), random.nextLong()).toString());
+            user.setFirstName(generateName(random));
+            user.setLastName(generateName(random));
+            user.setUsername("user" + i);
+            user.setPassword(UserUtils.hashPassword("password"));
+            user.setRole(Role.USER);
+            user.setCurrency(CURRENCIES[i % CURRENCIES.length]);
+            user.setAvailableFunds(1e15);
+
+            users.getUsers().add(user);
+        }
+
+        UsersFileManager.getInstance().setUsers(users);
+
+        return new ArrayList<>(users.getUsers());
+    }
+
+    /**
+     * Exchange rates for the stubbed currency converter, derived from each currency's value in GBP
+     *
+     * @param baseCurrency The currency to convert from
+     * @param targetCurrency The currency to convert to
+     * @return The exchange rate, or -1 for an unknown currency
+     */
+    private static double stubRate(String baseCurrency, String targetCurrency) {
+        int base = indexOfCurrency(baseCurrency);
+        int target = indexOfCurrency(targetCurrency);
+
+        if (base < 0 || target < 0) {
+            return -1;
+        }
+
+        return GBP_VALUES[base] / GBP_VALUES[target];
+    }
+
+    /**
+     * Find a currency in CURRENCIES
+     *
+     * @param currency The currency code
+     * @return The index of the currency, or -1 if it isn't known
+     */
+    private static int indexOfCurrency(String currency) {
+        for (int i = 0; i < CURRENCIES.length; i++) {
+            if (CURRENCIES[i].equalsIgnoreCase(currency)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Generate a pronounceable name from two to four syllables
+     *
+     * @param random The source of randomness
+     * @return The capitalised name
+     */
+    private static String generateName(Random random) {
+        StringBuilder name = new StringBuilder();
+
+        int syllables = 2 + random.nextInt(3);
+
+        for (int i = 0; i < syllables; i++) {
+            name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        }
+
+        name.setCharAt(0, Character.toUpperCase(name.charAt(0)));
+
+        return name.toString();
+    }
+}
@@ -0,0 +1,29 @@
+package io.grimlock257.sccc.sharebrokering.bench;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * BenchmarkRunner
+ *
+ * Runs the benchmarks once for each thread count, as JMH only takes a single thread count per run. Any arguments are passed on to JMH, so the usual options for selecting benchmarks (a name
+ * pattern) or data sizes (-p size=1000) still apply. The thread counts default to 1, 4 and 16 and can be changed with -Dbench.threads=1,2,8
+ *
+ * @author Adam Watson
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+
+        for (String threads : System.getProperty("bench.threads", "1,4,16").split(",")) {
+            System.out.println("[ShareBrokering JAX-WS] Running benchmarks with " + threads.trim() + " thread(s)");
+
+            new Runner(new OptionsBuilder()
+                    .parent(commandLineOptions)
+                    .threads(Integer.parseInt(threads.trim()))
+                    .build()).run();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package io.grimlock257.sccc.sharebrokering.bench;
+
+import io.grimlock257.sccc.sharebrokering.manager.OrderBook;
+import io.grimlock257.sccc.sharebrokering.manager.RestingOrder;
+import io.grimlock257.sccc.sharebrokering.model.OrderSide;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * OrderBookBenchmark
+ *
+ * Matching within a single stock's OrderBook, reported in matches per second: a batch of buy and sell orders spread over a number of price levels is placed, the price sweeps down and back up
+ * through every level, and each order the price crosses is collected and removed as the LimitOrderEngine does once it has executed it. The target is 100,000 matches per second on one thread
+ *
+ * @author Adam Watson
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrderBookBenchmark {
+
+    private static final int ORDERS = 1000;
+
+    @Param({"10", "100", "1000"})
+    public int levels;
+
+    private RestingOrder[] orders;
+
+    private final List<RestingOrder> executable = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        Random random = new Random(257);
+
+        orders = new RestingOrder[ORDERS];
+
+        for (int i = 0; i < ORDERS; i++) {
+            OrderSide side = (i % 2 == 0) ? OrderSide.BUY : OrderSide.SELL;
+            double limitPrice = 100 + random.nextInt(levels) / 100.0;
+
+            orders[i] = new RestingOrder(Integer.toString(i), "bench", side, "BENCH", limitPrice, 1);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ORDERS)
+    public int placeAndMatch() {
+        OrderBook book = new OrderBook();
+
+        for (RestingOrder order : orders) {
+            book.add(order);
+        }
+
+        int matched = 0;
+
+        // Sweep down through the bids, then up through the asks, one level at a time
+        for (int level = levels - 1; level >= 0; level--) {
+            matched += matchAt(book, RestingOrder.toTicks(100 + level / 100.0));
+        }
+
+        for (int level = 0; level < levels; level++) {
+            matched += matchAt(book, RestingOrder.toTicks(100 + level / 100.0));
+        }
+
+        return matched;
+    }
+
+    private int matchAt(OrderBook book, long priceTicks) {
+        executable.clear();
+
+        book.collectExecutable(priceTicks, executable, Integer.MAX_VALUE);
+
+        for (RestingOrder order : executable) {
+            book.remove(order);
+        }
+
+        return executable.size();
+    }
+}
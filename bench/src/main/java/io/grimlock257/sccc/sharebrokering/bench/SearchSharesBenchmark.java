@@ -0,0 +1,81 @@
+package io.grimlock257.sccc.sharebrokering.bench;
+
+import io.grimlock257.sccc.jaxb.binding.Stock;
+import io.grimlock257.sccc.sharebrokering.ShareBrokering;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SearchSharesBenchmark
+ *
+ * The searchShares web method, both for a repeated search answered from the result cache and for searches that vary on every call and so go through the search index: text in the stock
+ * name, a share price range, and the whole catalogue sorted by share price
+ *
+ * @author Adam Watson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchSharesBenchmark {
+
+    // Pairs of the syllables the generated names are made from, so each fragment matches a slice of the catalogue
+    private static final String[] NAME_FRAGMENTS = {"alba", "baco", "corden", "denex", "exfin", "fingra", "grahol", "holin", "injet", "jetkin", "kinlo", "lomar", "marnor", "norox",
+        "oxper", "perqua", "quaro", "rosol", "soltek", "tekun", "unvis", "viswel", "welxen", "xenyor", "yorzen", "zenal"};
+
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    private ShareBrokering shareBrokering;
+
+    @Setup
+    public void setup() {
+        BenchmarkData.installStubs();
+        BenchmarkData.installStocks(size);
+
+        shareBrokering = new ShareBrokering();
+    }
+
+    @Benchmark
+    public List<Stock> cachedSearch() {
+        return shareBrokering.searchShares("mar", "", "", "", -1, "stockName", "asc");
+    }
+
+    @Benchmark
+    public List<Stock> nameSearch() {
+        String fragment = NAME_FRAGMENTS[ThreadLocalRandom.current().nextInt(NAME_FRAGMENTS.length)];
+
+        // A price that matches every stock, but differs on each call so the result cache never answers
+        double sharePrice = ThreadLocalRandom.current().nextDouble() / 1000;
+
+        return shareBrokering.searchShares(fragment, "", "", "greaterOrEqual", sharePrice, "stockName", "asc");
+    }
+
+    @Benchmark
+    public List<Stock> priceRangeSearch() {
+        double sharePrice = ThreadLocalRandom.current().nextDouble(1, 5000);
+
+        return shareBrokering.searchShares("", "", "", "lessOrEqual", sharePrice / 100, "sharePrice", "desc");
+    }
+
+    @Benchmark
+    public List<Stock> sortedCatalogue() {
+        double sharePrice = ThreadLocalRandom.current().nextDouble() / 1000;
+
+        return shareBrokering.searchShares("", "", "", "greaterOrEqual", sharePrice, "sharePrice", "desc");
+    }
+}
@@ -0,0 +1,110 @@
+package io.grimlock257.sccc.sharebrokering.bench;
+
+import io.grimlock257.sccc.jaxb.binding.Stock;
+import io.grimlock257.sccc.sharebrokering.ShareBrokering;
+import io.grimlock257.sccc.sharebrokering.manager.StocksFileManager;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * StocksFileManagerBenchmark
+ *
+ * Stock lookups and updates against the resident Stocks model: locked lookups by symbol, lock-free lookups through the current StockBook, copying the whole list as getAllStocks does, and
+ * publishing a change to a stock's available shares as a trade does
+ *
+ * @author Adam Watson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StocksFileManagerBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    private List<String> symbols;
+
+    private StocksFileManager stocksFileManager;
+    private ShareBrokering shareBrokering;
+
+    @Setup
+    public void setup() {
+        BenchmarkData.installStubs();
+
+        symbols = BenchmarkData.installStocks(size);
+
+        stocksFileManager = StocksFileManager.getInstance();
+        shareBrokering = new ShareBrokering();
+    }
+
+    @Benchmark
+    public Stock getStockBySymbolLocked() {
+        String symbol = randomSymbol();
+
+        stocksFileManager.readLock().lock();
+
+        try {
+            return stocksFileManager.getStockBySymbol(symbol);
+        } finally {
+            stocksFileManager.readLock().unlock();
+        }
+    }
+
+    @Benchmark
+    public Stock getStockBySymbolFromBook() {
+        return stocksFileManager.getStockBook().getBySymbol(randomSymbol());
+    }
+
+    @Benchmark
+    public Stock getStockBySymbolWebMethod() {
+        return shareBrokering.getStockBySymbol(randomSymbol());
+    }
+
+    @Benchmark
+    public List<Stock> getAllStocks() {
+        return shareBrokering.getAllStocks();
+    }
+
+    @Benchmark
+    public Stock markSharesChanged() {
+        String symbol = randomSymbol();
+
+        Lock stockLock = stocksFileManager.getStockLock(symbol);
+
+        stocksFileManager.readLock().lock();
+        stockLock.lock();
+
+        try {
+            Stock stock = stocksFileManager.getStockBySymbol(symbol);
+
+            // Alternate the shares up and down so the catalogue doesn't drift over a long run
+            stock.setAvailableShares(stock.getAvailableShares() + (ThreadLocalRandom.current().nextBoolean() ? 1 : -1));
+            stocksFileManager.markSharesChanged(stock);
+
+            return stock;
+        } finally {
+            stockLock.unlock();
+            stocksFileManager.readLock().unlock();
+        }
+    }
+
+    private String randomSymbol() {
+        return symbols.get(ThreadLocalRandom.current().nextInt(symbols.size()));
+    }
+}
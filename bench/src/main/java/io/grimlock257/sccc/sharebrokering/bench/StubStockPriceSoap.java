@@ -0,0 +1,44 @@
+package io.grimlock257.sccc.sharebrokering.bench;
+
+import io.github.grimlock257.stocks.StockPriceResponse;
+import io.github.grimlock257.stocks.StockPriceSoap;
+import java.util.GregorianCalendar;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+
+/**
+ * StubStockPriceSoap
+ *
+ * In-process replacement for the remote stock price SOAP service. Each symbol is given a stable base price and currency derived from its hash, and every request moves the price a little
+ * either side of it, so price changes look like a live feed without any network access
+ *
+ * @author Adam Watson
+ */
+public class StubStockPriceSoap implements StockPriceSoap {
+
+    private static final DatatypeFactory DATATYPE_FACTORY;
+
+    static {
+        try {
+            DATATYPE_FACTORY = DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public StockPriceResponse getSharePrice(String symbol) {
+        int hash = symbol.hashCode() & Integer.MAX_VALUE;
+
+        double basePrice = 1 + (hash % 500000) / 100.0;
+        double movement = 1 + (ThreadLocalRandom.current().nextInt(-50, 51) / 10000.0);
+
+        StockPriceResponse response = new StockPriceResponse();
+        response.setStockCurrency(BenchmarkData.CURRENCIES[hash % BenchmarkData.CURRENCIES.length]);
+        response.setStockPrice(Math.round(basePrice * movement * 100) / 100.0);
+        response.setStockPriceTime(DATATYPE_FACTORY.newXMLGregorianCalendar(new GregorianCalendar()));
+
+        return response;
+    }
+}
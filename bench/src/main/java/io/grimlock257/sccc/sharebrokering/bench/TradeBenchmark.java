@@ -0,0 +1,104 @@
+package io.grimlock257.sccc.sharebrokering.bench;
+
+import io.grimlock257.sccc.jaxb.binding.Stock;
+import io.grimlock257.sccc.jaxb.binding.users.User;
+import io.grimlock257.sccc.sharebrokering.manager.StocksFileManager;
+import io.grimlock257.sccc.sharebrokering.manager.UsersFileManager;
+import io.grimlock257.sccc.sharebrokering.service.CurrencyConverterAPIService;
+import io.grimlock257.sccc.sharebrokering.util.UserUtils;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TradeBenchmark
+ *
+ * The user side of a trade through UserUtils: resolving the exchange rate from the stubbed currency converter's cache, as trades do before locking, then checking funds and holdings and
+ * applying the change to the user. Each call picks a random user and stock, so with more threads the trades contend on the user lock stripes as they would under load
+ *
+ * @author Adam Watson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TradeBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    private List<String> symbols;
+    private List<User> users;
+
+    @Setup
+    public void setup() {
+        BenchmarkData.installStubs();
+
+        symbols = BenchmarkData.installStocks(size);
+        users = BenchmarkData.installUsers(size);
+    }
+
+    /**
+     * Empty every portfolio between iterations, so holdings built up by tryAddStockToUser don't slow later iterations down
+     */
+    @Setup(Level.Iteration)
+    public void resetUsers() {
+        UsersFileManager usersFileManager = UsersFileManager.getInstance();
+
+        usersFileManager.writeLock().lock();
+
+        try {
+            for (User user : users) {
+                user.getShares().clear();
+                user.setAvailableFunds(1e15);
+            }
+        } finally {
+            usersFileManager.writeLock().unlock();
+        }
+    }
+
+    @Benchmark
+    public double tryAddStockToUser() {
+        Stock stock = randomStock();
+        User user = randomUser();
+
+        return UserUtils.tryAddStockToUser(user.getGuid(), stock.getStockSymbol(), stock.getPrice(), 1, user.getCurrency(), rateFor(stock, user));
+    }
+
+    @Benchmark
+    public double purchaseAndSell() {
+        Stock stock = randomStock();
+        User user = randomUser();
+        double rate = rateFor(stock, user);
+
+        UserUtils.tryAddStockToUser(user.getGuid(), stock.getStockSymbol(), stock.getPrice(), 1, user.getCurrency(), rate);
+
+        return UserUtils.trySellStockFromUser(user.getGuid(), stock.getStockSymbol(), stock.getPrice(), 1, user.getCurrency(), rate);
+    }
+
+    private double rateFor(Stock stock, User user) {
+        return CurrencyConverterAPIService.getInstance().getRate(stock.getPrice().getCurrency(), user.getCurrency());
+    }
+
+    private Stock randomStock() {
+        return StocksFileManager.getInstance().getStockBook().getBySymbol(symbols.get(ThreadLocalRandom.current().nextInt(symbols.size())));
+    }
+
+    private User randomUser() {
+        return users.get(ThreadLocalRandom.current().nextInt(users.size()));
+    }
+}
@@ -0,0 +1,89 @@
+package io.grimlock257.sccc.sharebrokering.bench;
+
+import io.grimlock257.sccc.jaxb.binding.users.User;
+import io.grimlock257.sccc.sharebrokering.ShareBrokering;
+import io.grimlock257.sccc.sharebrokering.manager.UsersFileManager;
+import io.grimlock257.sccc.sharebrokering.model.FundsResponse;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * UsersFileManagerBenchmark
+ *
+ * User lookups against the resident Users model, by GUID and by username, directly and through the getUserFunds web method
+ *
+ * @author Adam Watson
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UsersFileManagerBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    private List<User> users;
+
+    private UsersFileManager usersFileManager;
+    private ShareBrokering shareBrokering;
+
+    @Setup
+    public void setup() {
+        BenchmarkData.installStubs();
+
+        users = BenchmarkData.installUsers(size);
+
+        usersFileManager = UsersFileManager.getInstance();
+        shareBrokering = new ShareBrokering();
+    }
+
+    @Benchmark
+    public User getUserByGuid() {
+        String guid = randomUser().getGuid();
+
+        usersFileManager.readLock().lock();
+
+        try {
+            return usersFileManager.getUserByGuid(guid);
+        } finally {
+            usersFileManager.readLock().unlock();
+        }
+    }
+
+    @Benchmark
+    public User getUserByUsername() {
+        String username = randomUser().getUsername();
+
+        usersFileManager.readLock().lock();
+
+        try {
+            return usersFileManager.getUserByUsername(username);
+        } finally {
+            usersFileManager.readLock().unlock();
+        }
+    }
+
+    @Benchmark
+    public FundsResponse getUserFunds() {
+        return shareBrokering.getUserFunds(randomUser().getGuid());
+    }
+
+    private User randomUser() {
+        return users.get(ThreadLocalRandom.current().nextInt(users.size()));
+    }
+}
@@ -1,31 +1,53 @@
 package io.grimlock257.sccc.sharebrokering;
 
-import io.github.grimlock257.stocks.StockPrice;
 import io.github.grimlock257.stocks.StockPriceResponse;
-import io.github.grimlock257.stocks.StockPriceSoap;
 import io.grimlock257.sccc.jaxb.binding.SharePrice;
 import io.grimlock257.sccc.jaxb.binding.Stock;
-import io.grimlock257.sccc.jaxb.binding.Stocks;
 import io.grimlock257.sccc.jaxb.binding.users.Role;
 import io.grimlock257.sccc.jaxb.binding.users.Share;
 import io.grimlock257.sccc.jaxb.binding.users.User;
 import io.grimlock257.sccc.jaxb.binding.users.Users;
+import io.grimlock257.sccc.sharebrokering.manager.JournalEntry;
+import io.grimlock257.sccc.sharebrokering.manager.LimitOrderEngine;
+import io.grimlock257.sccc.sharebrokering.manager.PersistenceManager;
+import io.grimlock257.sccc.sharebrokering.manager.PortfolioValuations;
+import io.grimlock257.sccc.sharebrokering.manager.PriceHistory;
+import io.grimlock257.sccc.sharebrokering.manager.PriceSubscriptions;
+import io.grimlock257.sccc.sharebrokering.manager.StockBook;
+import io.grimlock257.sccc.sharebrokering.manager.StockSearchIndex;
 import io.grimlock257.sccc.sharebrokering.manager.StocksFileManager;
+import io.grimlock257.sccc.sharebrokering.manager.TradeJournal;
 import io.grimlock257.sccc.sharebrokering.manager.UsersFileManager;
 import io.grimlock257.sccc.sharebrokering.model.FundsResponse;
+import io.grimlock257.sccc.sharebrokering.model.LimitOrder;
 import io.grimlock257.sccc.sharebrokering.model.LoginResponse;
+import io.grimlock257.sccc.sharebrokering.model.Order;
+import io.grimlock257.sccc.sharebrokering.model.OrderResult;
+import io.grimlock257.sccc.sharebrokering.model.OrderSide;
+import io.grimlock257.sccc.sharebrokering.model.PortfolioValuation;
+import io.grimlock257.sccc.sharebrokering.model.PriceBar;
+import io.grimlock257.sccc.sharebrokering.model.StockPage;
 import io.grimlock257.sccc.sharebrokering.model.UserStock;
-import static io.grimlock257.sccc.sharebrokering.util.StringUtil.containsIgnoreCase;
+import io.grimlock257.sccc.sharebrokering.service.CurrencyConverterAPIService;
+import io.grimlock257.sccc.sharebrokering.service.StockPriceClient;
 import static io.grimlock257.sccc.sharebrokering.util.StringUtil.isNotNullOrEmpty;
 import static io.grimlock257.sccc.sharebrokering.util.StringUtil.isNullOrEmpty;
+import io.grimlock257.sccc.sharebrokering.util.LockStripes;
 import io.grimlock257.sccc.sharebrokering.util.UserUtils;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
 import javax.ejb.Stateless;
 import javax.jws.WebMethod;
 import javax.jws.WebParam;
@@ -39,18 +61,41 @@ import javax.xml.ws.WebServiceException;
 @Stateless()
 public class ShareBrokering {
 
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int MAX_PRICE_BARS = 10000;
+    private static final int MAX_POLL_SECONDS = 30;
+    private static final int MAX_ORDERS = 1000;
+    private static final int MAX_RATE_ATTEMPTS = 3;
+
     /**
-     * Unmarshalls the Stocks XML file and returns the list from within
+     * Returns a copy of the list from the current stock book. No lock is taken, so the call never waits behind trades or price refreshes, and every stock reflects the same version
      *
      * @return A List object containing Stock objects
      */
     @WebMethod(operationName = "getAllStocks")
     public List<Stock> getAllStocks() {
-        return StocksFileManager.getInstance().unmarshal().getStocks();
+        return new ArrayList<>(StocksFileManager.getInstance().getStockBook().getStocks());
+    }
+
+    /**
+     * Returns a single page of the resident Stocks model, ordered by stock name and then stock symbol. Clients page through the whole catalogue by passing the cursor returned with each page to
+     * the next call, so no response holds the entire stock list
+     *
+     * @param pageSize The largest amount of stocks to return, defaulting to DEFAULT_PAGE_SIZE and capped at MAX_PAGE_SIZE
+     * @param cursor The nextCursor of the previous page, or empty for the first page
+     * @return The page of stocks and the cursor for the following page, or null if the cursor is invalid
+     */
+    @WebMethod(operationName = "getAllStocksPage")
+    public StockPage getAllStocksPage(
+            @WebParam(name = "pageSize") int pageSize,
+            @WebParam(name = "cursor") String cursor
+    ) {
+        return searchSharesPage(null, null, null, null, -1, "stockName", "asc", pageSize, cursor);
     }
 
     /**
-     * Unmarshalls the Stocks XML file and looks for a Stock with the provided stock symbol
+     * Looks in the current stock book for a Stock with the provided stock symbol
      *
      * @param companySymbol The symbol to search for
      * @return The Stock object for the given companySymbol
@@ -62,13 +107,7 @@ public class ShareBrokering {
 
         // Only attempt to find stock by symbol if a symbol was supplied
         if (isNotNullOrEmpty(companySymbol)) {
-            Stocks stocks = StocksFileManager.getInstance().unmarshal();
-
-            for (Stock stock : stocks.getStocks()) {
-                if (stock.getStockSymbol().equalsIgnoreCase(companySymbol)) {
-                    return stock;
-                }
-            }
+            return StocksFileManager.getInstance().getStockBook().getBySymbol(companySymbol);
         }
 
         return null;
@@ -93,40 +132,66 @@ public class ShareBrokering {
             return userStocks;
         }
 
-        // Check username is present in the system
-        Users users = UsersFileManager.getInstance().unmarshal();
+        StocksFileManager stocksFileManager = StocksFileManager.getInstance();
+        UsersFileManager usersFileManager = UsersFileManager.getInstance();
 
-        for (User user : users.getUsers()) {
-            if (user.getGuid().equalsIgnoreCase(guid)) {
-                List<Share> userShares = user.getShares();
+        // Stock information is read from a single stock book, so only the user needs locking
+        StockBook stockBook = stocksFileManager.getStockBook();
 
-                if (userShares.isEmpty()) {
-                    break;
-                }
-
-                // User has some shares, retrieve stock information from stocks file
-                Stocks stocks = StocksFileManager.getInstance().unmarshal();
+        Lock userLock = usersFileManager.getUserLock(guid);
 
-                for (Share share : userShares) {
-                    for (Stock stock : stocks.getStocks()) {
-                        if (stock.getStockSymbol().equalsIgnoreCase(share.getStockSymbol())) {
-                            UserStock userStock = new UserStock(stock, share, user.getCurrency());
+        usersFileManager.readLock().lock();
+        userLock.lock();
 
-                            userStocks.add(userStock);
-                        }
-                    }
-                }
+        try {
+            // Check user is present in the system
+            User user = usersFileManager.getUserByGuid(guid);
 
+            if (user == null) {
                 return userStocks;
             }
+
+            // Retrieve stock information for each user share from the stock book
+            for (Share share : user.getShares()) {
+                Stock stock = stockBook.getBySymbol(share.getStockSymbol());
+
+                if (stock != null) {
+                    UserStock userStock = new UserStock(stock, share, user.getCurrency());
+
+                    userStocks.add(userStock);
+                }
+            }
+        } finally {
+            userLock.unlock();
+            usersFileManager.readLock().unlock();
         }
 
         return userStocks;
     }
 
     /**
-     * Unmarshalls the Stocks XML file, then iterates over each stock, checking the symbol of that stock compared to the provided stock symbol, and that the amount of available shares is greater or
-     * equal to the desired quantity to purchase. If both these criteria are met, reduce the available shares by the purchase quantity amount, and attempt to marshal the changed XML.
+     * Retrieve the market valuation of a user's portfolio in their currency, with the value and unrealised profit or loss of each holding and the totals across the portfolio. The portfolio is
+     * valued in full on the first request after a trade, then kept up to date as share prices change
+     *
+     * @param guid The GUID of the user whose portfolio to value
+     * @return The portfolio valuation, or null if the user doesn't exist
+     */
+    @WebMethod(operationName = "getPortfolioValuation")
+    public PortfolioValuation getPortfolioValuation(
+            @WebParam(name = "guid") String guid
+    ) {
+
+        // Validate parameters
+        if (isNullOrEmpty(guid)) {
+            return null;
+        }
+
+        return PortfolioValuations.getInstance().getValuation(guid);
+    }
+
+    /**
+     * Looks up the stock with the provided stock symbol in the resident Stocks model, checking that the amount of available shares is greater or equal to the desired quantity to purchase. If both
+     * these criteria are met, reduce the available shares by the purchase quantity amount, and append the trade to the journal. A trade that can't be journaled is undone.
      *
      * @param guid The GUID of the user purchasing shares
      * @param companySymbol The symbol of the company to purchase shares from
@@ -145,30 +210,81 @@ public class ShareBrokering {
             return false;
         }
 
-        if (quantity <= 0) {
+        if (!(quantity > 0) || Double.isInfinite(quantity)) {
             return false;
         }
 
-        Stocks stocks = StocksFileManager.getInstance().unmarshal();
+        // No trade can be recorded once the journal has failed
+        if (TradeJournal.getInstance().isFailed()) {
+            return false;
+        }
 
-        for (Stock stock : stocks.getStocks()) {
-            if (stock.getStockSymbol().equalsIgnoreCase(companySymbol) && stock.getAvailableShares() >= quantity) {
-                if (UserUtils.tryAddStockToUser(guid, stock.getStockSymbol(), stock.getPrice(), quantity)) {
-                    stock.setAvailableShares(stock.getAvailableShares() - quantity);
+        StocksFileManager stocksFileManager = StocksFileManager.getInstance();
 
-                    return StocksFileManager.getInstance().marshal(stocks);
-                } else {
+        for (int attempt = 0; attempt < MAX_RATE_ATTEMPTS; attempt++) {
+            // Resolve the exchange rate before taking any lock, so the locks are never held while a rate is retrieved from the external API
+            Stock listedStock = stocksFileManager.getStockBook().getBySymbol(companySymbol);
+            String userCurrency = UserUtils.getUserCurrency(guid);
+
+            if (listedStock == null || userCurrency == null) {
+                return false;
+            }
+
+            String stockCurrency = listedStock.getPrice().getCurrency();
+            double rate = CurrencyConverterAPIService.getInstance().getRate(stockCurrency, userCurrency);
+
+            if (rate < 0) {
+                return false;
+            }
+
+            JournalEntry entry;
+            CompletableFuture<Boolean> journaled;
+
+            // Only the stock being traded is locked, so trades on other stocks can run at the same time
+            Lock stockLock = stocksFileManager.getStockLock(companySymbol);
+
+            stocksFileManager.readLock().lock();
+            stockLock.lock();
+
+            try {
+                Stock stock = stocksFileManager.getStockBySymbol(companySymbol);
+
+                if (stock == null || stock.getAvailableShares() < quantity) {
+                    return false;
+                }
+
+                // A price refresh moved the stock to another currency after the rate was resolved, so resolve it again
+                if (!Objects.equals(stock.getPrice().getCurrency(), stockCurrency)) {
+                    continue;
+                }
+
+                double purchasePrice = UserUtils.tryAddStockToUser(guid, stock.getStockSymbol(), stock.getPrice(), quantity, userCurrency, rate);
+
+                if (purchasePrice < 0) {
                     return false;
                 }
+
+                stock.setAvailableShares(stock.getAvailableShares() - quantity);
+                stocksFileManager.markSharesChanged(stock);
+
+                // Journal the trade while the stock is still locked, so the journal order matches the order trades were applied in
+                entry = JournalEntry.purchase(guid, stock.getStockSymbol(), quantity, purchasePrice);
+                journaled = TradeJournal.getInstance().append(entry);
+            } finally {
+                stockLock.unlock();
+                stocksFileManager.readLock().unlock();
             }
+
+            return PersistenceManager.getInstance().awaitDurableOrRevert(journaled, Collections.singletonList(entry));
         }
 
+        // The stock's currency kept changing while its rate was being resolved
         return false;
     }
 
     /**
-     * Unmarshalls the Stocks XML file, then iterates over each stock, checking the symbol of that stock compared to the provided stock symbol. If this criteria is met, then increase the available
-     * shares by the sell quantity amount, and attempt to marshal the changed XML
+     * Looks up the stock with the provided stock symbol in the resident Stocks model. If it exists, then increase the available shares by the sell quantity amount, and append the trade to the
+     * journal. A trade that can't be journaled is undone
      *
      * @param guid The GUID of the user selling shares
      * @param companySymbol The symbol of the company to sell shares to
@@ -187,31 +303,346 @@ public class ShareBrokering {
             return false;
         }
 
-        if (quantity <= 0) {
+        if (!(quantity > 0) || Double.isInfinite(quantity)) {
+            return false;
+        }
+
+        // No trade can be recorded once the journal has failed
+        if (TradeJournal.getInstance().isFailed()) {
             return false;
         }
 
-        Stocks stocks = StocksFileManager.getInstance().unmarshal();
+        StocksFileManager stocksFileManager = StocksFileManager.getInstance();
 
-        for (Stock stock : stocks.getStocks()) {
-            if (stock.getStockSymbol().equalsIgnoreCase(companySymbol)) {
-                if (UserUtils.trySellStockFromUser(guid, stock.getStockSymbol(), stock.getPrice(), quantity)) {
-                    stock.setAvailableShares(stock.getAvailableShares() + quantity);
+        for (int attempt = 0; attempt < MAX_RATE_ATTEMPTS; attempt++) {
+            // Resolve the exchange rate before taking any lock, so the locks are never held while a rate is retrieved from the external API
+            Stock listedStock = stocksFileManager.getStockBook().getBySymbol(companySymbol);
+            String userCurrency = UserUtils.getUserCurrency(guid);
 
-                    return StocksFileManager.getInstance().marshal(stocks);
-                } else {
+            if (listedStock == null || userCurrency == null) {
+                return false;
+            }
+
+            String stockCurrency = listedStock.getPrice().getCurrency();
+            double rate = CurrencyConverterAPIService.getInstance().getRate(stockCurrency, userCurrency);
+
+            if (rate < 0) {
+                return false;
+            }
+
+            JournalEntry entry;
+            CompletableFuture<Boolean> journaled;
+
+            // Only the stock being traded is locked, so trades on other stocks can run at the same time
+            Lock stockLock = stocksFileManager.getStockLock(companySymbol);
+
+            stocksFileManager.readLock().lock();
+            stockLock.lock();
+
+            try {
+                Stock stock = stocksFileManager.getStockBySymbol(companySymbol);
+
+                if (stock == null) {
                     return false;
                 }
+
+                // A price refresh moved the stock to another currency after the rate was resolved, so resolve it again
+                if (!Objects.equals(stock.getPrice().getCurrency(), stockCurrency)) {
+                    continue;
+                }
+
+                double salePrice = UserUtils.trySellStockFromUser(guid, stock.getStockSymbol(), stock.getPrice(), quantity, userCurrency, rate);
+
+                if (salePrice < 0) {
+                    return false;
+                }
+
+                stock.setAvailableShares(stock.getAvailableShares() + quantity);
+                stocksFileManager.markSharesChanged(stock);
+
+                // Journal the trade while the stock is still locked, so the journal order matches the order trades were applied in
+                entry = JournalEntry.sell(guid, stock.getStockSymbol(), quantity, salePrice);
+                journaled = TradeJournal.getInstance().append(entry);
+            } finally {
+                stockLock.unlock();
+                stocksFileManager.readLock().unlock();
             }
+
+            return PersistenceManager.getInstance().awaitDurableOrRevert(journaled, Collections.singletonList(entry));
         }
 
+        // The stock's currency kept changing while its rate was being resolved
         return false;
     }
 
     /**
-     * Unmarshalls the Stocks XML file, then iterates over each stock, checking it against a set of criteria. The checks within check if the stock has
-     * <b>failed</b> against a criteria. If the end of the iteration is reached, the stock in question is added to a list to be returned to the caller. The results are finally sorted by the column and
-     * order specified.
+     * Execute a list of buy and sell orders for a user in a single pass. Every stock involved and the user are locked once for the whole list, each currency's exchange rate to the user's
+     * currency is resolved once before any lock is taken, and the executed trades are journaled together in a single commit. Orders are executed in the order given, so a sale can fund a
+     * later purchase, and an order that can't be executed (including one whose stock changed currency after the rates were resolved) is rejected without affecting the others. If the trades
+     * can't be journaled, every executed order is undone and reported as rejected
+     *
+     * @param guid The GUID of the user placing the orders
+     * @param orders The orders to execute, at most MAX_ORDERS
+     * @return The result of each order, in the same order as the orders, or null if the user doesn't exist or the list is empty or too long
+     */
+    @WebMethod(operationName = "submitOrders")
+    public List<OrderResult> submitOrders(
+            @WebParam(name = "guid") String guid,
+            @WebParam(name = "orders") List<Order> orders
+    ) {
+
+        // Validate parameters
+        if (isNullOrEmpty(guid) || orders == null || orders.isEmpty() || orders.size() > MAX_ORDERS) {
+            return null;
+        }
+
+        // No trade can be recorded once the journal has failed
+        if (TradeJournal.getInstance().isFailed()) {
+            return null;
+        }
+
+        StocksFileManager stocksFileManager = StocksFileManager.getInstance();
+        UsersFileManager usersFileManager = UsersFileManager.getInstance();
+
+        OrderResult[] results = new OrderResult[orders.size()];
+        Set<String> stockSymbols = new HashSet<>();
+
+        for (int i = 0; i < orders.size(); i++) {
+            Order order = orders.get(i);
+
+            if (order == null || order.getSide() == null || isNullOrEmpty(order.getCompanySymbol()) || !(order.getQuantity() > 0) || Double.isInfinite(order.getQuantity())) {
+                results[i] = (order != null) ? OrderResult.rejected(order, "Invalid order") : new OrderResult(null, null, 0, false, 0, null, "Invalid order");
+            } else {
+                stockSymbols.add(order.getCompanySymbol());
+            }
+        }
+
+        // Resolve the exchange rates before taking any lock, so the locks are never held while a rate is retrieved from the external API
+        String userCurrency;
+
+        Lock userLock = usersFileManager.getUserLock(guid);
+
+        usersFileManager.readLock().lock();
+        userLock.lock();
+
+        try {
+            User user = usersFileManager.getUserByGuid(guid);
+
+            if (user == null) {
+                return null;
+            }
+
+            userCurrency = user.getCurrency();
+        } finally {
+            userLock.unlock();
+            usersFileManager.readLock().unlock();
+        }
+
+        StockBook stockBook = stocksFileManager.getStockBook();
+        Map<String, Double> rates = new HashMap<>();
+
+        for (String stockSymbol : stockSymbols) {
+            Stock stock = stockBook.getBySymbol(stockSymbol);
+
+            if (stock != null) {
+                rates.computeIfAbsent(stock.getPrice().getCurrency(), currency -> CurrencyConverterAPIService.getInstance().getRate(currency, userCurrency));
+            }
+        }
+
+        List<JournalEntry> entries = new ArrayList<>();
+        Set<Stock> changedStocks = new LinkedHashSet<>();
+
+        CompletableFuture<Boolean> journaled;
+
+        // Stock locks are taken in a fixed order, then the user, the same order single trades use
+        stocksFileManager.readLock().lock();
+        List<Lock> stockLocks = stocksFileManager.lockStocks(stockSymbols);
+
+        usersFileManager.readLock().lock();
+        userLock.lock();
+
+        try {
+            User user = usersFileManager.getUserByGuid(guid);
+
+            if (user == null) {
+                return null;
+            }
+
+            for (int i = 0; i < orders.size(); i++) {
+                if (results[i] != null) {
+                    continue;
+                }
+
+                Order order = orders.get(i);
+                Stock stock = stocksFileManager.getStockBySymbol(order.getCompanySymbol());
+
+                if (stock == null) {
+                    results[i] = OrderResult.rejected(order, "Unknown stock");
+
+                    continue;
+                }
+
+                // A price refresh may have moved the stock to a currency not resolved above, whose rate can't be retrieved while the locks are held
+                Double rate = rates.get(stock.getPrice().getCurrency());
+
+                if (rate == null || rate < 0) {
+                    results[i] = OrderResult.rejected(order, "Exchange rate unavailable");
+
+                    continue;
+                }
+
+                double quantity = order.getQuantity();
+                double price = stock.getPrice().getPrice() * quantity * rate;
+
+                if (order.getSide() == OrderSide.BUY) {
+                    if (stock.getAvailableShares() < quantity) {
+                        results[i] = OrderResult.rejected(order, "Not enough shares available");
+
+                        continue;
+                    }
+
+                    if (price > user.getAvailableFunds()) {
+                        results[i] = OrderResult.rejected(order, "Insufficient funds");
+
+                        continue;
+                    }
+
+                    UserUtils.applyPurchase(user, stock.getStockSymbol(), quantity, price);
+
+                    stock.setAvailableShares(stock.getAvailableShares() - quantity);
+
+                    entries.add(JournalEntry.purchase(guid, stock.getStockSymbol(), quantity, price));
+                } else {
+                    boolean hasEnoughShares = user.getShares()
+                            .stream()
+                            .anyMatch(share -> share.getStockSymbol().equalsIgnoreCase(stock.getStockSymbol()) && share.getQuantity() >= quantity);
+
+                    if (!hasEnoughShares) {
+                        results[i] = OrderResult.rejected(order, "Not enough shares owned");
+
+                        continue;
+                    }
+
+                    UserUtils.applySale(user, stock.getStockSymbol(), quantity, price);
+
+                    stock.setAvailableShares(stock.getAvailableShares() + quantity);
+
+                    entries.add(JournalEntry.sell(guid, stock.getStockSymbol(), quantity, price));
+                }
+
+                changedStocks.add(stock);
+
+                results[i] = OrderResult.executed(order, price, user.getCurrency());
+            }
+
+            // Publish each traded stock once, however many orders touched it
+            for (Stock stock : changedStocks) {
+                stocksFileManager.markSharesChanged(stock);
+            }
+
+            // Journal every trade in one commit while the stocks are still locked, so the journal order matches the order trades were applied in
+            journaled = TradeJournal.getInstance().appendAll(entries);
+        } finally {
+            userLock.unlock();
+            usersFileManager.readLock().unlock();
+
+            LockStripes.unlockAll(stockLocks);
+            stocksFileManager.readLock().unlock();
+        }
+
+        // Undo the executed orders and report them as failed if they couldn't be made durable, as purchaseShare and sellShare do
+        if (!PersistenceManager.getInstance().awaitDurableOrRevert(journaled, entries)) {
+            for (int i = 0; i < results.length; i++) {
+                if (results[i].isSuccess()) {
+                    results[i] = OrderResult.rejected(orders.get(i), "Trade could not be recorded");
+                }
+            }
+        }
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Place a limit order, which rests until the share price crosses its limit and is then executed at the share price by the matching engine. A buy executes once the price is at or below
+     * the limit, as far as shares are available, and a sell once the price is at or above it. An order whose limit the price already crosses executes straight away
+     *
+     * @param guid The GUID of the user placing the order
+     * @param side Whether the order buys or sells
+     * @param companySymbol The symbol of the company to trade shares of
+     * @param limitPrice The highest price to buy at or the lowest price to sell at, in the currency the stock is listed in
+     * @param quantity The amount of shares to trade
+     * @return The placed order, or null if the parameters are invalid, the user or stock doesn't exist or the user has too many open orders
+     */
+    @WebMethod(operationName = "placeLimitOrder")
+    public LimitOrder placeLimitOrder(
+            @WebParam(name = "guid") String guid,
+            @WebParam(name = "side") OrderSide side,
+            @WebParam(name = "companySymbol") String companySymbol,
+            @WebParam(name = "limitPrice") double limitPrice,
+            @WebParam(name = "quantity") double quantity
+    ) {
+
+        // Validate parameters
+        if (isNullOrEmpty(guid) || side == null || isNullOrEmpty(companySymbol)) {
+            return null;
+        }
+
+        if (!(limitPrice > 0) || Double.isInfinite(limitPrice) || !(quantity > 0) || Double.isInfinite(quantity)) {
+            return null;
+        }
+
+        // No fill could be recorded once the journal has failed
+        if (TradeJournal.getInstance().isFailed()) {
+            return null;
+        }
+
+        return LimitOrderEngine.getInstance().place(guid, side, companySymbol, limitPrice, quantity);
+    }
+
+    /**
+     * Cancel an open limit order. Any part of the order that has already been filled stays filled
+     *
+     * @param guid The GUID of the user who placed the order
+     * @param orderId The ID of the order
+     * @return Whether the order was open and has been cancelled
+     */
+    @WebMethod(operationName = "cancelLimitOrder")
+    public boolean cancelLimitOrder(
+            @WebParam(name = "guid") String guid,
+            @WebParam(name = "orderId") String orderId
+    ) {
+
+        // Validate parameters
+        if (isNullOrEmpty(guid) || isNullOrEmpty(orderId)) {
+            return false;
+        }
+
+        return LimitOrderEngine.getInstance().cancel(guid, orderId);
+    }
+
+    /**
+     * Retrieve a user's open limit orders, along with their most recently filled, cancelled and rejected ones
+     *
+     * @param guid The GUID of the user whose orders to retrieve
+     * @return The orders, oldest first
+     */
+    @WebMethod(operationName = "getLimitOrders")
+    public List<LimitOrder> getLimitOrders(
+            @WebParam(name = "guid") String guid
+    ) {
+
+        // Validate parameters
+        if (isNullOrEmpty(guid)) {
+            return new ArrayList<>();
+        }
+
+        return LimitOrderEngine.getInstance().list(guid);
+    }
+
+    /**
+     * Finds the stocks in the resident Stocks model matching a set of criteria, sorted by the column and order specified. Results are served from the search index, so the sorted order is read
+     * from the index rather than sorting on each call, and share price filters only visit the stocks within the requested price range. Repeated searches are answered from a result cache. No
+     * lock is taken, and every result is read from the same stock book.
      *
      * @param stockName See if value is contained in any stock names
      * @param stockSymbol See if value is contained in any stock symbols
@@ -242,47 +673,163 @@ public class ShareBrokering {
             order = "asc";
         }
 
-        // Unmarshal the stocks, and filter and sort as neeeded
-        List<Stock> stocks = StocksFileManager.getInstance().unmarshal().getStocks();
-
-        stocks = stocks
-                .stream()
-                .filter(stock -> isNotNullOrEmpty(stockName) ? containsIgnoreCase(stock.getStockName(), stockName) : true)
-                .filter(stock -> isNotNullOrEmpty(stockSymbol) ? containsIgnoreCase(stock.getStockSymbol(), stockSymbol) : true)
-                .filter(stock -> isNotNullOrEmpty(currency) ? stock.getPrice().getCurrency().equalsIgnoreCase(currency) : true)
-                .filter(stock -> isNotNullOrEmpty(sharePriceFilter) && sharePrice >= 0 && sharePriceFilter.equalsIgnoreCase("lessOrEqual") ? (stock.getPrice().getPrice() <= sharePrice) : true)
-                .filter(stock -> isNotNullOrEmpty(sharePriceFilter) && sharePrice >= 0 && sharePriceFilter.equalsIgnoreCase("equal") ? (stock.getPrice().getPrice() == sharePrice) : true)
-                .filter(stock -> isNotNullOrEmpty(sharePriceFilter) && sharePrice >= 0 && sharePriceFilter.equalsIgnoreCase("greaterOrEqual") ? (stock.getPrice().getPrice() >= sharePrice) : true)
-                .collect(Collectors.toList());
-
-        // Determine the sort method based on the sortBy parameter
-        switch (sortBy) {
-            case "stockName":
-                stocks.sort(Comparator.comparing(stock -> stock.getStockName()));
-                break;
-            case "shareCurrency":
-                stocks.sort(Comparator.comparing(stock -> stock.getPrice().getCurrency()));
-                break;
-            case "sharePrice":
-                stocks.sort(Comparator.comparing(stock -> stock.getPrice().getPrice()));
-                break;
-            case "availableShares":
-                stocks.sort(Comparator.comparing(stock -> stock.getAvailableShares()));
-                break;
-            default:
-                stocks.sort(Comparator.comparing(stock -> stock.getStockSymbol()));
-        }
-
-        // If order is set to desc, reverse the list order
-        if (order.equalsIgnoreCase("desc")) {
-            Collections.reverse(stocks);
-        }
-
-        return stocks;
+        // Filter and sort the resident stocks through the search index, reusing the result of an identical search if nothing it depends on has changed since
+        return StocksFileManager.getInstance().searchStocks(stockName, stockSymbol, currency, sharePriceFilter, sharePrice, StockSearchIndex.SortKey.fromSortBy(sortBy), order.equalsIgnoreCase("desc"));
     }
 
     /**
-     * Creates a new Stock object based on the provided values, then unmarshalls the Stocks XML file, retrieves the list and adds the new Stock object before marshalling the file again.
+     * Paginated variant of searchShares. Results are ordered by the sortBy column and then by stock symbol, and the cursor returned with each page continues from the last stock on it, so
+     * stocks added or removed between calls don't cause results to be skipped or repeated. Each page reports the version of the stock book it was read from
+     *
+     * @param stockName See if value is contained in any stock names
+     * @param stockSymbol See if value is contained in any stock symbols
+     * @param currency See is value matches any currencies
+     * @param sharePriceFilter How to interpret the share price field
+     * @param sharePrice The price by which to search based on
+     * @param sortBy The column in which the results should be ordered by
+     * @param order Whether to order the sortBy column ascending or descending
+     * @param pageSize The largest amount of stocks to return, defaulting to DEFAULT_PAGE_SIZE and capped at MAX_PAGE_SIZE
+     * @param cursor The nextCursor of the previous page, or empty for the first page
+     * @return The page of filtered Stock objects and the cursor for the following page, or null if the cursor is invalid or belongs to a different sort order
+     */
+    @WebMethod(operationName = "searchSharesPage")
+    public StockPage searchSharesPage(
+            @WebParam(name = "stockName") String stockName,
+            @WebParam(name = "stockSymbol") String stockSymbol,
+            @WebParam(name = "currency") String currency,
+            @WebParam(name = "sharePriceFilter") String sharePriceFilter,
+            @WebParam(name = "sharePrice") double sharePrice,
+            @WebParam(name = "sortBy") String sortBy,
+            @WebParam(name = "order") String order,
+            @WebParam(name = "pageSize") int pageSize,
+            @WebParam(name = "cursor") String cursor
+    ) {
+
+        // Set defaults
+        if (isNullOrEmpty(sortBy)) {
+            sortBy = "stockName";
+        }
+
+        if (isNullOrEmpty(order)) {
+            order = "asc";
+        }
+
+        if (pageSize <= 0) {
+            pageSize = DEFAULT_PAGE_SIZE;
+        }
+
+        pageSize = Math.min(pageSize, MAX_PAGE_SIZE);
+
+        try {
+            return StocksFileManager.getInstance().searchStocksPage(stockName, stockSymbol, currency, sharePriceFilter, sharePrice, StockSearchIndex.SortKey.fromSortBy(sortBy), order.equalsIgnoreCase("desc"), cursor, pageSize);
+        } catch (IllegalArgumentException e) {
+            System.err.println("[ShareBrokering JAX-WS] Invalid page cursor: " + e.getMessage());
+
+            return null;
+        }
+    }
+
+    /**
+     * Returns the open, high, low and close share price of a stock for each interval of a time range, built from the price changes recorded by the stock price updater. Only the stored
+     * segments overlapping the range are read, and intervals in which the price didn't change are left out
+     *
+     * @param stockSymbol The symbol of the stock
+     * @param fromTime The start of the range (inclusive), in milliseconds since the epoch
+     * @param toTime The end of the range (exclusive), in milliseconds since the epoch
+     * @param intervalSeconds The length of each bar in seconds
+     * @return The bars in time order, or null if the parameters are invalid, the range holds more than MAX_PRICE_BARS intervals or the history could not be read
+     */
+    @WebMethod(operationName = "getPriceHistory")
+    public List<PriceBar> getPriceHistory(
+            @WebParam(name = "stockSymbol") String stockSymbol,
+            @WebParam(name = "fromTime") long fromTime,
+            @WebParam(name = "toTime") long toTime,
+            @WebParam(name = "intervalSeconds") long intervalSeconds
+    ) {
+
+        // Validate parameters
+        if (isNullOrEmpty(stockSymbol) || fromTime >= toTime || intervalSeconds <= 0 || intervalSeconds > Long.MAX_VALUE / 1000) {
+            return null;
+        }
+
+        long intervalMillis = intervalSeconds * 1000;
+
+        // A range wider than a long can hold overflows to a negative length
+        long rangeMillis = toTime - fromTime;
+
+        if (rangeMillis < 0 || rangeMillis / intervalMillis >= MAX_PRICE_BARS) {
+            return null;
+        }
+
+        try {
+            return PriceHistory.getInstance().getBars(stockSymbol, fromTime, toTime, intervalMillis);
+        } catch (IOException e) {
+            System.err.println("[ShareBrokering JAX-WS] Could not read price history for " + stockSymbol + ": " + e.getMessage());
+
+            return null;
+        }
+    }
+
+    /**
+     * Subscribe to share price changes for a set of stock symbols. Changes are collected with pollPriceChanges, which replaces polling getAllStocks or getStockBySymbol for updates
+     *
+     * @param stockSymbols The symbols to receive price changes for
+     * @return The subscription ID, or null if no symbols were provided or the subscription could not be created
+     */
+    @WebMethod(operationName = "subscribePriceChanges")
+    public String subscribePriceChanges(
+            @WebParam(name = "stockSymbols") List<String> stockSymbols
+    ) {
+        return PriceSubscriptions.getInstance().subscribe(stockSymbols);
+    }
+
+    /**
+     * Wait for share price changes on a subscription (long poll). Returns as soon as one of the subscribed stocks changes price, with only the stocks that have changed since the previous poll,
+     * or with an empty list once the timeout passes. A subscription that isn't polled for several minutes expires
+     *
+     * @param subscriptionId The subscription ID returned by subscribePriceChanges
+     * @param timeoutSeconds The longest time to wait, defaulting to and capped at MAX_POLL_SECONDS
+     * @return The changed stocks, or null if the subscription doesn't exist or has expired
+     */
+    @WebMethod(operationName = "pollPriceChanges")
+    public List<Stock> pollPriceChanges(
+            @WebParam(name = "subscriptionId") String subscriptionId,
+            @WebParam(name = "timeoutSeconds") int timeoutSeconds
+    ) {
+
+        // Validate parameters
+        if (isNullOrEmpty(subscriptionId)) {
+            return null;
+        }
+
+        if (timeoutSeconds <= 0 || timeoutSeconds > MAX_POLL_SECONDS) {
+            timeoutSeconds = MAX_POLL_SECONDS;
+        }
+
+        try {
+            return PriceSubscriptions.getInstance().poll(subscriptionId, timeoutSeconds * 1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Cancel a price change subscription
+     *
+     * @param subscriptionId The subscription ID returned by subscribePriceChanges
+     * @return Whether the subscription existed
+     */
+    @WebMethod(operationName = "unsubscribePriceChanges")
+    public boolean unsubscribePriceChanges(
+            @WebParam(name = "subscriptionId") String subscriptionId
+    ) {
+        return PriceSubscriptions.getInstance().unsubscribe(subscriptionId);
+    }
+
+    /**
+     * Creates a new Stock object based on the provided values, journals the addition and then adds the new Stock object to the resident Stocks model.
      *
      * @param stockName The company name of the new stock
      * @param stockSymbol The symbol for the new stock
@@ -302,10 +849,9 @@ public class ShareBrokering {
         }
 
         // Make sure stock symbol isn't already present in the system
-        Stocks stocks = StocksFileManager.getInstance().unmarshal();
-        List<Stock> stocksList = stocks.getStocks();
+        StocksFileManager stocksFileManager = StocksFileManager.getInstance();
 
-        if (stocksList.stream().anyMatch(stock -> stock.getStockSymbol().equalsIgnoreCase(stockSymbol))) {
+        if (stocksFileManager.getStockBook().getBySymbol(stockSymbol) != null) {
             return false;
         }
 
@@ -314,7 +860,7 @@ public class ShareBrokering {
 
         // Attempt to retrieve price for the stock price SOAP web service, if failure, return false as stock addition could not be completed
         try {
-            StockPriceResponse stockPrice = getSharePrice(stockSymbol);
+            StockPriceResponse stockPrice = StockPriceClient.getInstance().getSharePrice(stockSymbol);
 
             sharePrice.setCurrency(stockPrice.getStockCurrency());
             sharePrice.setPrice(stockPrice.getStockPrice());
@@ -331,17 +877,32 @@ public class ShareBrokering {
         stock.setStockSymbol(stockSymbol.toUpperCase());
         stock.setPrice(sharePrice);
 
-        // Add the new Stock and marshall
-        stocksList.add(stock);
+        stocksFileManager.writeLock().lock();
+
+        try {
+            // Fails if the symbol was added while the stock price was being retrieved
+            if (stocksFileManager.getStocks() == null || stocksFileManager.getStockBySymbol(stock.getStockSymbol()) != null) {
+                return false;
+            }
 
-        // Re-order the list
-        stocksList.sort(Comparator.comparing(Stock::getStockName));
+            // The write lock is held until the addition is durable, so nothing can be journaled against a stock that might not be recorded
+            JournalEntry entry = JournalEntry.addStock(stock.getStockSymbol(), stock.getStockName(), stock.getAvailableShares(), sharePrice.getPrice(), sharePrice.getCurrency(),
+                    (sharePrice.getUpdated() != null) ? sharePrice.getUpdated().toXMLFormat() : null);
 
-        return StocksFileManager.getInstance().marshal(stocks);
+            if (!TradeJournal.awaitDurable(TradeJournal.getInstance().append(entry))) {
+                return false;
+            }
+
+            // Add the new Stock, keeping the list ordered
+            return stocksFileManager.addStock(stock);
+        } finally {
+            stocksFileManager.writeLock().unlock();
+        }
     }
 
     /**
-     * Remove the Stock with the supplied symbol if it exists
+     * Remove the Stock with the supplied symbol if it exists, selling any holdings of it back at the current share price. The sales and the removal are journaled together before they are
+     * applied
      *
      * @param stockSymbol The symbol for which to delete
      * @return Whether the stock deletion was successful or not
@@ -356,44 +917,137 @@ public class ShareBrokering {
             return false;
         }
 
-        // Unmarshall stocks, find the stock with the supplied symbol, remove the stock and remarshall
-        Stocks stocks = StocksFileManager.getInstance().unmarshal();
-        List<Stock> stocksList = stocks.getStocks();
+        StocksFileManager stocksFileManager = StocksFileManager.getInstance();
+        UsersFileManager usersFileManager = UsersFileManager.getInstance();
 
-        Stock theStock = stocksList
-                .stream()
-                .filter(stock -> stock.getStockSymbol().equalsIgnoreCase(stockSymbol))
-                .findFirst()
-                .get();
+        Stock listedStock = stocksFileManager.getStockBook().getBySymbol(stockSymbol);
 
-        boolean wasRemoved = stocksList.removeIf(stock -> stock.getStockSymbol().equalsIgnoreCase(stockSymbol));
+        if (listedStock == null) {
+            return false;
+        }
 
-        if (wasRemoved) {
-            // See if any users owned the now deleted stock, and force a sale if so
-            Users users = UsersFileManager.getInstance().unmarshal();
+        // Resolve the exchange rate to the currency of every user holding the stock before taking the write lock, so trades aren't held up while a rate is retrieved from the external API
+        Set<String> holderCurrencies = new HashSet<>();
 
-            List<User> usersWithShare = users.getUsers()
-                    .stream()
-                    .filter(user -> user.getShares()
-                    .stream()
-                    .anyMatch(share -> share.getStockSymbol().equalsIgnoreCase(stockSymbol)))
-                    .collect(Collectors.toList());
+        usersFileManager.readLock().lock();
+
+        try {
+            Users users = usersFileManager.getUsers();
 
-            usersWithShare.forEach((user) -> {
-                Share userShare = user.getShares()
-                        .stream()
-                        .filter(stock -> stock.getStockSymbol().equalsIgnoreCase(stockSymbol))
-                        .findFirst()
-                        .get();
+            if (users != null) {
+                for (User user : users.getUsers()) {
+                    Lock userLock = usersFileManager.getUserLock(user.getGuid());
 
-                if (!UserUtils.trySellStockFromUser(user.getGuid(), stockSymbol, theStock.getPrice(), userShare.getQuantity())) {
-                    System.err.println("[ShareBrokering JAX-WS] Error attempting to force sell user stock upon stock removal. User '" + user.getGuid() + "' has '" + theStock.getStockSymbol() + "' that aren't present in the system any more.");
+                    userLock.lock();
+
+                    try {
+                        if (findShare(user, stockSymbol) != null) {
+                            holderCurrencies.add(user.getCurrency());
+                        }
+                    } finally {
+                        userLock.unlock();
+                    }
                 }
-            });
+            }
+        } finally {
+            usersFileManager.readLock().unlock();
+        }
 
-            return StocksFileManager.getInstance().marshal(stocks);
-        } else {
-            return false;
+        String listedCurrency = listedStock.getPrice().getCurrency();
+        Map<String, Double> rates = new HashMap<>();
+
+        for (String currency : holderCurrencies) {
+            rates.put(currency, CurrencyConverterAPIService.getInstance().getRate(listedCurrency, currency));
+        }
+
+        // Find the stock with the supplied symbol in the resident model, work out the forced sales, journal them with the removal and then apply them
+        stocksFileManager.writeLock().lock();
+
+        try {
+            Stock theStock = stocksFileManager.getStockBySymbol(stockSymbol);
+
+            if (theStock == null) {
+                return false;
+            }
+
+            String stockCurrency = theStock.getPrice().getCurrency();
+
+            // A price refresh may have moved the stock to a different currency since the rates were resolved
+            if (!stockCurrency.equalsIgnoreCase(listedCurrency)) {
+                rates.clear();
+            }
+
+            // See if any users own the stock, and force a sale if so. No trade can change their holdings while the write lock is held
+            List<JournalEntry> entries = new ArrayList<>();
+
+            usersFileManager.readLock().lock();
+
+            try {
+                Users users = usersFileManager.getUsers();
+
+                for (User user : (users != null) ? users.getUsers() : new ArrayList<User>()) {
+                    Lock userLock = usersFileManager.getUserLock(user.getGuid());
+
+                    userLock.lock();
+
+                    try {
+                        Share userShare = findShare(user, stockSymbol);
+
+                        if (userShare == null) {
+                            continue;
+                        }
+
+                        // A user may have bought the stock since the rates were resolved
+                        double rate = rates.computeIfAbsent(user.getCurrency(), currency -> CurrencyConverterAPIService.getInstance().getRate(stockCurrency, currency));
+
+                        if (rate < 0) {
+                            System.err.println("[ShareBrokering JAX-WS] Error attempting to force sell user stock upon stock removal. User '" + user.getGuid() + "' has '" + theStock.getStockSymbol() + "' that aren't present in the system any more.");
+
+                            continue;
+                        }
+
+                        entries.add(JournalEntry.sell(user.getGuid(), userShare.getStockSymbol(), userShare.getQuantity(), theStock.getPrice().getPrice() * userShare.getQuantity() * rate));
+                    } finally {
+                        userLock.unlock();
+                    }
+                }
+            } finally {
+                usersFileManager.readLock().unlock();
+            }
+
+            entries.add(JournalEntry.removeStock(theStock.getStockSymbol()));
+
+            // The write lock is held until the sales and removal are durable, and they are only applied once they are
+            if (!TradeJournal.awaitDurable(TradeJournal.getInstance().appendAll(entries))) {
+                return false;
+            }
+
+            stocksFileManager.removeStock(stockSymbol);
+
+            // Resting limit orders can never execute once the stock has gone
+            LimitOrderEngine.getInstance().stockRemoved(stockSymbol);
+
+            usersFileManager.readLock().lock();
+
+            try {
+                for (JournalEntry sale : entries.subList(0, entries.size() - 1)) {
+                    Lock userLock = usersFileManager.getUserLock(sale.getGuid());
+
+                    userLock.lock();
+
+                    try {
+                        UserUtils.applySale(usersFileManager.getUserByGuid(sale.getGuid()), sale.getStockSymbol(), sale.getQuantity(), sale.getAmount());
+                    } finally {
+                        userLock.unlock();
+                    }
+                }
+            } finally {
+                usersFileManager.readLock().unlock();
+            }
+
+            return true;
+        } finally {
+            stocksFileManager.writeLock().unlock();
         }
     }
 
@@ -413,46 +1067,64 @@ public class ShareBrokering {
             @WebParam(name = "newStockSymbol") String newStockSymbol,
             @WebParam(name = "availableShares") double availableShares
     ) {
-        // Unmarshall stocks, find the stock with the supplied currentStockSymbol, edit the stock and remarshall
-        Stocks stocks = StocksFileManager.getInstance().unmarshal();
-        List<Stock> stocksList = stocks.getStocks();
-
-        boolean foundStock = false;
-        boolean madeEdit = false;
-
-        // Iterate over the list, if matching stock found, update information if provided
-        for (Stock stock : stocksList) {
-            if (stock.getStockSymbol().equalsIgnoreCase(currentStockSymbol)) {
-                foundStock = true;
-
-                if (isNotNullOrEmpty(newStockSymbol)) {
-                    // Make sure newStockSymbol is not already present in the system
-                    if (!currentStockSymbol.equals(newStockSymbol) && stocksList.stream().anyMatch(s -> s.getStockSymbol().equalsIgnoreCase(newStockSymbol))) {
-                        break;
-                    }
+        // Find the stock with the supplied currentStockSymbol in the resident model, journal the edit and then apply it to the stock
+        StocksFileManager stocksFileManager = StocksFileManager.getInstance();
 
-                    stock.setStockSymbol(newStockSymbol);
-                    madeEdit = true;
-                }
+        stocksFileManager.writeLock().lock();
 
-                if (isNotNullOrEmpty(stockName)) {
-                    stock.setStockName(stockName);
-                    madeEdit = true;
-                }
+        try {
+            Stock stock = stocksFileManager.getStockBySymbol(currentStockSymbol);
+
+            if (stock == null) {
+                return false;
+            }
+
+            boolean rename = isNotNullOrEmpty(newStockSymbol);
+            boolean retitle = isNotNullOrEmpty(stockName);
+
+            if (!rename && !retitle && availableShares < 0) {
+                return false;
+            }
 
-                if (availableShares >= 0) {
-                    stock.setAvailableShares(availableShares);
-                    madeEdit = true;
+            // Fails if newStockSymbol is already present in the system
+            if (rename) {
+                Stock existing = stocksFileManager.getStockBySymbol(newStockSymbol);
+
+                if (existing != null && existing != stock) {
+                    return false;
                 }
+            }
+
+            // The write lock is held until the edit is durable, and it is only applied once it is
+            JournalEntry entry = JournalEntry.modifyStock(stock.getStockSymbol(), rename ? newStockSymbol : null, retitle ? stockName : null, availableShares);
 
-                break;
+            if (!TradeJournal.awaitDurable(TradeJournal.getInstance().append(entry))) {
+                return false;
             }
-        }
 
-        if (foundStock && madeEdit) {
-            return StocksFileManager.getInstance().marshal(stocks);
-        } else {
-            return false;
+            // Update information if provided
+            if (rename) {
+                // Rename the stock, keeping the symbol index and the stock's resting limit orders up to date
+                String oldStockSymbol = stock.getStockSymbol();
+
+                stocksFileManager.renameStock(stock, newStockSymbol);
+
+                LimitOrderEngine.getInstance().stockRenamed(oldStockSymbol, newStockSymbol);
+            }
+
+            if (retitle) {
+                stock.setStockName(stockName);
+                stocksFileManager.markStructureChanged();
+            }
+
+            if (availableShares >= 0) {
+                stock.setAvailableShares(availableShares);
+                stocksFileManager.markSharesChanged(stock);
+            }
+
+            return true;
+        } finally {
+            stocksFileManager.writeLock().unlock();
         }
     }
 
@@ -480,14 +1152,6 @@ public class ShareBrokering {
             return false;
         }
 
-        // Make sure username already present in the system
-        Users users = UsersFileManager.getInstance().unmarshal();
-        List<User> usersList = users.getUsers();
-
-        if (usersList.stream().anyMatch(user -> user.getUsername().equalsIgnoreCase(username))) {
-            return false;
-        }
-
         // Create a MD5 hash of the password
         String hashedPassword = UserUtils.hashPassword(password);
 
@@ -507,10 +1171,27 @@ public class ShareBrokering {
         user.setCurrency(currency.toUpperCase());
         user.setAvailableFunds(0);
 
-        // Add the new User and marshall
-        usersList.add(user);
+        UsersFileManager usersFileManager = UsersFileManager.getInstance();
+
+        usersFileManager.writeLock().lock();
 
-        return UsersFileManager.getInstance().marshal(users);
+        try {
+            // Fails if the username is already present in the system
+            if (usersFileManager.getUsers() == null || usersFileManager.getUserByUsername(username) != null) {
+                return false;
+            }
+
+            // The write lock is held until the registration is durable, so nothing can be journaled against a user that might not be recorded
+            JournalEntry entry = JournalEntry.register(user.getGuid(), user.getUsername(), user.getPassword(), user.getFirstName(), user.getLastName(), user.getCurrency());
+
+            if (!TradeJournal.awaitDurable(TradeJournal.getInstance().append(entry))) {
+                return false;
+            }
+
+            return usersFileManager.addUser(user);
+        } finally {
+            usersFileManager.writeLock().unlock();
+        }
     }
 
     /**
@@ -532,12 +1213,17 @@ public class ShareBrokering {
         }
 
         // Check username is present in the system
-        Users users = UsersFileManager.getInstance().unmarshal();
-        List<User> usersList = users.getUsers();
+        UsersFileManager usersFileManager = UsersFileManager.getInstance();
+
+        usersFileManager.readLock().lock();
 
         // Attempt to find the user
         try {
-            User user = usersList.stream().filter(u -> u.getUsername().equalsIgnoreCase(username)).findFirst().get();
+            User user = usersFileManager.getUserByUsername(username);
+
+            if (user == null) {
+                return LoginResponse.unsuccessfulResponse();
+            }
 
             // If the user was found, hash the provided input and check against stored file
             String hashedPassword = UserUtils.hashPassword(password);
@@ -547,8 +1233,8 @@ public class ShareBrokering {
             } else {
                 return LoginResponse.unsuccessfulResponse();
             }
-        } catch (NoSuchElementException e) {
-            return LoginResponse.unsuccessfulResponse();
+        } finally {
+            usersFileManager.readLock().unlock();
         }
     }
 
@@ -569,16 +1255,21 @@ public class ShareBrokering {
         }
 
         // Check username is present in the system
-        Users users = UsersFileManager.getInstance().unmarshal();
-        List<User> usersList = users.getUsers();
+        UsersFileManager usersFileManager = UsersFileManager.getInstance();
+
+        usersFileManager.readLock().lock();
 
         // Attempt to find the user
         try {
-            User user = usersList.stream().filter(u -> u.getGuid().equalsIgnoreCase(guid)).findFirst().get();
+            User user = usersFileManager.getUserByGuid(guid);
+
+            if (user == null) {
+                return null;
+            }
 
             return new FundsResponse(user.getAvailableFunds(), user.getCurrency());
-        } catch (NoSuchElementException e) {
-            return null;
+        } finally {
+            usersFileManager.readLock().unlock();
         }
     }
 
@@ -605,20 +1296,40 @@ public class ShareBrokering {
             return false;
         }
 
+        // No fund movement can be recorded once the journal has failed
+        if (TradeJournal.getInstance().isFailed()) {
+            return false;
+        }
+
         // Check username is present in the system
-        Users users = UsersFileManager.getInstance().unmarshal();
-        List<User> usersList = users.getUsers();
+        UsersFileManager usersFileManager = UsersFileManager.getInstance();
+
+        JournalEntry entry;
+        CompletableFuture<Boolean> journaled;
+
+        Lock userLock = usersFileManager.getUserLock(guid);
+
+        usersFileManager.readLock().lock();
+        userLock.lock();
 
         // Attempt to find the user
         try {
-            User user = usersList.stream().filter(u -> u.getGuid().equalsIgnoreCase(guid)).findFirst().get();
+            User user = usersFileManager.getUserByGuid(guid);
+
+            if (user == null) {
+                return false;
+            }
 
             user.setAvailableFunds(user.getAvailableFunds() + amount);
 
-            return UsersFileManager.getInstance().marshal(users);
-        } catch (NoSuchElementException e) {
-            return false;
+            entry = JournalEntry.deposit(user.getGuid(), amount);
+            journaled = TradeJournal.getInstance().append(entry);
+        } finally {
+            userLock.unlock();
+            usersFileManager.readLock().unlock();
         }
+
+        return PersistenceManager.getInstance().awaitDurableOrRevert(journaled, Collections.singletonList(entry));
     }
 
     /**
@@ -644,38 +1355,62 @@ public class ShareBrokering {
             return false;
         }
 
+        // No fund movement can be recorded once the journal has failed
+        if (TradeJournal.getInstance().isFailed()) {
+            return false;
+        }
+
         // Check username is present in the system
-        Users users = UsersFileManager.getInstance().unmarshal();
-        List<User> usersList = users.getUsers();
+        UsersFileManager usersFileManager = UsersFileManager.getInstance();
+
+        JournalEntry entry;
+        CompletableFuture<Boolean> journaled;
+
+        Lock userLock = usersFileManager.getUserLock(guid);
+
+        usersFileManager.readLock().lock();
+        userLock.lock();
 
         // Attempt to find the user
         try {
-            User user = usersList.stream().filter(u -> u.getGuid().equalsIgnoreCase(guid)).findFirst().get();
+            User user = usersFileManager.getUserByGuid(guid);
 
-            double availableFunds = user.getAvailableFunds();
+            if (user == null) {
+                return false;
+            }
 
-            if (availableFunds >= amount) {
-                user.setAvailableFunds(user.getAvailableFunds() - amount);
+            double availableFunds = user.getAvailableFunds();
 
-                return UsersFileManager.getInstance().marshal(users);
-            } else {
+            if (availableFunds < amount) {
                 return false;
             }
-        } catch (NoSuchElementException e) {
-            return false;
+
+            user.setAvailableFunds(user.getAvailableFunds() - amount);
+
+            entry = JournalEntry.withdraw(user.getGuid(), amount);
+            journaled = TradeJournal.getInstance().append(entry);
+        } finally {
+            userLock.unlock();
+            usersFileManager.readLock().unlock();
         }
+
+        return PersistenceManager.getInstance().awaitDurableOrRevert(journaled, Collections.singletonList(entry));
     }
 
     /**
-     * Retrieve the stock price information from the remote web service for the provided stock symbol
+     * Find a user's holding of a stock
      *
-     * @param symbol The stock symbol for which to retrieve stock price information for
-     * @return The share price, currency and updated time contained within a StockPriceResponse object
+     * @param user The user
+     * @param stockSymbol The symbol of the stock
+     * @return The user's Share of the stock, or null if they don't hold it
      */
-    private StockPriceResponse getSharePrice(String symbol) {
-        StockPrice service = new StockPrice();
-        StockPriceSoap port = service.getStockPriceSoap();
+    private static Share findShare(User user, String stockSymbol) {
+        for (Share share : user.getShares()) {
+            if (share.getStockSymbol().equalsIgnoreCase(stockSymbol)) {
+                return share;
+            }
+        }
 
-        return port.getSharePrice(symbol);
+        return null;
     }
 }
@@ -1,8 +1,6 @@
 package io.grimlock257.sccc.sharebrokering;
 
-import io.github.grimlock257.stocks.StockPrice;
 import io.github.grimlock257.stocks.StockPriceResponse;
-import io.github.grimlock257.stocks.StockPriceSoap;
 import io.grimlock257.sccc.jaxb.binding.SharePrice;
 import io.grimlock257.sccc.jaxb.binding.Stock;
 import io.grimlock257.sccc.jaxb.binding.Stocks;
@@ -10,8 +8,15 @@ import io.grimlock257.sccc.jaxb.binding.users.Role;
 import io.grimlock257.sccc.jaxb.binding.users.User;
 import io.grimlock257.sccc.jaxb.binding.users.Users;
 import io.grimlock257.sccc.sharebrokering.jobs.StockPriceUpdater;
+import io.grimlock257.sccc.sharebrokering.manager.LimitOrderEngine;
+import io.grimlock257.sccc.sharebrokering.manager.PersistenceManager;
+import io.grimlock257.sccc.sharebrokering.manager.PortfolioValuations;
+import io.grimlock257.sccc.sharebrokering.manager.PriceHistory;
+import io.grimlock257.sccc.sharebrokering.manager.PriceSubscriptions;
 import io.grimlock257.sccc.sharebrokering.manager.StocksFileManager;
 import io.grimlock257.sccc.sharebrokering.manager.UsersFileManager;
+import io.grimlock257.sccc.sharebrokering.service.CurrencyConverterAPIService;
+import io.grimlock257.sccc.sharebrokering.service.StockPriceClient;
 import io.grimlock257.sccc.sharebrokering.util.UserUtils;
 import java.util.ArrayList;
 import java.util.Comparator;
@@ -35,6 +40,9 @@ public class Start {
      */
     @PostConstruct
     public void init() {
+        // Load the last snapshot and replay the trade journal before anything else touches the resident models
+        PersistenceManager.getInstance().recover();
+
         setupDummyData();
         createInitialUsersFile();
 
@@ -47,14 +55,36 @@ public class Start {
     @PreDestroy
     public void destroy() {
         StockPriceUpdater.getInstance().cancel();
+
+        PriceHistory.getInstance().close();
+
+        PriceSubscriptions.getInstance().shutdown();
+
+        PortfolioValuations.getInstance().shutdown();
+
+        LimitOrderEngine.getInstance().shutdown();
+
+        CurrencyConverterAPIService.getInstance().shutdown();
+
+        // Force a final snapshot of the resident models to be written to disk
+        PersistenceManager.getInstance().shutdown();
+
+        System.out.println("[ShareBrokering JAX-WS] Stock price updater metrics: " + StockPriceUpdater.getInstance().getMetrics());
+        System.out.println("[ShareBrokering JAX-WS] Price history metrics: " + PriceHistory.getInstance().getMetrics());
+        System.out.println("[ShareBrokering JAX-WS] Price subscription metrics: " + PriceSubscriptions.getInstance().getMetrics());
+        System.out.println("[ShareBrokering JAX-WS] Portfolio valuation metrics: " + PortfolioValuations.getInstance().getMetrics());
+        System.out.println("[ShareBrokering JAX-WS] Limit order engine metrics: " + LimitOrderEngine.getInstance().getMetrics());
+        System.out.println("[ShareBrokering JAX-WS] Stock price client metrics: " + StockPriceClient.getInstance().getMetrics());
+        System.out.println("[ShareBrokering JAX-WS] Currency converter metrics: " + CurrencyConverterAPIService.getInstance().getMetrics());
+        System.out.println("[ShareBrokering JAX-WS] Search result cache metrics: " + StocksFileManager.getInstance().getSearchCacheMetrics());
     }
 
     /**
      * Set up dummy data at web service start if no shares.xml file is found
      */
     private void setupDummyData() {
-        if (StocksFileManager.getInstance().unmarshal() == null) {
-            // Create new Stocks object that will be marshalled
+        if (StocksFileManager.getInstance().getStocks() == null) {
+            // Create new Stocks object that will become the resident stocks model
             Stocks stocks = new Stocks();
             List<Stock> stocksList = stocks.getStocks();
 
@@ -76,7 +106,7 @@ public class Start {
                 StockPriceResponse stockPrice;
 
                 try {
-                    stockPrice = getSharePrice(initialStock.getStockSymbol());
+                    stockPrice = StockPriceClient.getInstance().getSharePrice(initialStock.getStockSymbol());
                 } catch (WebServiceException e) {
                     System.err.println("[ShareBrokering JAX-WS] WebServiceException connecting to stock price SOAP service resulting in failure to retrieve initial stock price. " + e.getMessage());
 
@@ -100,8 +130,8 @@ public class Start {
             // Re-order the list
             stocksList.sort(Comparator.comparing(Stock::getStockName));
 
-            // Marshal the initial stock list
-            StocksFileManager.getInstance().marshal(stocks);
+            // Make the initial stock list resident, which also schedules it to be written to disk
+            StocksFileManager.getInstance().setStocks(stocks);
         }
     }
 
@@ -144,8 +174,8 @@ public class Start {
      * Create initial users file if it doesn't already exist
      */
     private void createInitialUsersFile() {
-        if (UsersFileManager.getInstance().unmarshal() == null) {
-            // Create new Stocks object that will be marshalled
+        if (UsersFileManager.getInstance().getUsers() == null) {
+            // Create new Users object that will become the resident users model
             Users users = new Users();
             List<User> usersList = users.getUsers();
 
@@ -164,23 +194,10 @@ public class Start {
             user.setCurrency("GBP");
             user.setAvailableFunds(0);
 
-            // Add the new User and marshall
+            // Add the new User and make the users model resident, which also schedules it to be written to disk
             usersList.add(user);
 
-            UsersFileManager.getInstance().marshal(users);
+            UsersFileManager.getInstance().setUsers(users);
         }
     }
-
-    /**
-     * Retrieve the stock price information from the remote web service for the provided stock symbol
-     *
-     * @param symbol The stock symbol for which to retrieve stock price information for
-     * @return The share price, currency and updated time contained within a StockPriceResponse object
-     */
-    private StockPriceResponse getSharePrice(String symbol) {
-        StockPrice service = new StockPrice();
-        StockPriceSoap port = service.getStockPriceSoap();
-
-        return port.getSharePrice(symbol);
-    }
 }
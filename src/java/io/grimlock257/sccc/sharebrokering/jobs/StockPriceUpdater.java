@@ -1,21 +1,40 @@
 package io.grimlock257.sccc.sharebrokering.jobs;
 
-import io.github.grimlock257.stocks.StockPrice;
 import io.github.grimlock257.stocks.StockPriceResponse;
-import io.github.grimlock257.stocks.StockPriceSoap;
 import io.grimlock257.sccc.jaxb.binding.SharePrice;
 import io.grimlock257.sccc.jaxb.binding.Stock;
 import io.grimlock257.sccc.jaxb.binding.Stocks;
+import io.grimlock257.sccc.sharebrokering.manager.JournalEntry;
+import io.grimlock257.sccc.sharebrokering.manager.LimitOrderEngine;
+import io.grimlock257.sccc.sharebrokering.manager.PortfolioValuations;
+import io.grimlock257.sccc.sharebrokering.manager.PriceHistory;
+import io.grimlock257.sccc.sharebrokering.manager.PriceSubscriptions;
 import io.grimlock257.sccc.sharebrokering.manager.StocksFileManager;
+import io.grimlock257.sccc.sharebrokering.manager.TradeJournal;
+import io.grimlock257.sccc.sharebrokering.service.StockPriceClient;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import javax.xml.ws.WebServiceException;
 
 /**
  * StockPriceUpdater
  *
- * Singleton class to handle the stock price updater task
+ * Singleton class to handle the stock price updater task. Prices are retrieved in parallel over a bounded pool of threads. Only prices that differ from the current price are applied, and
+ * each change is journaled on its own, so a refresh in which few prices move writes little and a refresh in which none move writes nothing. Changes are also added to the PriceHistory and
+ * pushed to PriceSubscriptions, PortfolioValuations and the LimitOrderEngine
  *
  * @author Adam Watson
  */
@@ -27,6 +46,28 @@ public class StockPriceUpdater {
 
     private final int STOCK_PRICE_INITIAL_DELAY = 10 * 1000;
     private final int STOCK_PRICE_UPDATE_FREQUENCY = 30 * 1000;
+    private final int STOCK_PRICE_REFRESH_DEADLINE = 25 * 1000;
+
+    private static final int DEFAULT_REFRESH_THREADS = 32;
+
+    private final int refreshThreads = Math.max(1, Integer.getInteger("sharebrokering.priceRefreshThreads", DEFAULT_REFRESH_THREADS));
+    private final AtomicInteger refreshThreadCount = new AtomicInteger();
+
+    private ExecutorService refreshExecutor;
+
+    private final AtomicLong totalChanged = new AtomicLong();
+    private final AtomicLong totalUnchanged = new AtomicLong();
+    private final AtomicLong totalFailed = new AtomicLong();
+    private final AtomicLong totalTimedOut = new AtomicLong();
+
+    private volatile String lastRefresh = "none";
+
+    /**
+     * The possible outcomes of refreshing the price of a single stock
+     */
+    private enum RefreshOutcome {
+        CHANGED, UNCHANGED, FAILED
+    }
 
     /**
      * StockPriceUpdater constructor
@@ -67,71 +108,207 @@ public class StockPriceUpdater {
     private void setupStockPriceUpdaterTask() {
         stockPriceUpdaterTime = new Timer();
 
+        refreshExecutor = Executors.newFixedThreadPool(refreshThreads, runnable -> {
+            Thread thread = new Thread(runnable, "StockPriceUpdater-" + refreshThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+
+            return thread;
+        });
+
         stockPriceUpdaterTime.schedule(new TimerTask() {
             @Override
             public void run() {
-                System.out.println("[ShareBrokering JAX-WS] Updating stock prices...");
+                refreshStockPrices();
+            }
+        }, STOCK_PRICE_INITIAL_DELAY, STOCK_PRICE_UPDATE_FREQUENCY);
+    }
 
-                // Record whether a modification was made
-                boolean modified = false;
+    /**
+     * Retrieve up to date prices for every stock. Requests are spread over the refresh executor and each price is applied to its stock as soon as it arrives, so a slow symbol only delays
+     * itself. Any request still outstanding when the refresh deadline passes is abandoned until the next run. The amount of changed, unchanged, failed and abandoned symbols is logged at the
+     * end of each run
+     */
+    private void refreshStockPrices() {
+        System.out.println("[ShareBrokering JAX-WS] Updating stock prices...");
 
-                Stocks stocks = StocksFileManager.getInstance().unmarshal();
+        StocksFileManager stocksFileManager = StocksFileManager.getInstance();
 
-                if (stocks != null) {
-                    List<Stock> stocksList = stocks.getStocks();
+        List<Stock> stocksList;
 
-                    for (Stock stock : stocksList) {
-                        StockPriceResponse stockPrice;
+        // Take a copy of the resident list so the remote calls below don't hold the stocks lock
+        stocksFileManager.readLock().lock();
 
-                        try {
-                            stockPrice = getSharePrice(stock.getStockSymbol());
-                        } catch (WebServiceException e) {
-                            System.err.println("[ShareBrokering JAX-WS] WebServiceException connecting to stock price SOAP service resulting in failure to update stock price for " + stock.getStockSymbol() + ". " + e.getMessage());
+        try {
+            Stocks stocks = stocksFileManager.getStocks();
 
-                            continue;
-                        }
+            stocksList = (stocks != null) ? new ArrayList<>(stocks.getStocks()) : new ArrayList<>();
+        } finally {
+            stocksFileManager.readLock().unlock();
+        }
 
-                        SharePrice sharePrice = new SharePrice();
-                        sharePrice.setCurrency(stockPrice.getStockCurrency());
-                        sharePrice.setPrice(stockPrice.getStockPrice());
-                        sharePrice.setUpdated(stockPrice.getStockPriceTime());
+        AtomicInteger changed = new AtomicInteger();
+        AtomicInteger unchanged = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
 
-                        stock.setPrice(sharePrice);
+        List<Future<?>> requests = new ArrayList<>(stocksList.size());
 
-                        modified = true;
-                    }
+        for (Stock stock : stocksList) {
+            requests.add(refreshExecutor.submit(() -> {
+                switch (refreshStockPrice(stocksFileManager, stock)) {
+                    case CHANGED:
+                        changed.incrementAndGet();
+                        break;
+                    case UNCHANGED:
+                        unchanged.incrementAndGet();
+                        break;
+                    default:
+                        failed.incrementAndGet();
                 }
+            }));
+        }
 
-                boolean result = (modified) ? StocksFileManager.getInstance().marshal(stocks) : false;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STOCK_PRICE_REFRESH_DEADLINE);
+        int abandoned = 0;
 
-                if (result) {
-                    System.out.println("[ShareBrokering JAX-WS] Stock price update successful");
-                } else {
-                    System.err.println("[ShareBrokering JAX-WS] Error marshalling updated stock price file");
-                }
+        for (Future<?> request : requests) {
+            try {
+                request.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                request.cancel(true);
+
+                abandoned++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                return;
+            } catch (ExecutionException | CancellationException e) {
+                failed.incrementAndGet();
             }
-        }, STOCK_PRICE_INITIAL_DELAY, STOCK_PRICE_UPDATE_FREQUENCY);
+        }
+
+        totalChanged.addAndGet(changed.get());
+        totalUnchanged.addAndGet(unchanged.get());
+        totalFailed.addAndGet(failed.get());
+        totalTimedOut.addAndGet(abandoned);
+
+        lastRefresh = changed.get() + " changed, " + unchanged.get() + " unchanged, " + failed.get() + " failed, " + abandoned + " timed out";
+
+        // Changed prices have already been journaled, so there is nothing more to persist here
+        if (changed.get() + unchanged.get() > 0 || stocksList.isEmpty()) {
+            System.out.println("[ShareBrokering JAX-WS] Stock price update successful (" + lastRefresh + ")");
+        } else {
+            System.err.println("[ShareBrokering JAX-WS] Error updating stock prices, no stock prices were retrieved (" + lastRefresh + ")");
+        }
     }
 
     /**
-     * Forcefully cancel the timer task
+     * Retrieve the up to date price for a single stock and, if it differs from the current price or currency, apply it to the stock and journal the change
+     *
+     * @param stocksFileManager The stocks file manager
+     * @param stock The stock to update
+     * @return Whether the price changed, was unchanged or could not be retrieved
      */
-    public void cancel() {
-        stockPriceUpdaterTime.cancel();
-        stockPriceUpdaterTime.purge();
-        stockPriceUpdaterTime = null;
+    private RefreshOutcome refreshStockPrice(StocksFileManager stocksFileManager, Stock stock) {
+        String requestedSymbol;
+
+        stocksFileManager.readLock().lock();
+
+        try {
+            requestedSymbol = stock.getStockSymbol();
+        } finally {
+            stocksFileManager.readLock().unlock();
+        }
+
+        StockPriceResponse stockPrice;
+
+        try {
+            stockPrice = StockPriceClient.getInstance().getSharePrice(requestedSymbol);
+        } catch (WebServiceException e) {
+            System.err.println("[ShareBrokering JAX-WS] WebServiceException connecting to stock price SOAP service resulting in failure to update stock price for " + requestedSymbol + ". " + e.getMessage());
+
+            return RefreshOutcome.FAILED;
+        }
+
+        SharePrice sharePrice = new SharePrice();
+        sharePrice.setCurrency(stockPrice.getStockCurrency());
+        sharePrice.setPrice(stockPrice.getStockPrice());
+        sharePrice.setUpdated(stockPrice.getStockPriceTime());
+
+        String stockSymbol;
+
+        // The symbol can only change under the write lock, so it is read again once the read lock is held and the stripe is chosen from that
+        stocksFileManager.readLock().lock();
+
+        try {
+            stockSymbol = stock.getStockSymbol();
+
+            // The stock has been removed or renamed since its price was requested, so the price doesn't apply to it
+            if (!stockSymbol.equals(requestedSymbol) || stocksFileManager.getStockBySymbol(stockSymbol) != stock) {
+                return RefreshOutcome.UNCHANGED;
+            }
+
+            Lock stockLock = stocksFileManager.getStockLock(stockSymbol);
+
+            stockLock.lock();
+
+            try {
+                SharePrice current = stock.getPrice();
+
+                if (current != null && Double.compare(current.getPrice(), sharePrice.getPrice()) == 0 && Objects.equals(current.getCurrency(), sharePrice.getCurrency())) {
+                    return RefreshOutcome.UNCHANGED;
+                }
+
+                stock.setPrice(sharePrice);
+                stocksFileManager.markPricesChanged(stock);
+
+                // Journal the change while the stock is still locked, so it is ordered correctly against snapshots. The refresh doesn't wait for it to become durable
+                TradeJournal.getInstance().append(JournalEntry.price(stockSymbol, sharePrice.getPrice(), sharePrice.getCurrency(),
+                        (sharePrice.getUpdated() != null) ? sharePrice.getUpdated().toXMLFormat() : null));
+            } finally {
+                stockLock.unlock();
+            }
+        } finally {
+            stocksFileManager.readLock().unlock();
+        }
+
+        // Add the change to the symbol's price history, timed by the quote where the price service provides one
+        long time = (sharePrice.getUpdated() != null) ? sharePrice.getUpdated().toGregorianCalendar().getTimeInMillis() : System.currentTimeMillis();
+
+        PriceHistory.getInstance().record(stockSymbol, time, sharePrice.getPrice(), sharePrice.getCurrency());
+
+        // Push the change to any subscribers, which happens on the subscriptions' own thread
+        PriceSubscriptions.getInstance().publish(stockSymbol);
+
+        // Revalue the holdings of any portfolio valuations being kept, which also happens on its own thread
+        PortfolioValuations.getInstance().priceChanged(stockSymbol);
+
+        // Execute any resting limit orders the new price crosses, on the matching engine's own thread
+        LimitOrderEngine.getInstance().priceChanged(stockSymbol);
+
+        return RefreshOutcome.CHANGED;
     }
 
     /**
-     * Retrieve the stock price information from the remote web service for the provided stock symbol
+     * Get a summary of the refresh statistics, for logging
      *
-     * @param symbol The stock symbol for which to retrieve stock price information for
-     * @return The share price, currency and updated time contained within a StockPriceResponse object
+     * @return The statistics as a string
      */
-    private StockPriceResponse getSharePrice(String symbol) {
-        StockPrice service = new StockPrice();
-        StockPriceSoap port = service.getStockPriceSoap();
+    public String getMetrics() {
+        return "changed=" + totalChanged.get()
+                + ", unchanged=" + totalUnchanged.get()
+                + ", failed=" + totalFailed.get()
+                + ", timedOut=" + totalTimedOut.get()
+                + ", lastRefresh=(" + lastRefresh + ")";
+    }
+
+    /**
+     * Forcefully cancel the timer task and stop any refresh in progress
+     */
+    public void cancel() {
+        stockPriceUpdaterTime.cancel();
+        stockPriceUpdaterTime.purge();
+        stockPriceUpdaterTime = null;
 
-        return port.getSharePrice(symbol);
+        refreshExecutor.shutdownNow();
     }
 }
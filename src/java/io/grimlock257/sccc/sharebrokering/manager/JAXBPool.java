@@ -0,0 +1,187 @@
+package io.grimlock257.sccc.sharebrokering.manager;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+
+/**
+ * JAXBPool
+ *
+ * Holds the single JAXBContext for a binding package along with a pool of Marshaller and Unmarshaller instances. A JAXBContext is thread safe and expensive to create, so one is created per
+ * package and shared. Marshallers and Unmarshallers are not thread safe, so each is borrowed by one thread at a time and returned to the pool once finished with
+ *
+ * @author Adam Watson
+ */
+public class JAXBPool {
+
+    private static final Map<String, JAXBPool> pools = new HashMap<>();
+
+    private static final AtomicLong contextCreations = new AtomicLong();
+
+    private static final int MAX_IDLE = 8;
+
+    private final JAXBContext jaxbContext;
+
+    private final Queue<Marshaller> marshallers = new ConcurrentLinkedQueue<>();
+    private final Queue<Unmarshaller> unmarshallers = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger idleMarshallers = new AtomicInteger();
+    private final AtomicInteger idleUnmarshallers = new AtomicInteger();
+
+    private final AtomicLong marshallerCreations = new AtomicLong();
+    private final AtomicLong marshallerHits = new AtomicLong();
+    private final AtomicLong unmarshallerCreations = new AtomicLong();
+    private final AtomicLong unmarshallerHits = new AtomicLong();
+
+    /**
+     * JAXBPool constructor
+     *
+     * Private as pools are obtained through forPackage
+     *
+     * @param packageName The binding package to create the JAXBContext for
+     * @throws JAXBException If the JAXBContext could not be created
+     */
+    private JAXBPool(String packageName) throws JAXBException {
+        jaxbContext = JAXBContext.newInstance(packageName);
+
+        contextCreations.incrementAndGet();
+    }
+
+    /**
+     * Get the pool for the provided binding package, creating its JAXBContext on first use
+     *
+     * @param packageName The binding package, for example the package of the generated Stocks class
+     * @return The pool for the binding package
+     * @throws JAXBException If the JAXBContext could not be created
+     */
+    public static synchronized JAXBPool forPackage(String packageName) throws JAXBException {
+        JAXBPool pool = pools.get(packageName);
+
+        if (pool == null) {
+            pool = new JAXBPool(packageName);
+
+            pools.put(packageName, pool);
+        }
+
+        return pool;
+    }
+
+    /**
+     * Borrow a Marshaller set up to produce formatted UTF-8 output, creating a new one if none are idle
+     *
+     * @return A Marshaller which must be handed back through returnMarshaller
+     * @throws JAXBException If a new Marshaller could not be created
+     */
+    public Marshaller borrowMarshaller() throws JAXBException {
+        Marshaller marshaller = marshallers.poll();
+
+        if (marshaller != null) {
+            idleMarshallers.decrementAndGet();
+            marshallerHits.incrementAndGet();
+
+            return marshaller;
+        }
+
+        marshaller = jaxbContext.createMarshaller();
+        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+        marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+
+        marshallerCreations.incrementAndGet();
+
+        return marshaller;
+    }
+
+    /**
+     * Return a borrowed Marshaller to the pool. If the pool already holds enough idle instances the Marshaller is discarded
+     *
+     * @param marshaller The Marshaller to return
+     */
+    public void returnMarshaller(Marshaller marshaller) {
+        if (idleMarshallers.incrementAndGet() <= MAX_IDLE) {
+            marshallers.offer(marshaller);
+        } else {
+            idleMarshallers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Borrow an Unmarshaller, creating a new one if none are idle
+     *
+     * @return An Unmarshaller which must be handed back through returnUnmarshaller
+     * @throws JAXBException If a new Unmarshaller could not be created
+     */
+    public Unmarshaller borrowUnmarshaller() throws JAXBException {
+        Unmarshaller unmarshaller = unmarshallers.poll();
+
+        if (unmarshaller != null) {
+            idleUnmarshallers.decrementAndGet();
+            unmarshallerHits.incrementAndGet();
+
+            return unmarshaller;
+        }
+
+        unmarshaller = jaxbContext.createUnmarshaller();
+
+        unmarshallerCreations.incrementAndGet();
+
+        return unmarshaller;
+    }
+
+    /**
+     * Return a borrowed Unmarshaller to the pool. If the pool already holds enough idle instances the Unmarshaller is discarded
+     *
+     * @param unmarshaller The Unmarshaller to return
+     */
+    public void returnUnmarshaller(Unmarshaller unmarshaller) {
+        if (idleUnmarshallers.incrementAndGet() <= MAX_IDLE) {
+            unmarshallers.offer(unmarshaller);
+        } else {
+            idleUnmarshallers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Get the total amount of JAXBContext instances created across all binding packages
+     *
+     * @return The amount of JAXBContext creations
+     */
+    public static long getContextCreations() {
+        return contextCreations.get();
+    }
+
+    public long getMarshallerCreations() {
+        return marshallerCreations.get();
+    }
+
+    public long getMarshallerHits() {
+        return marshallerHits.get();
+    }
+
+    public long getUnmarshallerCreations() {
+        return unmarshallerCreations.get();
+    }
+
+    public long getUnmarshallerHits() {
+        return unmarshallerHits.get();
+    }
+
+    /**
+     * Get a summary of the pool metrics, suitable for logging
+     *
+     * @return The pool metrics
+     */
+    public String getMetrics() {
+        return "contexts=" + getContextCreations()
+                + ", marshallerCreations=" + getMarshallerCreations()
+                + ", marshallerHits=" + getMarshallerHits()
+                + ", unmarshallerCreations=" + getUnmarshallerCreations()
+                + ", unmarshallerHits=" + getUnmarshallerHits();
+    }
+}
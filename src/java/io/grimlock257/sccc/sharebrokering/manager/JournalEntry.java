@@ -0,0 +1,429 @@
+package io.grimlock257.sccc.sharebrokering.manager;
+
+/**
+ * JournalEntry
+ *
+ * Represents a single event in the trade journal. Entries record the effect of an operation (for example the converted purchase price charged to the user) rather than its inputs, so that
+ * replaying the journal does not depend on exchange rates or stock prices at replay time. Price changes applied by the StockPriceUpdater are journaled too, so a refresh only writes the
+ * symbols whose price actually changed rather than the whole stocks file. User registrations and the stocks added, removed and modified by administrators are journaled as well, so nothing
+ * acknowledged depends on the next snapshot
+ *
+ * @author Adam Watson
+ */
+public class JournalEntry {
+
+    /**
+     * The kinds of event recorded in the journal
+     */
+    public enum Type {
+        PURCHASE(0), SELL(0), DEPOSIT(0), WITHDRAW(0), PRICE(2), REGISTER(5), ADD_STOCK(3), REMOVE_STOCK(0), MODIFY_STOCK(2);
+
+        // The amount of fields written after the five every entry has
+        private final int extraFields;
+
+        Type(int extraFields) {
+            this.extraFields = extraFields;
+        }
+    }
+
+    private static final String SEPARATOR = "\t";
+    private static final String NONE = "-";
+    private static final char ESCAPE = '\\';
+
+    private final Type type;
+    private final String guid;
+    private final String stockSymbol;
+    private final double quantity;
+    private final double amount;
+    private final String currency;
+    private final String updated;
+
+    // Only used by registrations and stock additions and modifications
+    private String stockName = null;
+    private String newStockSymbol = null;
+    private String username = null;
+    private String password = null;
+    private String firstName = null;
+    private String lastName = null;
+
+    /**
+     * Create a journal entry
+     *
+     * @param type The kind of event
+     * @param guid The GUID of the user the event applies to, or null for price changes and stock changes
+     * @param stockSymbol The stock symbol traded or changed, or null for fund movements and registrations
+     * @param quantity The quantity of shares traded, the available shares of an added or modified stock, or 0 for other events
+     * @param amount The amount of funds moved in the user's currency, the new share price for price changes and added stocks, or 0 for other events
+     * @param currency The currency of the share price, the currency of a registered user's funds, or null for other events
+     * @param updated The lexical form of the time the share price was quoted, or null for other events
+     */
+    private JournalEntry(Type type, String guid, String stockSymbol, double quantity, double amount, String currency, String updated) {
+        this.type = type;
+        this.guid = guid;
+        this.stockSymbol = stockSymbol;
+        this.quantity = quantity;
+        this.amount = amount;
+        this.currency = currency;
+        this.updated = updated;
+    }
+
+    /**
+     * Create an entry for a share purchase
+     *
+     * @param guid The GUID of the purchasing user
+     * @param stockSymbol The stock symbol purchased
+     * @param quantity The quantity of shares purchased
+     * @param purchasePrice The price charged in the user's currency
+     * @return The journal entry
+     */
+    public static JournalEntry purchase(String guid, String stockSymbol, double quantity, double purchasePrice) {
+        return new JournalEntry(Type.PURCHASE, guid, stockSymbol, quantity, purchasePrice, null, null);
+    }
+
+    /**
+     * Create an entry for a share sale
+     *
+     * @param guid The GUID of the selling user
+     * @param stockSymbol The stock symbol sold
+     * @param quantity The quantity of shares sold
+     * @param salePrice The amount credited in the user's currency
+     * @return The journal entry
+     */
+    public static JournalEntry sell(String guid, String stockSymbol, double quantity, double salePrice) {
+        return new JournalEntry(Type.SELL, guid, stockSymbol, quantity, salePrice, null, null);
+    }
+
+    /**
+     * Create an entry for a deposit of funds
+     *
+     * @param guid The GUID of the user
+     * @param amount The amount deposited in the user's currency
+     * @return The journal entry
+     */
+    public static JournalEntry deposit(String guid, double amount) {
+        return new JournalEntry(Type.DEPOSIT, guid, null, 0, amount, null, null);
+    }
+
+    /**
+     * Create an entry for a withdrawal of funds
+     *
+     * @param guid The GUID of the user
+     * @param amount The amount withdrawn in the user's currency
+     * @return The journal entry
+     */
+    public static JournalEntry withdraw(String guid, double amount) {
+        return new JournalEntry(Type.WITHDRAW, guid, null, 0, amount, null, null);
+    }
+
+    /**
+     * Create an entry for a change of share price
+     *
+     * @param stockSymbol The stock symbol whose price changed
+     * @param price The new share price
+     * @param currency The currency of the new share price
+     * @param updated The lexical form of the time the new share price was quoted, or null if unknown
+     * @return The journal entry
+     */
+    public static JournalEntry price(String stockSymbol, double price, String currency, String updated) {
+        return new JournalEntry(Type.PRICE, null, stockSymbol, 0, price, currency, updated);
+    }
+
+    /**
+     * Create an entry for a user registration
+     *
+     * @param guid The GUID of the new user
+     * @param username The username
+     * @param password The hashed password
+     * @param firstName The first name
+     * @param lastName The last name
+     * @param currency The currency of the user's funds
+     * @return The journal entry
+     */
+    public static JournalEntry register(String guid, String username, String password, String firstName, String lastName, String currency) {
+        JournalEntry entry = new JournalEntry(Type.REGISTER, guid, null, 0, 0, currency, null);
+
+        entry.username = username;
+        entry.password = password;
+        entry.firstName = firstName;
+        entry.lastName = lastName;
+
+        return entry;
+    }
+
+    /**
+     * Create an entry for a stock added by an administrator
+     *
+     * @param stockSymbol The symbol of the new stock
+     * @param stockName The company name
+     * @param availableShares The amount of available shares
+     * @param price The share price
+     * @param currency The currency of the share price
+     * @param updated The lexical form of the time the share price was quoted, or null if unknown
+     * @return The journal entry
+     */
+    public static JournalEntry addStock(String stockSymbol, String stockName, double availableShares, double price, String currency, String updated) {
+        JournalEntry entry = new JournalEntry(Type.ADD_STOCK, null, stockSymbol, availableShares, price, currency, updated);
+
+        entry.stockName = stockName;
+
+        return entry;
+    }
+
+    /**
+     * Create an entry for a stock removed by an administrator. Holders' forced sales are journaled as SELL entries before it
+     *
+     * @param stockSymbol The symbol of the removed stock
+     * @return The journal entry
+     */
+    public static JournalEntry removeStock(String stockSymbol) {
+        return new JournalEntry(Type.REMOVE_STOCK, null, stockSymbol, 0, 0, null, null);
+    }
+
+    /**
+     * Create an entry for a stock modified by an administrator
+     *
+     * @param stockSymbol The symbol of the stock before the modification
+     * @param newStockSymbol The new symbol, or null if unchanged
+     * @param stockName The new company name, or null if unchanged
+     * @param availableShares The new amount of available shares, or a negative amount if unchanged
+     * @return The journal entry
+     */
+    public static JournalEntry modifyStock(String stockSymbol, String newStockSymbol, String stockName, double availableShares) {
+        JournalEntry entry = new JournalEntry(Type.MODIFY_STOCK, null, stockSymbol, availableShares, 0, null, null);
+
+        entry.newStockSymbol = newStockSymbol;
+        entry.stockName = stockName;
+
+        return entry;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getGuid() {
+        return guid;
+    }
+
+    public String getStockSymbol() {
+        return stockSymbol;
+    }
+
+    public double getQuantity() {
+        return quantity;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+
+    public String getCurrency() {
+        return currency;
+    }
+
+    public String getUpdated() {
+        return updated;
+    }
+
+    public String getStockName() {
+        return stockName;
+    }
+
+    public String getNewStockSymbol() {
+        return newStockSymbol;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public String getFirstName() {
+        return firstName;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+
+    /**
+     * Encode the entry as a single tab separated journal line, without the line terminator. Price changes, registrations and stock additions and modifications carry extra fields after the
+     * five every entry has. Text fields are escaped, so a stock symbol or name containing a tab or line break can't split the entry
+     *
+     * @return The encoded line
+     */
+    public String toLine() {
+        StringBuilder line = new StringBuilder(type.name())
+                .append(SEPARATOR).append(encode(guid))
+                .append(SEPARATOR).append(encode(stockSymbol))
+                .append(SEPARATOR).append(Double.toString(quantity))
+                .append(SEPARATOR).append(Double.toString(amount));
+
+        for (String field : extraFields()) {
+            line.append(SEPARATOR).append(encode(field));
+        }
+
+        return line.toString();
+    }
+
+    /**
+     * Get the extra fields written for the entry's type, in the order they are written
+     *
+     * @return The extra field values
+     */
+    private String[] extraFields() {
+        switch (type) {
+            case PRICE:
+                return new String[]{currency, updated};
+            case REGISTER:
+                return new String[]{currency, username, password, firstName, lastName};
+            case ADD_STOCK:
+                return new String[]{currency, updated, stockName};
+            case MODIFY_STOCK:
+                return new String[]{newStockSymbol, stockName};
+            default:
+                return new String[0];
+        }
+    }
+
+    /**
+     * Decode a journal line written by toLine
+     *
+     * @param line The journal line
+     * @return The decoded entry, or null if the line is incomplete or malformed (such as a line torn by a crash)
+     */
+    public static JournalEntry fromLine(String line) {
+        String[] parts = line.split(SEPARATOR, -1);
+
+        if (parts.length < 5) {
+            return null;
+        }
+
+        try {
+            Type type = Type.valueOf(parts[0]);
+
+            if (parts.length != 5 + type.extraFields) {
+                return null;
+            }
+
+            String guid = decode(parts[1]);
+            String stockSymbol = decode(parts[2]);
+            double quantity = Double.parseDouble(parts[3]);
+            double amount = Double.parseDouble(parts[4]);
+
+            switch (type) {
+                case PRICE:
+                    return price(stockSymbol, amount, decode(parts[5]), decode(parts[6]));
+                case REGISTER:
+                    return register(guid, decode(parts[6]), decode(parts[7]), decode(parts[8]), decode(parts[9]), decode(parts[5]));
+                case ADD_STOCK:
+                    return addStock(stockSymbol, decode(parts[7]), quantity, amount, decode(parts[5]), decode(parts[6]));
+                case MODIFY_STOCK:
+                    return modifyStock(stockSymbol, decode(parts[5]), decode(parts[6]), quantity);
+                default:
+                    return new JournalEntry(type, guid, stockSymbol, quantity, amount, null, null);
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Escape a text field so it holds no separators or line breaks. Null is written as NONE, and a value that is literally NONE is escaped to tell the two apart
+     *
+     * @param value The field value, or null
+     * @return The encoded field
+     */
+    private static String encode(String value) {
+        if (value == null) {
+            return NONE;
+        }
+
+        if (value.equals(NONE)) {
+            return ESCAPE + NONE;
+        }
+
+        StringBuilder encoded = new StringBuilder(value.length());
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch (c) {
+                case ESCAPE:
+                    encoded.append(ESCAPE).append(ESCAPE);
+                    break;
+                case '\t':
+                    encoded.append(ESCAPE).append('t');
+                    break;
+                case '\n':
+                    encoded.append(ESCAPE).append('n');
+                    break;
+                case '\r':
+                    encoded.append(ESCAPE).append('r');
+                    break;
+                default:
+                    encoded.append(c);
+            }
+        }
+
+        return encoded.toString();
+    }
+
+    /**
+     * Reverse encode
+     *
+     * @param field The encoded field
+     * @return The field value, or null if the field is NONE
+     * @throws IllegalArgumentException If the field holds an incomplete or unknown escape
+     */
+    private static String decode(String field) {
+        if (field.equals(NONE)) {
+            return null;
+        }
+
+        if (field.indexOf(ESCAPE) < 0) {
+            return field;
+        }
+
+        StringBuilder decoded = new StringBuilder(field.length());
+
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+
+            if (c != ESCAPE) {
+                decoded.append(c);
+
+                continue;
+            }
+
+            if (++i == field.length()) {
+                throw new IllegalArgumentException("Incomplete escape in journal field");
+            }
+
+            switch (field.charAt(i)) {
+                case ESCAPE:
+                    decoded.append(ESCAPE);
+                    break;
+                case 't':
+                    decoded.append('\t');
+                    break;
+                case 'n':
+                    decoded.append('\n');
+                    break;
+                case 'r':
+                    decoded.append('\r');
+                    break;
+                case '-':
+                    decoded.append(NONE);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown escape in journal field");
+            }
+        }
+
+        return decoded.toString();
+    }
+}
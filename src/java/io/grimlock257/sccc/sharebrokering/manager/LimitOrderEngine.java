@@ -0,0 +1,696 @@
+package io.grimlock257.sccc.sharebrokering.manager;
+
+import io.grimlock257.sccc.jaxb.binding.Stock;
+import io.grimlock257.sccc.jaxb.binding.users.User;
+import io.grimlock257.sccc.sharebrokering.model.LimitOrder;
+import io.grimlock257.sccc.sharebrokering.model.LimitOrderStatus;
+import io.grimlock257.sccc.sharebrokering.model.OrderSide;
+import io.grimlock257.sccc.sharebrokering.service.CurrencyConverterAPIService;
+import io.grimlock257.sccc.sharebrokering.util.UserUtils;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * LimitOrderEngine
+ *
+ * Holds resting limit orders in an OrderBook per stock and executes them when the share price crosses their limit: a buy once the price falls to or below its limit, a sell once it rises to or
+ * above it. Executions happen at the current share price, against the stock's available shares, in the same way as purchaseShare and sellShare.
+ *
+ * The StockPriceUpdater hands each changed symbol to a dedicated matching thread, so a refresh never waits for matching. A symbol that changes again before it has been matched is only matched
+ * once. The exchange rates a run needs are resolved before it takes any locks. The fills of each matching run are journaled together in a single commit; fills that can't be journaled are
+ * undone and their orders rejected. Removing a stock rejects its open orders, and renaming one moves its book to the new symbol. Resting orders are held in memory only, so open orders
+ * don't survive a restart, while their fills do
+ *
+ * Locks are taken in the order stocks lock, stock stripe, book monitor, users lock, user stripe
+ *
+ * @author Adam Watson
+ */
+public class LimitOrderEngine {
+
+    private static LimitOrderEngine instance = null;
+
+    private static final int MAX_OPEN_ORDERS_PER_USER = 1000;
+    private static final int MAX_CLOSED_ORDERS_PER_USER = 100;
+
+    private final ExecutorService matchingExecutor;
+
+    private final Map<String, OrderBook> books = new ConcurrentHashMap<>();
+    private final Map<String, RestingOrder> openOrders = new ConcurrentHashMap<>();
+    private final Map<String, UserOrders> ordersByUser = new ConcurrentHashMap<>();
+
+    // Symbols waiting to be matched, so that repeated changes to one symbol queue a single run
+    private final Set<String> pendingSymbols = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong placed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong fills = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong matchRuns = new AtomicLong();
+
+    /**
+     * LimitOrderEngine constructor
+     *
+     * Private to enforce singleton behaviour
+     */
+    private LimitOrderEngine() {
+        matchingExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LimitOrderEngine-matching");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+    }
+
+    /**
+     * Get the instance of the LimitOrderEngine singleton
+     *
+     * @return The instance of the LimitOrderEngine
+     */
+    public static synchronized LimitOrderEngine getInstance() {
+
+        if (instance == null) {
+            instance = new LimitOrderEngine();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Place a limit order. If the current price already crosses the limit, the order is matched straight away
+     *
+     * @param guid The GUID of the user placing the order
+     * @param side Whether the order buys or sells
+     * @param stockSymbol The symbol of the stock
+     * @param limitPrice The highest price to buy at or the lowest price to sell at, in the stock's currency
+     * @param quantity The amount of shares
+     * @return The placed order, or null if the user or stock doesn't exist or the user has too many open orders
+     */
+    public LimitOrder place(String guid, OrderSide side, String stockSymbol, double limitPrice, double quantity) {
+        UsersFileManager usersFileManager = UsersFileManager.getInstance();
+
+        usersFileManager.readLock().lock();
+
+        try {
+            if (usersFileManager.getUserByGuid(guid) == null) {
+                return null;
+            }
+        } finally {
+            usersFileManager.readLock().unlock();
+        }
+
+        StocksFileManager stocksFileManager = StocksFileManager.getInstance();
+
+        RestingOrder order;
+        String symbol;
+        boolean executable;
+
+        // The read lock keeps the stock from being removed or renamed until the order is in its book
+        stocksFileManager.readLock().lock();
+
+        try {
+            Stock stock = stocksFileManager.getStockBySymbol(stockSymbol);
+
+            if (stock == null) {
+                return null;
+            }
+
+            order = new RestingOrder(UUID.randomUUID().toString(), guid, side, stock.getStockSymbol(), limitPrice, quantity);
+
+            if (!ordersByUser.computeIfAbsent(normaliseGuid(guid), key -> new UserOrders()).add(order)) {
+                return null;
+            }
+
+            symbol = normaliseSymbol(stock.getStockSymbol());
+            OrderBook book = books.computeIfAbsent(symbol, key -> new OrderBook());
+
+            synchronized (book) {
+                book.add(order);
+                openOrders.put(order.getOrderId(), order);
+
+                executable = stock.getPrice() != null && order.isExecutableAt(RestingOrder.toTicks(stock.getPrice().getPrice()));
+            }
+        } finally {
+            stocksFileManager.readLock().unlock();
+        }
+
+        placed.incrementAndGet();
+
+        if (executable) {
+            scheduleMatch(symbol);
+        }
+
+        return order.toModel();
+    }
+
+    /**
+     * Cancel an open limit order
+     *
+     * @param guid The GUID of the user who placed the order
+     * @param orderId The ID of the order
+     * @return Whether the order was open and belonged to the user
+     */
+    public boolean cancel(String guid, String orderId) {
+        RestingOrder order = openOrders.get(orderId);
+
+        if (order == null || !order.getGuid().equalsIgnoreCase(guid)) {
+            return false;
+        }
+
+        StocksFileManager stocksFileManager = StocksFileManager.getInstance();
+
+        // The read lock keeps the order's stock from being removed or renamed while its book is found
+        stocksFileManager.readLock().lock();
+
+        try {
+            OrderBook book = books.get(normaliseSymbol(order.getStockSymbol()));
+
+            if (book == null) {
+                return false;
+            }
+
+            synchronized (book) {
+                if (!order.close(LimitOrderStatus.CANCELLED, null)) {
+                    return false;
+                }
+
+                book.remove(order);
+            }
+        } finally {
+            stocksFileManager.readLock().unlock();
+        }
+
+        openOrders.remove(orderId);
+
+        cancelled.incrementAndGet();
+
+        return true;
+    }
+
+    /**
+     * List a user's open limit orders and their most recently closed ones, oldest first
+     *
+     * @param guid The GUID of the user
+     * @return The orders
+     */
+    public List<LimitOrder> list(String guid) {
+        UserOrders userOrders = ordersByUser.get(normaliseGuid(guid));
+
+        return (userOrders != null) ? userOrders.toModels() : new ArrayList<>();
+    }
+
+    /**
+     * Match the resting orders of a stock whose price has changed. Matching happens on the matching thread, so this returns immediately
+     *
+     * @param stockSymbol The symbol whose price has changed
+     */
+    public void priceChanged(String stockSymbol) {
+        String symbol = normaliseSymbol(stockSymbol);
+
+        if (books.containsKey(symbol)) {
+            scheduleMatch(symbol);
+        }
+    }
+
+    /**
+     * Reject the resting orders of a stock that has been removed and drop its book. The caller must hold the stocks write lock
+     *
+     * @param stockSymbol The symbol of the removed stock
+     */
+    public void stockRemoved(String stockSymbol) {
+        OrderBook book = books.remove(normaliseSymbol(stockSymbol));
+
+        if (book == null) {
+            return;
+        }
+
+        synchronized (book) {
+            List<RestingOrder> orders = new ArrayList<>(book.size());
+
+            book.collectAll(orders);
+
+            for (RestingOrder order : orders) {
+                reject(book, order, "Stock removed");
+            }
+        }
+    }
+
+    /**
+     * Move the book of a renamed stock, and its resting orders, to the new symbol. The caller must hold the stocks write lock
+     *
+     * @param oldStockSymbol The symbol before the rename
+     * @param newStockSymbol The symbol after the rename
+     */
+    public void stockRenamed(String oldStockSymbol, String newStockSymbol) {
+        String oldSymbol = normaliseSymbol(oldStockSymbol);
+        String newSymbol = normaliseSymbol(newStockSymbol);
+
+        if (oldSymbol.equals(newSymbol)) {
+            return;
+        }
+
+        OrderBook book = books.remove(oldSymbol);
+
+        if (book == null) {
+            return;
+        }
+
+        synchronized (book) {
+            List<RestingOrder> orders = new ArrayList<>(book.size());
+
+            book.collectAll(orders);
+
+            for (RestingOrder order : orders) {
+                order.setStockSymbol(newStockSymbol);
+            }
+        }
+
+        books.put(newSymbol, book);
+
+        // A run queued under the old symbol finds no book, so queue one under the new symbol in its place
+        if (pendingSymbols.remove(oldSymbol)) {
+            scheduleMatch(newSymbol);
+        }
+    }
+
+    /**
+     * Stop matching orders
+     */
+    public void shutdown() {
+        matchingExecutor.shutdownNow();
+    }
+
+    /**
+     * Get a summary of the order and matching statistics, for logging
+     *
+     * @return The statistics as a string
+     */
+    public String getMetrics() {
+        return "openOrders=" + openOrders.size()
+                + ", books=" + books.size()
+                + ", placed=" + placed.get()
+                + ", cancelled=" + cancelled.get()
+                + ", fills=" + fills.get()
+                + ", rejected=" + rejected.get()
+                + ", matchRuns=" + matchRuns.get();
+    }
+
+    /**
+     * Queue a matching run for a symbol, unless one is already waiting
+     *
+     * @param symbol The normalised symbol
+     */
+    private void scheduleMatch(String symbol) {
+        if (!pendingSymbols.add(symbol)) {
+            return;
+        }
+
+        try {
+            matchingExecutor.execute(() -> match(symbol));
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            pendingSymbols.remove(symbol);
+        }
+    }
+
+    /**
+     * Execute every resting order of a stock that its current price crosses. Runs on the matching thread
+     *
+     * @param symbol The normalised symbol
+     */
+    private void match(String symbol) {
+        pendingSymbols.remove(symbol);
+
+        OrderBook book = books.get(symbol);
+
+        // Orders stay open while the journal has failed, as no fill could be recorded
+        if (book == null || TradeJournal.getInstance().isFailed()) {
+            return;
+        }
+
+        matchRuns.incrementAndGet();
+
+        // Fetching a rate can mean an HTTP request, so they are resolved before any lock is taken
+        Map<String, Double> rates = resolveRates(symbol, book);
+
+        StocksFileManager stocksFileManager = StocksFileManager.getInstance();
+
+        List<JournalEntry> entries = new ArrayList<>();
+        List<RestingOrder> filledOrders = new ArrayList<>();
+
+        boolean unpriced = false;
+
+        stocksFileManager.readLock().lock();
+
+        try {
+            Stock stock = stocksFileManager.getStockBySymbol(symbol);
+
+            if (stock == null) {
+                return;
+            }
+
+            // The stripe is chosen from the resident stock's symbol, which can't change while the read lock is held
+            Lock stockLock = stocksFileManager.getStockLock(stock.getStockSymbol());
+
+            stockLock.lock();
+
+            try {
+                // The book is held for the rest of the run, so an order can't be cancelled while it is being executed
+                synchronized (book) {
+                    if (book.size() == 0 || stock.getPrice() == null) {
+                        return;
+                    }
+
+                    List<RestingOrder> executable = new ArrayList<>();
+
+                    book.collectExecutable(RestingOrder.toTicks(stock.getPrice().getPrice()), executable, Integer.MAX_VALUE);
+
+                    for (RestingOrder order : executable) {
+                        if (order.isOpen() && !execute(book, stock, order, rates, entries, filledOrders)) {
+                            unpriced = true;
+                        }
+                    }
+
+                    if (!entries.isEmpty()) {
+                        stocksFileManager.markSharesChanged(stock);
+
+                        // Journal the fills while the stock is still locked, so the journal order matches the order trades were applied in. Matching doesn't wait for them to become durable,
+                        // and fills that can't be recorded are undone later on the matching thread
+                        TradeJournal.getInstance().appendAll(entries).thenAcceptAsync(durable -> {
+                            if (!durable) {
+                                revertFills(book, entries, filledOrders);
+                            }
+                        }, matchingExecutor);
+                    }
+                }
+            } finally {
+                stockLock.unlock();
+            }
+        } finally {
+            stocksFileManager.readLock().unlock();
+        }
+
+        // A currency changed after the rates were resolved, so match again with the new rates
+        if (unpriced) {
+            scheduleMatch(symbol);
+        }
+    }
+
+    /**
+     * Resolve the exchange rates needed to execute the orders the stock's current price crosses, once per currency pair. Takes no lock while fetching a rate
+     *
+     * @param symbol The normalised symbol
+     * @param book The stock's book
+     * @return The rates keyed by stock currency and user currency, negative for pairs that couldn't be resolved
+     */
+    private Map<String, Double> resolveRates(String symbol, OrderBook book) {
+        Map<String, Double> rates = new HashMap<>();
+
+        Stock stock = StocksFileManager.getInstance().getStockBook().getBySymbol(symbol);
+
+        if (stock == null || stock.getPrice() == null) {
+            return rates;
+        }
+
+        List<RestingOrder> executable = new ArrayList<>();
+
+        synchronized (book) {
+            book.collectExecutable(RestingOrder.toTicks(stock.getPrice().getPrice()), executable, Integer.MAX_VALUE);
+        }
+
+        // Find the currency of each user with an executable order
+        Set<String> userCurrencies = new HashSet<>();
+
+        UsersFileManager usersFileManager = UsersFileManager.getInstance();
+
+        usersFileManager.readLock().lock();
+
+        try {
+            for (RestingOrder order : executable) {
+                User user = usersFileManager.getUserByGuid(order.getGuid());
+
+                if (user != null) {
+                    userCurrencies.add(user.getCurrency());
+                }
+            }
+        } finally {
+            usersFileManager.readLock().unlock();
+        }
+
+        String stockCurrency = stock.getPrice().getCurrency();
+
+        for (String userCurrency : userCurrencies) {
+            rates.put(rateKey(stockCurrency, userCurrency), CurrencyConverterAPIService.getInstance().getRate(stockCurrency, userCurrency));
+        }
+
+        return rates;
+    }
+
+    /**
+     * Undo the fills of a matching run that could not be journaled, rejecting the orders they belonged to. Runs on the matching thread
+     *
+     * @param book The book holding the orders
+     * @param entries The journal entries of the fills
+     * @param filledOrders The order each fill belongs to, in the same order as the entries
+     */
+    private void revertFills(OrderBook book, List<JournalEntry> entries, List<RestingOrder> filledOrders) {
+        System.err.println("[ShareBrokering JAX-WS] Could not journal " + entries.size() + " limit order fills, undoing them");
+
+        PersistenceManager.getInstance().revert(entries);
+
+        synchronized (book) {
+            for (int i = 0; i < filledOrders.size(); i++) {
+                RestingOrder order = filledOrders.get(i);
+
+                order.revertFill(entries.get(i).getQuantity(), "Fill could not be recorded");
+
+                book.remove(order);
+                openOrders.remove(order.getOrderId());
+
+                rejected.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Execute as much of an order as possible at the stock's current price. A buy is filled up to the available shares and stays open for the rest; an order the user can no longer afford
+     * or cover is rejected. The caller must hold the book's monitor and the stock lock
+     *
+     * @param book The book holding the order
+     * @param stock The stock
+     * @param order The order
+     * @param rates The exchange rates resolved for this run
+     * @param entries The journal entries for this run
+     * @param filledOrders The order each journal entry fills, in the same order as the entries
+     * @return Whether the order could be considered, false if its exchange rate wasn't resolved for this run
+     */
+    private boolean execute(OrderBook book, Stock stock, RestingOrder order, Map<String, Double> rates, List<JournalEntry> entries, List<RestingOrder> filledOrders) {
+        UsersFileManager usersFileManager = UsersFileManager.getInstance();
+
+        Lock userLock = usersFileManager.getUserLock(order.getGuid());
+
+        usersFileManager.readLock().lock();
+        userLock.lock();
+
+        try {
+            User user = usersFileManager.getUserByGuid(order.getGuid());
+
+            if (user == null) {
+                reject(book, order, "Unknown user");
+
+                return true;
+            }
+
+            Double rate = rates.get(rateKey(stock.getPrice().getCurrency(), user.getCurrency()));
+
+            // The stock's or the user's currency has changed since the rates were resolved
+            if (rate == null) {
+                return false;
+            }
+
+            // Without a rate the order can't be priced, so leave it for the next price change
+            if (rate < 0) {
+                return true;
+            }
+
+            double quantity = order.getRemainingQuantity();
+
+            if (order.getSide() == OrderSide.BUY) {
+                quantity = Math.min(quantity, stock.getAvailableShares());
+
+                if (quantity <= 0) {
+                    return true;
+                }
+
+                double purchasePrice = stock.getPrice().getPrice() * quantity * rate;
+
+                if (purchasePrice > user.getAvailableFunds()) {
+                    reject(book, order, "Insufficient funds");
+
+                    return true;
+                }
+
+                UserUtils.applyPurchase(user, stock.getStockSymbol(), quantity, purchasePrice);
+
+                stock.setAvailableShares(stock.getAvailableShares() - quantity);
+
+                entries.add(JournalEntry.purchase(order.getGuid(), stock.getStockSymbol(), quantity, purchasePrice));
+            } else {
+                double saleQuantity = quantity;
+
+                boolean hasEnoughShares = user.getShares()
+                        .stream()
+                        .anyMatch(share -> share.getStockSymbol().equalsIgnoreCase(stock.getStockSymbol()) && share.getQuantity() >= saleQuantity);
+
+                if (!hasEnoughShares) {
+                    reject(book, order, "Not enough shares owned");
+
+                    return true;
+                }
+
+                double salePrice = stock.getPrice().getPrice() * quantity * rate;
+
+                UserUtils.applySale(user, stock.getStockSymbol(), quantity, salePrice);
+
+                stock.setAvailableShares(stock.getAvailableShares() + quantity);
+
+                entries.add(JournalEntry.sell(order.getGuid(), stock.getStockSymbol(), quantity, salePrice));
+            }
+
+            filledOrders.add(order);
+
+            order.fill(quantity);
+
+            fills.incrementAndGet();
+
+            if (!order.isOpen()) {
+                book.remove(order);
+                openOrders.remove(order.getOrderId());
+            }
+
+            return true;
+        } finally {
+            userLock.unlock();
+            usersFileManager.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reject an open order, removing it from its book. The caller must hold the book's monitor
+     *
+     * @param book The book holding the order
+     * @param order The order
+     * @param reason Why the order was rejected
+     */
+    private void reject(OrderBook book, RestingOrder order, String reason) {
+        if (order.close(LimitOrderStatus.REJECTED, reason)) {
+            book.remove(order);
+            openOrders.remove(order.getOrderId());
+
+            rejected.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get the key of a currency pair in the rates of a matching run
+     *
+     * @param stockCurrency The currency of the share price
+     * @param userCurrency The currency of the user's funds
+     * @return The key
+     */
+    private static String rateKey(String stockCurrency, String userCurrency) {
+        return stockCurrency + ":" + userCurrency;
+    }
+
+    /**
+     * Normalise a GUID, as users are looked up regardless of case
+     *
+     * @param guid The GUID
+     * @return The lower case GUID
+     */
+    private static String normaliseGuid(String guid) {
+        return guid.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Normalise a stock symbol for finding its book
+     *
+     * @param stockSymbol The stock symbol
+     * @return The upper case stock symbol
+     */
+    private static String normaliseSymbol(String stockSymbol) {
+        return stockSymbol.toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * The limit orders placed by one user: every open order, and the most recently closed ones
+     */
+    private static class UserOrders {
+
+        private final Map<String, RestingOrder> orders = new LinkedHashMap<>();
+
+        /**
+         * Add a new order, forgetting the oldest closed orders beyond MAX_CLOSED_ORDERS_PER_USER
+         *
+         * @param order The order
+         * @return Whether the order was added, false if the user already has MAX_OPEN_ORDERS_PER_USER open orders
+         */
+        private synchronized boolean add(RestingOrder order) {
+            int open = 0;
+            int closed = 0;
+
+            for (RestingOrder existing : orders.values()) {
+                if (existing.isOpen()) {
+                    open++;
+                } else {
+                    closed++;
+                }
+            }
+
+            if (open >= MAX_OPEN_ORDERS_PER_USER) {
+                return false;
+            }
+
+            Iterator<RestingOrder> iterator = orders.values().iterator();
+
+            while (closed > MAX_CLOSED_ORDERS_PER_USER && iterator.hasNext()) {
+                if (!iterator.next().isOpen()) {
+                    iterator.remove();
+                    closed--;
+                }
+            }
+
+            orders.put(order.getOrderId(), order);
+
+            return true;
+        }
+
+        /**
+         * Copy the orders into the models returned to clients
+         *
+         * @return The limit orders
+         */
+        private synchronized List<LimitOrder> toModels() {
+            List<LimitOrder> limitOrders = new ArrayList<>(orders.size());
+
+            for (RestingOrder order : orders.values()) {
+                limitOrders.add(order.toModel());
+            }
+
+            return limitOrders;
+        }
+    }
+}
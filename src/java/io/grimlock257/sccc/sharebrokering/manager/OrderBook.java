@@ -0,0 +1,140 @@
+package io.grimlock257.sccc.sharebrokering.manager;
+
+import io.grimlock257.sccc.sharebrokering.model.OrderSide;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * OrderBook
+ *
+ * The resting limit orders for a single stock, grouped into price levels keyed by the limit price in ticks. Within a level orders are kept in the order they were placed, so when shares are
+ * scarce the best priced order is executed first and equally priced orders are executed first come, first served. When the price moves, only the levels the new price crosses are visited.
+ *
+ * Not thread safe; the LimitOrderEngine guards each book with its own monitor
+ *
+ * @author Adam Watson
+ */
+public class OrderBook {
+
+    private final TreeMap<Long, ArrayDeque<RestingOrder>> bids = new TreeMap<>();
+    private final TreeMap<Long, ArrayDeque<RestingOrder>> asks = new TreeMap<>();
+
+    private int size = 0;
+
+    /**
+     * Add an order to the back of its price level
+     *
+     * @param order The order
+     */
+    public void add(RestingOrder order) {
+        sideOf(order.getSide()).computeIfAbsent(order.getLimitTicks(), key -> new ArrayDeque<>()).addLast(order);
+
+        size++;
+    }
+
+    /**
+     * Remove an order from its price level, dropping the level once it is empty
+     *
+     * @param order The order
+     * @return Whether the order was in the book
+     */
+    public boolean remove(RestingOrder order) {
+        TreeMap<Long, ArrayDeque<RestingOrder>> levels = sideOf(order.getSide());
+
+        ArrayDeque<RestingOrder> level = levels.get(order.getLimitTicks());
+
+        // Executed orders are almost always at the front of their level, which removeFirstOccurrence finds straight away
+        if (level == null || !level.removeFirstOccurrence(order)) {
+            return false;
+        }
+
+        if (level.isEmpty()) {
+            levels.remove(order.getLimitTicks());
+        }
+
+        size--;
+
+        return true;
+    }
+
+    /**
+     * Collect the orders that can execute at a price, in the order they should be executed: sells from the lowest limit up, as they release shares, then buys from the highest limit down.
+     * The orders stay in the book until they are removed
+     *
+     * @param priceTicks The price in ticks
+     * @param executable The list to add the orders to
+     * @param limit The most orders to collect
+     * @return The amount of orders collected
+     */
+    public int collectExecutable(long priceTicks, List<RestingOrder> executable, int limit) {
+        int collected = collect(asks.headMap(priceTicks, true), executable, limit);
+
+        return collected + collect(bids.tailMap(priceTicks, true).descendingMap(), executable, limit - collected);
+    }
+
+    /**
+     * Check whether any order can execute at a price
+     *
+     * @param priceTicks The price in ticks
+     * @return Whether the price crosses the best bid or the best ask
+     */
+    public boolean isExecutableAt(long priceTicks) {
+        return (!asks.isEmpty() && asks.firstKey() <= priceTicks) || (!bids.isEmpty() && bids.lastKey() >= priceTicks);
+    }
+
+    /**
+     * Add every order in the book, bids then asks
+     *
+     * @param orders The list to add the orders to
+     */
+    public void collectAll(List<RestingOrder> orders) {
+        collect(bids, orders, Integer.MAX_VALUE);
+        collect(asks, orders, Integer.MAX_VALUE);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getLevelCount() {
+        return bids.size() + asks.size();
+    }
+
+    /**
+     * Add the orders from a range of levels, in level order
+     *
+     * @param levels The levels to collect from
+     * @param executable The list to add the orders to
+     * @param limit The most orders to collect
+     * @return The amount of orders collected
+     */
+    private static int collect(NavigableMap<Long, ArrayDeque<RestingOrder>> levels, List<RestingOrder> executable, int limit) {
+        int collected = 0;
+
+        for (Map.Entry<Long, ArrayDeque<RestingOrder>> level : levels.entrySet()) {
+            for (RestingOrder order : level.getValue()) {
+                if (collected >= limit) {
+                    return collected;
+                }
+
+                executable.add(order);
+                collected++;
+            }
+        }
+
+        return collected;
+    }
+
+    /**
+     * Get the levels for one side of the book
+     *
+     * @param side The side
+     * @return The bids for buys, or the asks for sells
+     */
+    private TreeMap<Long, ArrayDeque<RestingOrder>> sideOf(OrderSide side) {
+        return (side == OrderSide.BUY) ? bids : asks;
+    }
+}
@@ -0,0 +1,573 @@
+package io.grimlock257.sccc.sharebrokering.manager;
+
+import io.grimlock257.sccc.jaxb.binding.SharePrice;
+import io.grimlock257.sccc.jaxb.binding.Stock;
+import io.grimlock257.sccc.jaxb.binding.Stocks;
+import io.grimlock257.sccc.jaxb.binding.users.Role;
+import io.grimlock257.sccc.jaxb.binding.users.User;
+import io.grimlock257.sccc.jaxb.binding.users.Users;
+import io.grimlock257.sccc.sharebrokering.util.LockStripes;
+import io.grimlock257.sccc.sharebrokering.util.UserUtils;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import javax.xml.bind.JAXBException;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+
+/**
+ * PersistenceManager
+ *
+ * Coordinates the trade journal with snapshots of the stocks and users XML files. Trades, fund movements and share price changes are appended to the TradeJournal, while the XML files are
+ * only rewritten as periodic snapshots. Each snapshot serialises both models at the same instant and rotates the journal, so the segments written before it can be deleted. On startup the last snapshot is
+ * loaded and the journal is replayed on top of it.
+ *
+ * A trade whose entry can't be made durable is undone, so the caller can report it as failed. Once the journal has failed no further snapshots are written, as the resident models may still
+ * hold changes that never reached the journal; the last snapshot and the journal remain the durable state
+ *
+ * @author Adam Watson
+ */
+public class PersistenceManager {
+
+    private static PersistenceManager instance = null;
+
+    private static final long DEFAULT_SNAPSHOT_DELAY = 1000;
+    private static final long DEFAULT_SNAPSHOT_INTERVAL = 60 * 1000;
+
+    private final ScheduledExecutorService snapshotExecutor;
+
+    private final Object scheduleLock = new Object();
+
+    private ScheduledFuture<?> pendingSnapshot = null;
+    private ScheduledFuture<?> periodicSnapshot = null;
+
+    private boolean changed = false;
+    private long lastSnapshotAppendCount = 0;
+
+    private long snapshotDelay;
+    private long snapshotInterval;
+
+    /**
+     * PersistenceManager constructor
+     *
+     * Private to enforce singleton behaviour
+     */
+    private PersistenceManager() {
+        snapshotDelay = Long.getLong("sharebrokering.snapshotDelay", DEFAULT_SNAPSHOT_DELAY);
+        snapshotInterval = Long.getLong("sharebrokering.snapshotInterval", DEFAULT_SNAPSHOT_INTERVAL);
+
+        snapshotExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "PersistenceManager-snapshot");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+    }
+
+    /**
+     * Get the instance of the PersistenceManager singleton
+     *
+     * @return The instance of the PersistenceManager
+     */
+    public static synchronized PersistenceManager getInstance() {
+
+        if (instance == null) {
+            instance = new PersistenceManager();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Set the amount of time (in milliseconds) a change to a resident model waits before a snapshot is written. Changes made during this time are written by the same snapshot
+     *
+     * @param snapshotDelay The snapshot delay in milliseconds
+     */
+    public void setSnapshotDelay(long snapshotDelay) {
+        this.snapshotDelay = Math.max(0, snapshotDelay);
+    }
+
+    /**
+     * Load the last snapshot of both models, replay the trade journal on top of it, open the journal for appending and start the periodic snapshots
+     */
+    public void recover() {
+        StocksFileManager stocksFileManager = StocksFileManager.getInstance();
+        UsersFileManager usersFileManager = UsersFileManager.getInstance();
+        TradeJournal tradeJournal = TradeJournal.getInstance();
+
+        List<JournalEntry> entries = tradeJournal.readAll();
+
+        stocksFileManager.writeLock().lock();
+        usersFileManager.writeLock().lock();
+
+        try {
+            Stocks stocks = stocksFileManager.getStocks();
+            Users users = usersFileManager.getUsers();
+
+            for (JournalEntry entry : entries) {
+                replay(entry, stocksFileManager, usersFileManager);
+            }
+
+            if (!entries.isEmpty()) {
+                System.out.println("[ShareBrokering JAX-WS] Replayed " + entries.size() + " journal entries on top of the last snapshot");
+            }
+
+            if (stocks == null || users == null) {
+                System.err.println("[ShareBrokering JAX-WS] No snapshot found for " + (stocks == null ? "stocks" : "users") + ", journal entries affecting it were skipped");
+            }
+        } finally {
+            usersFileManager.writeLock().unlock();
+            stocksFileManager.writeLock().unlock();
+        }
+
+        tradeJournal.open();
+
+        // Snapshot what was replayed so the replayed segments can be removed
+        if (!entries.isEmpty()) {
+            scheduleSnapshot();
+        }
+
+        synchronized (scheduleLock) {
+            if (periodicSnapshot == null) {
+                periodicSnapshot = snapshotExecutor.scheduleWithFixedDelay(this::snapshotIfChanged, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Schedule a snapshot if one is not already pending
+     */
+    public void scheduleSnapshot() {
+        synchronized (scheduleLock) {
+            changed = true;
+
+            if (pendingSnapshot == null && !snapshotExecutor.isShutdown()) {
+                pendingSnapshot = snapshotExecutor.schedule(this::snapshot, snapshotDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Write a snapshot if anything has been journaled or scheduled since the last one. Used by the periodic snapshot
+     */
+    private void snapshotIfChanged() {
+        synchronized (scheduleLock) {
+            if (!changed && TradeJournal.getInstance().getAppendCount() == lastSnapshotAppendCount) {
+                return;
+            }
+        }
+
+        snapshot();
+    }
+
+    /**
+     * Write a snapshot of both resident models to their XML files and discard the journal segments it covers
+     *
+     * @return Whether the snapshot was successful or not
+     */
+    public synchronized boolean snapshot() {
+        synchronized (scheduleLock) {
+            pendingSnapshot = null;
+            changed = false;
+        }
+
+        if (TradeJournal.getInstance().isFailed()) {
+            System.err.println("[ShareBrokering JAX-WS] Not writing a snapshot, the trade journal has failed and the resident models may hold changes that were never made durable");
+
+            return false;
+        }
+
+        StocksFileManager stocksFileManager = StocksFileManager.getInstance();
+        UsersFileManager usersFileManager = UsersFileManager.getInstance();
+
+        byte[] stocksXml;
+        byte[] usersXml;
+        CompletableFuture<Long> rotation;
+
+        // Holding both write locks means no trade is part way through, so the serialised models and the journal rotation describe the same instant
+        stocksFileManager.writeLock().lock();
+        usersFileManager.writeLock().lock();
+
+        try {
+            stocksXml = stocksFileManager.serialize();
+            usersXml = usersFileManager.serialize();
+
+            rotation = TradeJournal.getInstance().rotate();
+
+            synchronized (scheduleLock) {
+                lastSnapshotAppendCount = TradeJournal.getInstance().getAppendCount();
+            }
+        } finally {
+            usersFileManager.writeLock().unlock();
+            stocksFileManager.writeLock().unlock();
+        }
+
+        long firstRetained;
+
+        // Wait for every entry queued before the rotation to be committed, as the serialised models may hold their changes
+        try {
+            firstRetained = rotation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            firstRetained = -1;
+        } catch (ExecutionException e) {
+            firstRetained = -1;
+        }
+
+        // A failed commit means the serialised models hold changes that are being undone, so they must never reach disk
+        if (TradeJournal.getInstance().isFailed()) {
+            System.err.println("[ShareBrokering JAX-WS] Not writing a snapshot, the trade journal failed while it was being taken");
+
+            return false;
+        }
+
+        boolean success = (stocksXml == null || stocksFileManager.writeSnapshot(stocksXml))
+                && (usersXml == null || usersFileManager.writeSnapshot(usersXml));
+
+        // The old segments may only go once both snapshots are safely on disk
+        if (success && firstRetained > 0) {
+            TradeJournal.getInstance().deleteSegmentsBefore(firstRetained);
+        }
+
+        if (!success) {
+            System.err.println("[ShareBrokering JAX-WS] Error writing snapshot, the journal has been kept");
+
+            // Make sure the next periodic snapshot retries
+            synchronized (scheduleLock) {
+                changed = true;
+            }
+        }
+
+        return success;
+    }
+
+    /**
+     * Stop scheduling snapshots, write a final snapshot, close the journal and log the journal and JAXB pool metrics
+     */
+    public void shutdown() {
+        synchronized (scheduleLock) {
+            if (pendingSnapshot != null) {
+                pendingSnapshot.cancel(false);
+                pendingSnapshot = null;
+            }
+
+            if (periodicSnapshot != null) {
+                periodicSnapshot.cancel(false);
+                periodicSnapshot = null;
+            }
+
+            snapshotExecutor.shutdown();
+        }
+
+        if (!snapshot()) {
+            System.err.println("[ShareBrokering JAX-WS] Error writing snapshot on shutdown");
+        }
+
+        TradeJournal.getInstance().close();
+
+        System.out.println("[ShareBrokering JAX-WS] Trade journal metrics: " + TradeJournal.getInstance().getMetrics());
+
+        try {
+            System.out.println("[ShareBrokering JAX-WS] Stocks JAXB pool metrics: " + JAXBPool.forPackage(Stocks.class.getPackage().getName()).getMetrics());
+            System.out.println("[ShareBrokering JAX-WS] Users JAXB pool metrics: " + JAXBPool.forPackage(Users.class.getPackage().getName()).getMetrics());
+        } catch (JAXBException e) {
+            System.err.println("[ERROR] Could not retrieve JAXB pool metrics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Wait for a journal append to complete, undoing the trades and fund movements it records if they couldn't be made durable. Must be called once the locks held while applying the changes
+     * have been released
+     *
+     * @param journaled The future returned by the journal append
+     * @param entries The entries that were appended
+     * @return Whether the entries were durably written
+     */
+    public boolean awaitDurableOrRevert(Future<Boolean> journaled, List<JournalEntry> entries) {
+        if (TradeJournal.awaitDurable(journaled)) {
+            return true;
+        }
+
+        revert(entries);
+
+        return false;
+    }
+
+    /**
+     * Undo the trades and fund movements recorded by journal entries that couldn't be made durable, newest first, under the same locks they were applied with. Once a commit has failed the
+     * journal refuses everything after it, so no change that builds on an undone one can become durable
+     *
+     * @param entries The entries to undo
+     */
+    public void revert(List<JournalEntry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        StocksFileManager stocksFileManager = StocksFileManager.getInstance();
+        UsersFileManager usersFileManager = UsersFileManager.getInstance();
+
+        Set<String> stockSymbols = new HashSet<>();
+        Set<String> guids = new HashSet<>();
+
+        for (JournalEntry entry : entries) {
+            if (entry.getStockSymbol() != null) {
+                stockSymbols.add(entry.getStockSymbol());
+            }
+
+            if (entry.getGuid() != null) {
+                guids.add(entry.getGuid());
+            }
+        }
+
+        // Stock locks are taken before user locks, the same order trades use
+        stocksFileManager.readLock().lock();
+        List<Lock> stockLocks = stocksFileManager.lockStocks(stockSymbols);
+
+        usersFileManager.readLock().lock();
+        List<Lock> userLocks = usersFileManager.lockUsers(guids);
+
+        try {
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                JournalEntry entry = entries.get(i);
+
+                User user = usersFileManager.getUserByGuid(entry.getGuid());
+
+                if (user == null) {
+                    continue;
+                }
+
+                Stock stock = (entry.getStockSymbol() != null) ? stocksFileManager.getStockBySymbol(entry.getStockSymbol()) : null;
+
+                switch (entry.getType()) {
+                    case PURCHASE:
+                        UserUtils.revertPurchase(user, entry.getStockSymbol(), entry.getQuantity(), entry.getAmount());
+
+                        if (stock != null) {
+                            stock.setAvailableShares(stock.getAvailableShares() + entry.getQuantity());
+                            stocksFileManager.markSharesChanged(stock);
+                        }
+                        break;
+                    case SELL:
+                        UserUtils.revertSale(user, entry.getStockSymbol(), entry.getQuantity(), entry.getAmount());
+
+                        if (stock != null) {
+                            stock.setAvailableShares(stock.getAvailableShares() - entry.getQuantity());
+                            stocksFileManager.markSharesChanged(stock);
+                        }
+                        break;
+                    case DEPOSIT:
+                        user.setAvailableFunds(user.getAvailableFunds() - entry.getAmount());
+                        break;
+                    case WITHDRAW:
+                        user.setAvailableFunds(user.getAvailableFunds() + entry.getAmount());
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            LockStripes.unlockAll(userLocks);
+            usersFileManager.readLock().unlock();
+
+            LockStripes.unlockAll(stockLocks);
+            stocksFileManager.readLock().unlock();
+        }
+
+        System.err.println("[ShareBrokering JAX-WS] Undid " + entries.size() + " journal entries that could not be made durable");
+    }
+
+    /**
+     * Apply a journal entry to the resident models. The caller must hold both write locks
+     *
+     * @param entry The entry to replay
+     * @param stocksFileManager The stocks file manager
+     * @param usersFileManager The users file manager
+     */
+    private void replay(JournalEntry entry, StocksFileManager stocksFileManager, UsersFileManager usersFileManager) {
+        // Price changes, registrations and stock changes don't act on an existing user
+        switch (entry.getType()) {
+            case PRICE:
+                replayPrice(entry, stocksFileManager);
+                return;
+            case REGISTER:
+                replayRegistration(entry, usersFileManager);
+                return;
+            case ADD_STOCK:
+            case REMOVE_STOCK:
+            case MODIFY_STOCK:
+                replayStockChange(entry, stocksFileManager);
+                return;
+            default:
+                break;
+        }
+
+        User user = usersFileManager.getUserByGuid(entry.getGuid());
+
+        if (user == null) {
+            System.err.println("[ShareBrokering JAX-WS] Skipping journal entry for unknown user '" + entry.getGuid() + "'");
+
+            return;
+        }
+
+        Stock stock = (entry.getStockSymbol() != null) ? stocksFileManager.getStockBySymbol(entry.getStockSymbol()) : null;
+
+        // The stock may have been added after the last snapshot, in which case only the user side of the trade can be restored
+        if (entry.getStockSymbol() != null && stock == null) {
+            System.err.println("[ShareBrokering JAX-WS] Journal entry refers to unknown stock '" + entry.getStockSymbol() + "', only the user side has been replayed");
+        }
+
+        switch (entry.getType()) {
+            case PURCHASE:
+                UserUtils.applyPurchase(user, entry.getStockSymbol(), entry.getQuantity(), entry.getAmount());
+
+                if (stock != null) {
+                    stock.setAvailableShares(stock.getAvailableShares() - entry.getQuantity());
+                    stocksFileManager.markSharesChanged(stock);
+                }
+                break;
+            case SELL:
+                UserUtils.applySale(user, entry.getStockSymbol(), entry.getQuantity(), entry.getAmount());
+
+                if (stock != null) {
+                    stock.setAvailableShares(stock.getAvailableShares() + entry.getQuantity());
+                    stocksFileManager.markSharesChanged(stock);
+                }
+                break;
+            case DEPOSIT:
+                user.setAvailableFunds(user.getAvailableFunds() + entry.getAmount());
+                break;
+            case WITHDRAW:
+                user.setAvailableFunds(user.getAvailableFunds() - entry.getAmount());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Add a journaled user registration to the resident users model. The caller must hold the users write lock
+     *
+     * @param entry The registration to replay
+     * @param usersFileManager The users file manager
+     */
+    private void replayRegistration(JournalEntry entry, UsersFileManager usersFileManager) {
+        User user = new User();
+
+        user.setGuid(entry.getGuid());
+        user.setFirstName(entry.getFirstName());
+        user.setLastName(entry.getLastName());
+        user.setUsername(entry.getUsername());
+        user.setPassword(entry.getPassword());
+        user.setRole(Role.USER);
+        user.setCurrency(entry.getCurrency());
+        user.setAvailableFunds(0);
+
+        // Already in the snapshot if it was taken after the registration
+        if (!usersFileManager.addUser(user)) {
+            System.err.println("[ShareBrokering JAX-WS] Journaled registration of '" + entry.getUsername() + "' is already present, skipping");
+        }
+    }
+
+    /**
+     * Apply a journaled stock addition, removal or modification to the resident stocks model. The caller must hold the stocks write lock
+     *
+     * @param entry The stock change to replay
+     * @param stocksFileManager The stocks file manager
+     */
+    private void replayStockChange(JournalEntry entry, StocksFileManager stocksFileManager) {
+        if (entry.getType() == JournalEntry.Type.ADD_STOCK) {
+            SharePrice sharePrice = toSharePrice(entry);
+
+            Stock stock = new Stock();
+            stock.setAvailableShares(entry.getQuantity());
+            stock.setStockName(entry.getStockName());
+            stock.setStockSymbol(entry.getStockSymbol());
+            stock.setPrice(sharePrice);
+
+            if (!stocksFileManager.addStock(stock)) {
+                System.err.println("[ShareBrokering JAX-WS] Journaled addition of stock '" + entry.getStockSymbol() + "' is already present, skipping");
+            }
+
+            return;
+        }
+
+        Stock stock = stocksFileManager.getStockBySymbol(entry.getStockSymbol());
+
+        if (stock == null) {
+            System.err.println("[ShareBrokering JAX-WS] Journaled change refers to unknown stock '" + entry.getStockSymbol() + "', skipping");
+
+            return;
+        }
+
+        if (entry.getType() == JournalEntry.Type.REMOVE_STOCK) {
+            stocksFileManager.removeStock(entry.getStockSymbol());
+
+            return;
+        }
+
+        if (entry.getNewStockSymbol() != null && !stocksFileManager.renameStock(stock, entry.getNewStockSymbol())) {
+            System.err.println("[ShareBrokering JAX-WS] Could not replay renaming stock '" + entry.getStockSymbol() + "' to '" + entry.getNewStockSymbol() + "', the symbol is taken");
+        }
+
+        if (entry.getStockName() != null) {
+            stock.setStockName(entry.getStockName());
+            stocksFileManager.markStructureChanged();
+        }
+
+        if (entry.getQuantity() >= 0) {
+            stock.setAvailableShares(entry.getQuantity());
+            stocksFileManager.markSharesChanged(stock);
+        }
+    }
+
+    /**
+     * Apply a journaled price change to the resident stocks model. The caller must hold the stocks write lock
+     *
+     * @param entry The price change to replay
+     * @param stocksFileManager The stocks file manager
+     */
+    private void replayPrice(JournalEntry entry, StocksFileManager stocksFileManager) {
+        Stock stock = stocksFileManager.getStockBySymbol(entry.getStockSymbol());
+
+        if (stock == null) {
+            System.err.println("[ShareBrokering JAX-WS] Journal price change refers to unknown stock '" + entry.getStockSymbol() + "', skipping");
+
+            return;
+        }
+
+        stock.setPrice(toSharePrice(entry));
+        stocksFileManager.markPricesChanged(stock);
+    }
+
+    /**
+     * Rebuild the share price recorded by a price change or stock addition
+     *
+     * @param entry The journal entry
+     * @return The share price
+     */
+    private static SharePrice toSharePrice(JournalEntry entry) {
+        SharePrice sharePrice = new SharePrice();
+        sharePrice.setCurrency(entry.getCurrency());
+        sharePrice.setPrice(entry.getAmount());
+
+        if (entry.getUpdated() != null) {
+            try {
+                sharePrice.setUpdated(DatatypeFactory.newInstance().newXMLGregorianCalendar(entry.getUpdated()));
+            } catch (DatatypeConfigurationException | IllegalArgumentException e) {
+                System.err.println("[ShareBrokering JAX-WS] Could not restore the quote time of the journaled price for '" + entry.getStockSymbol() + "': " + e.getMessage());
+            }
+        }
+
+        return sharePrice;
+    }
+}
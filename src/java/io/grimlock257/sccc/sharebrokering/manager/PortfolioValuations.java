@@ -0,0 +1,498 @@
+package io.grimlock257.sccc.sharebrokering.manager;
+
+import io.grimlock257.sccc.jaxb.binding.SharePrice;
+import io.grimlock257.sccc.jaxb.binding.Stock;
+import io.grimlock257.sccc.jaxb.binding.users.Share;
+import io.grimlock257.sccc.jaxb.binding.users.User;
+import io.grimlock257.sccc.sharebrokering.model.HoldingValuation;
+import io.grimlock257.sccc.sharebrokering.model.PortfolioValuation;
+import io.grimlock257.sccc.sharebrokering.service.CurrencyConverterAPIService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * PortfolioValuations
+ *
+ * Keeps a running market valuation of each user portfolio that has been requested. A portfolio is valued in full once, converting every holding to the user's currency in a single batch. From
+ * then on, each price change published by the StockPriceUpdater only revalues the holdings of that stock, adjusting the running totals by the difference, on a dedicated thread so a refresh
+ * never waits for it. A trade changes the holdings themselves, so it discards the user's valuation and the next request values the portfolio in full again. Valuations that haven't been
+ * requested for a while are expired, so portfolios that are no longer being watched stop being kept up to date
+ *
+ * @author Adam Watson
+ */
+public class PortfolioValuations {
+
+    private static PortfolioValuations instance = null;
+
+    private static final long DEFAULT_VALUATION_TTL = 5 * 60 * 1000;
+
+    private final long valuationTtl;
+
+    private final ScheduledExecutorService markToMarketExecutor;
+
+    private final Map<String, Valuation> valuations = new ConcurrentHashMap<>();
+    private final Map<String, Set<Valuation>> valuationsBySymbol = new ConcurrentHashMap<>();
+
+    // Bumped whenever a user's holdings change, so a valuation built while a trade was being made is never kept
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+    private final AtomicLong fullValuations = new AtomicLong();
+    private final AtomicLong incrementalUpdates = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    /**
+     * PortfolioValuations constructor
+     *
+     * Private to enforce singleton behaviour
+     */
+    private PortfolioValuations() {
+        valuationTtl = Long.getLong("sharebrokering.valuationTtl", DEFAULT_VALUATION_TTL);
+
+        markToMarketExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "PortfolioValuations-markToMarket");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+
+        long sweepInterval = Math.max(1000, valuationTtl / 2);
+
+        markToMarketExecutor.scheduleWithFixedDelay(this::expireIdleValuations, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the instance of the PortfolioValuations singleton
+     *
+     * @return The instance of the PortfolioValuations
+     */
+    public static synchronized PortfolioValuations getInstance() {
+
+        if (instance == null) {
+            instance = new PortfolioValuations();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Get the valuation of a user's portfolio, valuing it in full if it isn't already being kept up to date
+     *
+     * @param guid The GUID of the user
+     * @return The valuation, or null if the user doesn't exist
+     */
+    public PortfolioValuation getValuation(String guid) {
+        if (guid == null) {
+            return null;
+        }
+
+        requests.incrementAndGet();
+
+        Valuation valuation = valuations.get(normaliseGuid(guid));
+
+        if (valuation == null) {
+            valuation = value(normaliseGuid(guid));
+
+            if (valuation == null) {
+                return null;
+            }
+        }
+
+        return valuation.toModel();
+    }
+
+    /**
+     * Discard the valuation of a user whose holdings have changed. The caller must hold the lock for the user, so the change and the discard happen together
+     *
+     * @param guid The GUID of the user
+     */
+    public void invalidate(String guid) {
+        AtomicLong generation = generationOf(normaliseGuid(guid));
+
+        Valuation valuation;
+
+        synchronized (generation) {
+            generation.incrementAndGet();
+
+            valuation = valuations.remove(normaliseGuid(guid));
+        }
+
+        if (valuation != null) {
+            detach(valuation);
+
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Revalue every kept holding of a stock whose price has changed. The revaluation happens on the mark-to-market thread, so this returns immediately
+     *
+     * @param stockSymbol The symbol whose price has changed
+     */
+    public void priceChanged(String stockSymbol) {
+        String symbol = normaliseSymbol(stockSymbol);
+
+        if (!valuationsBySymbol.containsKey(symbol)) {
+            return;
+        }
+
+        try {
+            markToMarketExecutor.execute(() -> markToMarket(symbol));
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+
+    /**
+     * Stop revaluing holdings on price changes
+     */
+    public void shutdown() {
+        markToMarketExecutor.shutdownNow();
+    }
+
+    /**
+     * Get a summary of the valuation statistics, for logging
+     *
+     * @return The statistics as a string
+     */
+    public String getMetrics() {
+        return "portfolios=" + valuations.size()
+                + ", requests=" + requests.get()
+                + ", fullValuations=" + fullValuations.get()
+                + ", incrementalUpdates=" + incrementalUpdates.get()
+                + ", invalidations=" + invalidations.get()
+                + ", expired=" + expired.get();
+    }
+
+    /**
+     * Value a user's portfolio in full and keep the valuation up to date from then on, unless the user traded while it was being valued
+     *
+     * @param guid The normalised GUID of the user
+     * @return The valuation, or null if the user doesn't exist
+     */
+    private Valuation value(String guid) {
+        UsersFileManager usersFileManager = UsersFileManager.getInstance();
+
+        AtomicLong generation;
+        long expectedGeneration;
+
+        String currency;
+        List<Share> shares = new ArrayList<>();
+
+        Lock userLock = usersFileManager.getUserLock(guid);
+
+        usersFileManager.readLock().lock();
+        userLock.lock();
+
+        try {
+            User user = usersFileManager.getUserByGuid(guid);
+
+            if (user == null) {
+                return null;
+            }
+
+            // Trades invalidate while holding the user lock, so the generation read here matches the holdings copied below
+            generation = generationOf(guid);
+            expectedGeneration = generation.get();
+
+            currency = user.getCurrency();
+
+            // Copy the holdings, as the Share objects change with each trade
+            for (Share share : user.getShares()) {
+                Share copy = new Share();
+                copy.setStockSymbol(share.getStockSymbol());
+                copy.setQuantity(share.getQuantity());
+                copy.setPurchaseValue(share.getPurchaseValue());
+
+                shares.add(copy);
+            }
+        } finally {
+            userLock.unlock();
+            usersFileManager.readLock().unlock();
+        }
+
+        fullValuations.incrementAndGet();
+
+        // Price every holding from the same book, converting them all in one batch so each currency pair is resolved once
+        StockBook book = StocksFileManager.getInstance().getStockBook();
+
+        List<Stock> stocks = new ArrayList<>(shares.size());
+        List<CurrencyConverterAPIService.Conversion> conversions = new ArrayList<>(shares.size());
+
+        for (Share share : shares) {
+            Stock stock = book.getBySymbol(share.getStockSymbol());
+
+            stocks.add(stock);
+
+            if (stock != null) {
+                conversions.add(new CurrencyConverterAPIService.Conversion(stock.getPrice().getCurrency(), currency, stock.getPrice().getPrice() * share.getQuantity()));
+            }
+        }
+
+        double[] converted = CurrencyConverterAPIService.getInstance().convertCurrencies(conversions);
+
+        Valuation valuation = new Valuation(currency);
+
+        for (int i = 0, conversion = 0; i < shares.size(); i++) {
+            Share share = shares.get(i);
+            Stock stock = stocks.get(i);
+
+            double marketValue = (stock != null) ? converted[conversion++] : -1;
+
+            valuation.add(new Holding(normaliseSymbol(share.getStockSymbol()), share.getQuantity(), share.getPurchaseValue(), stock, marketValue));
+        }
+
+        // Only keep the valuation if the user hasn't traded since their holdings were read
+        synchronized (generation) {
+            if (generation.get() != expectedGeneration) {
+                return valuation;
+            }
+
+            // Another request may have valued the portfolio at the same time, keep whichever was installed first
+            Valuation existing = valuations.putIfAbsent(guid, valuation);
+
+            if (existing != null) {
+                return existing;
+            }
+
+            for (String symbol : valuation.holdings.keySet()) {
+                valuationsBySymbol.computeIfAbsent(symbol, key -> ConcurrentHashMap.newKeySet()).add(valuation);
+            }
+        }
+
+        // Catch up with any price published while the portfolio was being valued, which would have missed it
+        if (StocksFileManager.getInstance().getStockBook().getVersion() != book.getVersion()) {
+            for (String symbol : valuation.holdings.keySet()) {
+                priceChanged(symbol);
+            }
+        }
+
+        return valuation;
+    }
+
+    /**
+     * Revalue the kept holdings of a stock at its current price. Runs on the mark-to-market thread
+     *
+     * @param symbol The normalised symbol
+     */
+    private void markToMarket(String symbol) {
+        Set<Valuation> holders = valuationsBySymbol.get(symbol);
+
+        if (holders == null || holders.isEmpty()) {
+            return;
+        }
+
+        Stock stock = StocksFileManager.getInstance().getStockBook().getBySymbol(symbol);
+
+        // Holders share few currencies, so each rate is looked up once for all of them
+        Map<String, Double> rates = new HashMap<>();
+
+        for (Valuation valuation : holders) {
+            double rate = (stock != null) ? rates.computeIfAbsent(valuation.currency, currency -> CurrencyConverterAPIService.getInstance().getRate(stock.getPrice().getCurrency(), currency)) : -1;
+
+            valuation.revalue(symbol, stock, rate);
+
+            incrementalUpdates.incrementAndGet();
+        }
+    }
+
+    /**
+     * Remove valuations that haven't been requested within the valuation TTL. Runs on the mark-to-market thread
+     */
+    private void expireIdleValuations() {
+        long cutoff = System.currentTimeMillis() - valuationTtl;
+
+        for (Map.Entry<String, Valuation> entry : valuations.entrySet()) {
+            Valuation valuation = entry.getValue();
+
+            if (valuation.isIdleSince(cutoff) && valuations.remove(entry.getKey(), valuation)) {
+                detach(valuation);
+
+                expired.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Remove a valuation from the symbol index
+     *
+     * @param valuation The valuation
+     */
+    private void detach(Valuation valuation) {
+        for (String symbol : valuation.holdings.keySet()) {
+            valuationsBySymbol.computeIfPresent(symbol, (key, holders) -> {
+                holders.remove(valuation);
+
+                return holders.isEmpty() ? null : holders;
+            });
+        }
+    }
+
+    /**
+     * Get the holdings generation of a user
+     *
+     * @param guid The normalised GUID of the user
+     * @return The generation counter
+     */
+    private AtomicLong generationOf(String guid) {
+        return generations.computeIfAbsent(guid, key -> new AtomicLong());
+    }
+
+    /**
+     * Normalise a GUID, as users are looked up regardless of case
+     *
+     * @param guid The GUID
+     * @return The lower case GUID
+     */
+    private static String normaliseGuid(String guid) {
+        return guid.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Normalise a stock symbol for matching price changes to holdings
+     *
+     * @param stockSymbol The stock symbol
+     * @return The upper case stock symbol
+     */
+    private static String normaliseSymbol(String stockSymbol) {
+        return stockSymbol.toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * The kept valuation of one portfolio, with running totals over its priced holdings
+     */
+    private static class Valuation {
+
+        private final String currency;
+
+        private final Map<String, Holding> holdings = new LinkedHashMap<>();
+
+        private double totalMarketValue = 0;
+        private double totalPurchaseValue = 0;
+        private int unpriced = 0;
+        private long updated = System.currentTimeMillis();
+        private long lastRequested = updated;
+
+        private Valuation(String currency) {
+            this.currency = currency;
+        }
+
+        /**
+         * Add a holding while the valuation is being built
+         *
+         * @param holding The holding
+         */
+        private void add(Holding holding) {
+            holdings.put(holding.symbol, holding);
+
+            include(holding, 1);
+        }
+
+        /**
+         * Revalue a holding at a new price, adjusting the totals by the difference
+         *
+         * @param symbol The normalised symbol
+         * @param stock The stock at its new price, or null if it no longer exists
+         * @param rate The rate from the stock's currency to the user's currency, or -1 if unavailable
+         */
+        private synchronized void revalue(String symbol, Stock stock, double rate) {
+            Holding holding = holdings.get(symbol);
+
+            if (holding == null) {
+                return;
+            }
+
+            include(holding, -1);
+
+            holding.stock = stock;
+            holding.marketValue = (stock != null && rate >= 0) ? stock.getPrice().getPrice() * holding.quantity * rate : -1;
+
+            include(holding, 1);
+
+            updated = System.currentTimeMillis();
+        }
+
+        /**
+         * Add or remove a holding's contribution to the totals
+         *
+         * @param holding The holding
+         * @param sign 1 to add, -1 to remove
+         */
+        private void include(Holding holding, int sign) {
+            if (holding.isPriced()) {
+                totalMarketValue += sign * holding.marketValue;
+                totalPurchaseValue += sign * holding.purchaseValue;
+            } else {
+                unpriced += sign;
+            }
+        }
+
+        /**
+         * Check whether the valuation has gone unrequested since a time
+         *
+         * @param cutoff The time
+         * @return True if the valuation was last requested before the cutoff
+         */
+        private synchronized boolean isIdleSince(long cutoff) {
+            return lastRequested < cutoff;
+        }
+
+        /**
+         * Copy the valuation into the model returned to clients, recording the request
+         *
+         * @return The portfolio valuation
+         */
+        private synchronized PortfolioValuation toModel() {
+            lastRequested = System.currentTimeMillis();
+
+            List<HoldingValuation> holdingValuations = new ArrayList<>(holdings.size());
+
+            for (Holding holding : holdings.values()) {
+                SharePrice price = (holding.stock != null) ? holding.stock.getPrice() : null;
+                String stockName = (holding.stock != null) ? holding.stock.getStockName() : null;
+
+                holdingValuations.add(new HoldingValuation(stockName, holding.symbol, holding.quantity, price, holding.isPriced(), holding.marketValue, holding.purchaseValue));
+            }
+
+            return new PortfolioValuation(currency, holdingValuations, totalMarketValue, totalPurchaseValue, unpriced == 0, updated);
+        }
+    }
+
+    /**
+     * A single holding and its current market value in the user's currency
+     */
+    private static class Holding {
+
+        private final String symbol;
+        private final double quantity;
+        private final double purchaseValue;
+
+        private Stock stock;
+        private double marketValue;
+
+        private Holding(String symbol, double quantity, double purchaseValue, Stock stock, double marketValue) {
+            this.symbol = symbol;
+            this.quantity = quantity;
+            this.purchaseValue = purchaseValue;
+            this.stock = stock;
+            this.marketValue = marketValue;
+        }
+
+        private boolean isPriced() {
+            return stock != null && marketValue >= 0;
+        }
+    }
+}
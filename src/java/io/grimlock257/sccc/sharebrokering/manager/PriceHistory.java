@@ -0,0 +1,603 @@
+package io.grimlock257.sccc.sharebrokering.manager;
+
+import io.grimlock257.sccc.sharebrokering.model.PriceBar;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PriceHistory
+ *
+ * Stores the time series of share price ticks captured by the StockPriceUpdater, and serves OHLC bars over it. Each symbol has its own directory of segment files, each covering at most one
+ * UTC day in a single currency and named after the time of its first tick, so a query only opens the segments that overlap the requested range.
+ *
+ * A segment holds a small header with its currency and a base time and price, followed by one record per tick. Records store the difference from the previous tick's time and price (in
+ * millionths) as variable length integers, so a tick usually takes a few bytes. Segments are read through memory mapped buffers, and a record torn by a crash is ignored and overwritten on
+ * the next append
+ *
+ * @author Adam Watson
+ */
+public class PriceHistory {
+
+    private static PriceHistory instance = null;
+
+    private static final int MAGIC = 0x50544B31;
+    private static final double PRICE_SCALE = 1000000d;
+    private static final long SEGMENT_SPAN = TimeUnit.DAYS.toMillis(1);
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int MAX_RECORD_SIZE = 20;
+
+    private final File historyDirectory;
+
+    private final Map<String, Series> series = new ConcurrentHashMap<>();
+
+    private final AtomicLong ticksRecorded = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong segmentsScanned = new AtomicLong();
+
+    private volatile boolean closed = false;
+
+    /**
+     * PriceHistory constructor
+     *
+     * Private to enforce singleton behaviour
+     */
+    private PriceHistory() {
+        historyDirectory = new File("./sharesBrokering/history");
+    }
+
+    /**
+     * Get the instance of the PriceHistory singleton
+     *
+     * @return The instance of the PriceHistory
+     */
+    public static synchronized PriceHistory getInstance() {
+
+        if (instance == null) {
+            instance = new PriceHistory();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Record a price tick for a symbol. Failures are logged rather than thrown, as the history is secondary to the price itself
+     *
+     * @param stockSymbol The stock symbol
+     * @param time The time of the quote, in milliseconds since the epoch
+     * @param price The quoted price
+     * @param currency The currency of the quoted price
+     */
+    public void record(String stockSymbol, long time, double price, String currency) {
+        if (closed) {
+            return;
+        }
+
+        try {
+            int written = seriesFor(stockSymbol).append(time, Math.round(price * PRICE_SCALE), currency);
+
+            ticksRecorded.incrementAndGet();
+            bytesWritten.addAndGet(written);
+        } catch (IOException e) {
+            System.err.println("[ERROR] Could not record price tick for " + stockSymbol + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Build OHLC bars for a symbol over a time range. Bars start at fromTime and are intervalMillis long; intervals without any ticks are left out
+     *
+     * @param stockSymbol The stock symbol
+     * @param fromTime The start of the range (inclusive), in milliseconds since the epoch
+     * @param toTime The end of the range (exclusive), in milliseconds since the epoch
+     * @param intervalMillis The length of each bar in milliseconds
+     * @return The bars in time order
+     * @throws IOException If a segment could not be read
+     */
+    public List<PriceBar> getBars(String stockSymbol, long fromTime, long toTime, long intervalMillis) throws IOException {
+        queries.incrementAndGet();
+
+        TreeMap<Long, PriceBar> bars = new TreeMap<>();
+
+        for (SegmentRange segment : seriesFor(stockSymbol).segmentsBetween(fromTime, toTime)) {
+            segmentsScanned.incrementAndGet();
+
+            scan(segment, fromTime, toTime, intervalMillis, bars);
+        }
+
+        return new ArrayList<>(bars.values());
+    }
+
+    /**
+     * Close every open segment. Ticks recorded afterwards are ignored
+     */
+    public void close() {
+        closed = true;
+
+        for (Series symbolSeries : series.values()) {
+            symbolSeries.close();
+        }
+    }
+
+    /**
+     * Get a summary of the history statistics, for logging
+     *
+     * @return The statistics as a string
+     */
+    public String getMetrics() {
+        long ticks = ticksRecorded.get();
+
+        return "symbols=" + series.size()
+                + ", ticks=" + ticks
+                + ", bytes=" + bytesWritten.get()
+                + ", avgBytesPerTick=" + (ticks > 0 ? String.format("%.1f", (double) bytesWritten.get() / ticks) : "0")
+                + ", queries=" + queries.get()
+                + ", segmentsScanned=" + segmentsScanned.get();
+    }
+
+    /**
+     * Get the series for a symbol, regardless of case
+     *
+     * @param stockSymbol The stock symbol
+     * @return The series
+     */
+    private Series seriesFor(String stockSymbol) {
+        return series.computeIfAbsent(stockSymbol.toUpperCase(Locale.ROOT), symbol -> {
+            try {
+                return new Series(new File(historyDirectory, URLEncoder.encode(symbol, "UTF-8")));
+            } catch (UnsupportedEncodingException e) {
+                // UTF-8 is always supported
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Decode the ticks of a segment, adding those within the range to their bars
+     *
+     * @param segment The segment and its readable length
+     * @param fromTime The start of the range (inclusive)
+     * @param toTime The end of the range (exclusive)
+     * @param intervalMillis The length of each bar
+     * @param bars The bars, keyed by their start time
+     * @throws IOException If the segment could not be read
+     */
+    private static void scan(SegmentRange segment, long fromTime, long toTime, long intervalMillis, TreeMap<Long, PriceBar> bars) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment.file, "r"); FileChannel channel = file.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(segment.length, channel.size()));
+
+            SegmentHeader header = SegmentHeader.read(buffer);
+
+            if (header == null) {
+                return;
+            }
+
+            long time = header.baseTime;
+            long scaledPrice = header.basePrice;
+
+            try {
+                while (buffer.hasRemaining()) {
+                    time += unzigzag(readVarLong(buffer));
+                    scaledPrice += unzigzag(readVarLong(buffer));
+
+                    if (time < fromTime || time >= toTime) {
+                        continue;
+                    }
+
+                    long barStart = fromTime + ((time - fromTime) / intervalMillis) * intervalMillis;
+
+                    PriceBar bar = bars.get(barStart);
+
+                    if (bar == null) {
+                        bars.put(barStart, new PriceBar(barStart, barStart + intervalMillis, time, scaledPrice / PRICE_SCALE, header.currency));
+                    } else {
+                        bar.addTick(time, scaledPrice / PRICE_SCALE, header.currency);
+                    }
+                }
+            } catch (BufferUnderflowException e) {
+                // A record torn by a crash, everything before it has been read
+            }
+        }
+    }
+
+    /**
+     * Write a long as a variable length integer, seven bits per byte
+     *
+     * @param buffer The buffer to write to
+     * @param value The value, treated as unsigned
+     */
+    private static void writeVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Read a variable length integer written by writeVarLong
+     *
+     * @param buffer The buffer to read from
+     * @return The value
+     * @throws BufferUnderflowException If the buffer ends part way through the value
+     */
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+
+            value |= (long) (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new BufferUnderflowException();
+    }
+
+    /**
+     * Map a signed value to an unsigned one, so small negative differences stay small
+     *
+     * @param value The signed value
+     * @return The zigzag encoded value
+     */
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Reverse zigzag
+     *
+     * @param value The zigzag encoded value
+     * @return The signed value
+     */
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * The ticks of a single symbol, split into segment files
+     */
+    private static class Series {
+
+        private final File directory;
+
+        // Segment files keyed by the time of their first tick
+        private final TreeMap<Long, File> segments = new TreeMap<>();
+        private boolean loaded = false;
+
+        private FileChannel active = null;
+        private long activeStart;
+        private String activeCurrency;
+        private long activeLength;
+        private long lastTime;
+        private long lastPrice;
+
+        private Series(File directory) {
+            this.directory = directory;
+        }
+
+        /**
+         * Append a tick, starting a new segment when the day or currency changes. A tick older than the latest one recorded is clamped to the latest time, so it lands in the active segment
+         * rather than starting a segment before the existing ones
+         *
+         * @param time The time of the tick
+         * @param scaledPrice The price in millionths
+         * @param currency The currency of the price
+         * @return The amount of bytes written
+         * @throws IOException If the tick could not be written
+         */
+        private synchronized int append(long time, long scaledPrice, String currency) throws IOException {
+            load();
+
+            if (active == null && !segments.isEmpty()) {
+                reopen(segments.lastKey(), segments.lastEntry().getValue());
+            }
+
+            // Quotes can arrive out of order, and segments must stay in time order. An unreadable last segment leaves only its start time to go by
+            if (active != null) {
+                time = Math.max(time, lastTime);
+            } else if (!segments.isEmpty()) {
+                time = Math.max(time, segments.lastKey());
+            }
+
+            int written = 0;
+
+            if (active == null || Math.floorDiv(time, SEGMENT_SPAN) != Math.floorDiv(activeStart, SEGMENT_SPAN) || !Objects.equals(currency, activeCurrency)) {
+                written += roll(time, scaledPrice, currency);
+            }
+
+            ByteBuffer record = ByteBuffer.allocate(MAX_RECORD_SIZE);
+            writeVarLong(record, zigzag(time - lastTime));
+            writeVarLong(record, zigzag(scaledPrice - lastPrice));
+            record.flip();
+
+            written += writeFully(record, activeLength);
+
+            lastTime = time;
+            lastPrice = scaledPrice;
+
+            return written;
+        }
+
+        /**
+         * Find the segments overlapping a time range. Each segment runs until the next one starts
+         *
+         * @param fromTime The start of the range (inclusive)
+         * @param toTime The end of the range (exclusive)
+         * @return The overlapping segments, with the length that has been completely written
+         */
+        private synchronized List<SegmentRange> segmentsBetween(long fromTime, long toTime) {
+            load();
+
+            List<SegmentRange> ranges = new ArrayList<>();
+
+            if (fromTime >= toTime) {
+                return ranges;
+            }
+
+            Long first = segments.floorKey(fromTime);
+
+            for (Map.Entry<Long, File> segment : segments.subMap(first != null ? first : Long.MIN_VALUE, true, toTime, false).entrySet()) {
+                boolean isActive = active != null && segment.getKey() == activeStart;
+
+                ranges.add(new SegmentRange(segment.getValue(), isActive ? activeLength : segment.getValue().length()));
+            }
+
+            return ranges;
+        }
+
+        /**
+         * Close the active segment
+         */
+        private synchronized void close() {
+            if (active != null) {
+                try {
+                    active.close();
+                } catch (IOException e) {
+                    System.err.println("[ERROR] Could not close price history segment: " + e.getMessage());
+                }
+
+                active = null;
+            }
+        }
+
+        /**
+         * List the existing segment files on first use
+         */
+        private void load() {
+            if (loaded) {
+                return;
+            }
+
+            File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+
+            if (files != null) {
+                for (File file : files) {
+                    try {
+                        segments.put(Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length())), file);
+                    } catch (NumberFormatException e) {
+                        System.err.println("[ShareBrokering JAX-WS] Ignoring unexpected price history file " + file.getPath());
+                    }
+                }
+            }
+
+            loaded = true;
+        }
+
+        /**
+         * Reopen the last segment for appending, discarding any record torn by a crash
+         *
+         * @param start The start time the segment is keyed by
+         * @param file The segment file
+         * @throws IOException If the segment could not be opened
+         */
+        private void reopen(long start, File file) throws IOException {
+            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+
+            try {
+                // Read into memory rather than mapping, so the torn tail can be truncated on every platform
+                ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+
+                while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+                }
+
+                buffer.flip();
+
+                SegmentHeader header = SegmentHeader.read(buffer);
+
+                if (header == null) {
+                    // Unreadable, so leave it alone and let the next tick start a new segment
+                    channel.close();
+
+                    return;
+                }
+
+                long time = header.baseTime;
+                long scaledPrice = header.basePrice;
+                int validLength = buffer.position();
+
+                lastTime = time;
+                lastPrice = scaledPrice;
+
+                try {
+                    while (buffer.hasRemaining()) {
+                        time += unzigzag(readVarLong(buffer));
+                        scaledPrice += unzigzag(readVarLong(buffer));
+
+                        validLength = buffer.position();
+                        lastTime = time;
+                        lastPrice = scaledPrice;
+                    }
+                } catch (BufferUnderflowException e) {
+                    // A torn record, which is truncated below
+                }
+
+                channel.truncate(validLength);
+
+                active = channel;
+                activeStart = start;
+                activeCurrency = header.currency;
+                activeLength = validLength;
+            } catch (IOException e) {
+                channel.close();
+
+                throw e;
+            }
+        }
+
+        /**
+         * Close the active segment and start a new one whose header holds the provided tick
+         *
+         * @param time The time of the tick
+         * @param scaledPrice The price in millionths
+         * @param currency The currency of the price
+         * @return The amount of bytes written
+         * @throws IOException If the segment could not be created
+         */
+        private int roll(long time, long scaledPrice, String currency) throws IOException {
+            close();
+
+            directory.mkdirs();
+
+            // Segments are keyed by start time, so move past any segment already starting at the same millisecond
+            long start = time;
+
+            while (segments.containsKey(start)) {
+                start++;
+            }
+
+            File file = new File(directory, String.format("%020d", start) + SEGMENT_SUFFIX);
+
+            active = new RandomAccessFile(file, "rw").getChannel();
+            active.truncate(0);
+
+            segments.put(start, file);
+
+            activeStart = start;
+            activeCurrency = currency;
+            activeLength = 0;
+            lastTime = time;
+            lastPrice = scaledPrice;
+
+            ByteBuffer header = SegmentHeader.write(currency, time, scaledPrice);
+
+            return writeFully(header, 0);
+        }
+
+        /**
+         * Write a buffer to the active segment at an offset, and move the end of the segment past it
+         *
+         * @param buffer The bytes to write
+         * @param offset Where to write them
+         * @return The amount of bytes written
+         * @throws IOException If the write failed
+         */
+        private int writeFully(ByteBuffer buffer, long offset) throws IOException {
+            int length = buffer.remaining();
+            long position = offset;
+
+            while (buffer.hasRemaining()) {
+                position += active.write(buffer, position);
+            }
+
+            activeLength = offset + length;
+
+            return length;
+        }
+    }
+
+    /**
+     * The fixed part at the start of a segment: its currency and first tick
+     */
+    private static class SegmentHeader {
+
+        private final String currency;
+        private final long baseTime;
+        private final long basePrice;
+
+        private SegmentHeader(String currency, long baseTime, long basePrice) {
+            this.currency = currency;
+            this.baseTime = baseTime;
+            this.basePrice = basePrice;
+        }
+
+        /**
+         * Encode a header
+         *
+         * @param currency The currency of the segment
+         * @param baseTime The time of the first tick
+         * @param basePrice The price of the first tick in millionths
+         * @return The header, ready to be written
+         */
+        private static ByteBuffer write(String currency, long baseTime, long basePrice) {
+            byte[] currencyBytes = (currency != null ? currency : "").getBytes(StandardCharsets.UTF_8);
+
+            ByteBuffer buffer = ByteBuffer.allocate(4 + 2 + currencyBytes.length + 8 + 8);
+            buffer.putInt(MAGIC);
+            buffer.putShort((short) currencyBytes.length);
+            buffer.put(currencyBytes);
+            buffer.putLong(baseTime);
+            buffer.putLong(basePrice);
+            buffer.flip();
+
+            return buffer;
+        }
+
+        /**
+         * Decode the header at the start of a segment, leaving the buffer positioned at the first record
+         *
+         * @param buffer The segment
+         * @return The header, or null if the segment doesn't start with a complete header
+         */
+        private static SegmentHeader read(ByteBuffer buffer) {
+            try {
+                if (buffer.getInt() != MAGIC) {
+                    return null;
+                }
+
+                byte[] currencyBytes = new byte[buffer.getShort()];
+                buffer.get(currencyBytes);
+
+                String currency = new String(currencyBytes, StandardCharsets.UTF_8);
+
+                return new SegmentHeader(currency.isEmpty() ? null : currency, buffer.getLong(), buffer.getLong());
+            } catch (BufferUnderflowException | NegativeArraySizeException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A segment file and how much of it may be read
+     */
+    private static class SegmentRange {
+
+        private final File file;
+        private final long length;
+
+        private SegmentRange(File file, long length) {
+            this.file = file;
+            this.length = length;
+        }
+    }
+}
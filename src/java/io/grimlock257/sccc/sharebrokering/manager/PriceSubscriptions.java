@@ -0,0 +1,362 @@
+package io.grimlock257.sccc.sharebrokering.manager;
+
+import io.grimlock257.sccc.jaxb.binding.Stock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PriceSubscriptions
+ *
+ * Pushes share price changes to clients that have subscribed to a set of symbols, so dashboards no longer need to poll the whole stock list. The StockPriceUpdater hands each changed symbol to
+ * a dedicated fan-out thread, which delivers the stock from the current StockBook to every subscription interested in it; the refresh never waits for subscribers.
+ *
+ * Each subscription keeps only the latest change per symbol until it is collected by a long poll, so a slow or absent client holds at most one stock per subscribed symbol. Subscriptions that
+ * haven't been polled for a while are expired
+ *
+ * @author Adam Watson
+ */
+public class PriceSubscriptions {
+
+    private static PriceSubscriptions instance = null;
+
+    private static final long DEFAULT_SUBSCRIPTION_TTL = 5 * 60 * 1000;
+    private static final int DEFAULT_MAX_SUBSCRIPTIONS = 10000;
+    private static final int MAX_SYMBOLS_PER_SUBSCRIPTION = 1000;
+
+    private final long subscriptionTtl;
+    private final int maxSubscriptions;
+
+    private final ScheduledExecutorService fanoutExecutor;
+
+    private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private final Map<String, Set<Subscription>> subscribersBySymbol = new ConcurrentHashMap<>();
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+
+    private volatile boolean closed = false;
+
+    /**
+     * PriceSubscriptions constructor
+     *
+     * Private to enforce singleton behaviour
+     */
+    private PriceSubscriptions() {
+        subscriptionTtl = Long.getLong("sharebrokering.subscriptionTtl", DEFAULT_SUBSCRIPTION_TTL);
+        maxSubscriptions = Integer.getInteger("sharebrokering.maxSubscriptions", DEFAULT_MAX_SUBSCRIPTIONS);
+
+        fanoutExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "PriceSubscriptions-fanout");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+
+        long sweepInterval = Math.max(1000, subscriptionTtl / 2);
+
+        fanoutExecutor.scheduleWithFixedDelay(this::expireIdleSubscriptions, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the instance of the PriceSubscriptions singleton
+     *
+     * @return The instance of the PriceSubscriptions
+     */
+    public static synchronized PriceSubscriptions getInstance() {
+
+        if (instance == null) {
+            instance = new PriceSubscriptions();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Subscribe to price changes for a set of symbols
+     *
+     * @param stockSymbols The symbols to receive changes for
+     * @return The subscription ID to poll with, or null if no symbols were provided, too many were provided or the subscription limit has been reached
+     */
+    public String subscribe(Collection<String> stockSymbols) {
+        if (closed || stockSymbols == null || subscriptions.size() >= maxSubscriptions) {
+            return null;
+        }
+
+        Set<String> symbols = new LinkedHashSet<>();
+
+        for (String stockSymbol : stockSymbols) {
+            if (stockSymbol != null && !stockSymbol.isEmpty()) {
+                symbols.add(normaliseSymbol(stockSymbol));
+            }
+        }
+
+        if (symbols.isEmpty() || symbols.size() > MAX_SYMBOLS_PER_SUBSCRIPTION) {
+            return null;
+        }
+
+        Subscription subscription = new Subscription(UUID.randomUUID().toString(), symbols);
+
+        subscriptions.put(subscription.id, subscription);
+
+        for (String symbol : symbols) {
+            subscribersBySymbol.computeIfAbsent(symbol, key -> ConcurrentHashMap.newKeySet()).add(subscription);
+        }
+
+        return subscription.id;
+    }
+
+    /**
+     * Cancel a subscription, waking any poll waiting on it
+     *
+     * @param subscriptionId The subscription ID
+     * @return Whether the subscription existed
+     */
+    public boolean unsubscribe(String subscriptionId) {
+        Subscription subscription = (subscriptionId != null) ? subscriptions.remove(subscriptionId) : null;
+
+        if (subscription == null) {
+            return false;
+        }
+
+        remove(subscription);
+
+        return true;
+    }
+
+    /**
+     * Wait for price changes on a subscription. Returns as soon as at least one subscribed symbol has changed since the last poll, or when the timeout passes
+     *
+     * @param subscriptionId The subscription ID
+     * @param timeoutMillis The longest time to wait
+     * @return The changed stocks, empty if none changed before the timeout, or null if the subscription doesn't exist
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public List<Stock> poll(String subscriptionId, long timeoutMillis) throws InterruptedException {
+        Subscription subscription = (subscriptionId != null) ? subscriptions.get(subscriptionId) : null;
+
+        if (subscription == null) {
+            return null;
+        }
+
+        polls.incrementAndGet();
+
+        return subscription.take(timeoutMillis);
+    }
+
+    /**
+     * Publish a change to the price of a stock. Delivery happens on the fan-out thread, so this returns immediately
+     *
+     * @param stockSymbol The symbol whose price has changed
+     */
+    public void publish(String stockSymbol) {
+        if (closed || subscribersBySymbol.isEmpty()) {
+            return;
+        }
+
+        published.incrementAndGet();
+
+        try {
+            fanoutExecutor.execute(() -> deliver(normaliseSymbol(stockSymbol)));
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+
+    /**
+     * Stop delivering changes and wake every waiting poll
+     */
+    public void shutdown() {
+        closed = true;
+
+        fanoutExecutor.shutdownNow();
+
+        for (Subscription subscription : subscriptions.values()) {
+            subscription.cancel();
+        }
+
+        subscriptions.clear();
+        subscribersBySymbol.clear();
+    }
+
+    /**
+     * Get a summary of the subscription statistics, for logging
+     *
+     * @return The statistics as a string
+     */
+    public String getMetrics() {
+        return "subscriptions=" + subscriptions.size()
+                + ", symbols=" + subscribersBySymbol.size()
+                + ", published=" + published.get()
+                + ", delivered=" + delivered.get()
+                + ", polls=" + polls.get()
+                + ", expired=" + expired.get();
+    }
+
+    /**
+     * Deliver the current stock for a symbol to every subscription interested in it. Runs on the fan-out thread
+     *
+     * @param symbol The normalised symbol
+     */
+    private void deliver(String symbol) {
+        Set<Subscription> subscribers = subscribersBySymbol.get(symbol);
+
+        if (subscribers == null || subscribers.isEmpty()) {
+            return;
+        }
+
+        // Read from the current book, so subscribers get the same immutable copy as every other reader
+        Stock stock = StocksFileManager.getInstance().getStockBook().getBySymbol(symbol);
+
+        if (stock == null) {
+            return;
+        }
+
+        for (Subscription subscription : subscribers) {
+            subscription.offer(symbol, stock);
+
+            delivered.incrementAndGet();
+        }
+    }
+
+    /**
+     * Remove subscriptions that haven't been polled within the subscription TTL. Runs on the fan-out thread
+     */
+    private void expireIdleSubscriptions() {
+        long cutoff = System.currentTimeMillis() - subscriptionTtl;
+
+        for (Subscription subscription : subscriptions.values()) {
+            if (subscription.isIdleSince(cutoff) && subscriptions.remove(subscription.id, subscription)) {
+                remove(subscription);
+
+                expired.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Detach a subscription from its symbols and wake any poll waiting on it
+     *
+     * @param subscription The subscription
+     */
+    private void remove(Subscription subscription) {
+        for (String symbol : subscription.symbols) {
+            subscribersBySymbol.computeIfPresent(symbol, (key, subscribers) -> {
+                subscribers.remove(subscription);
+
+                return subscribers.isEmpty() ? null : subscribers;
+            });
+        }
+
+        subscription.cancel();
+    }
+
+    /**
+     * Normalise a stock symbol for matching changes to subscriptions
+     *
+     * @param stockSymbol The stock symbol
+     * @return The upper case stock symbol
+     */
+    private static String normaliseSymbol(String stockSymbol) {
+        return stockSymbol.toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * A client's interest in a set of symbols, and the changes waiting to be collected
+     */
+    private static class Subscription {
+
+        private final String id;
+        private final Set<String> symbols;
+
+        // The latest change for each symbol since the last poll, in the order the symbols first changed
+        private final Map<String, Stock> pending = new LinkedHashMap<>();
+
+        private long lastPolled = System.currentTimeMillis();
+        private int waiting = 0;
+        private boolean cancelled = false;
+
+        private Subscription(String id, Set<String> symbols) {
+            this.id = id;
+            this.symbols = symbols;
+        }
+
+        /**
+         * Record a change, replacing any earlier change to the same symbol that hasn't been collected
+         *
+         * @param symbol The normalised symbol
+         * @param stock The changed stock
+         */
+        private synchronized void offer(String symbol, Stock stock) {
+            pending.put(symbol, stock);
+
+            notifyAll();
+        }
+
+        /**
+         * Collect the pending changes, waiting up to the timeout for one to arrive
+         *
+         * @param timeoutMillis The longest time to wait
+         * @return The pending changes
+         * @throws InterruptedException If interrupted while waiting
+         */
+        private synchronized List<Stock> take(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + Math.max(0, timeoutMillis);
+
+            waiting++;
+
+            try {
+                while (pending.isEmpty() && !cancelled) {
+                    long remaining = deadline - System.currentTimeMillis();
+
+                    if (remaining <= 0) {
+                        break;
+                    }
+
+                    wait(remaining);
+                }
+            } finally {
+                waiting--;
+                lastPolled = System.currentTimeMillis();
+            }
+
+            List<Stock> changes = new ArrayList<>(pending.values());
+            pending.clear();
+
+            return changes;
+        }
+
+        /**
+         * Check whether the subscription has gone unpolled since a time. A subscription with a poll in progress is never idle
+         *
+         * @param cutoff The time
+         * @return True if the subscription was last polled before the cutoff
+         */
+        private synchronized boolean isIdleSince(long cutoff) {
+            return waiting == 0 && lastPolled < cutoff;
+        }
+
+        /**
+         * Cancel the subscription, waking any waiting poll
+         */
+        private synchronized void cancel() {
+            cancelled = true;
+
+            notifyAll();
+        }
+    }
+}
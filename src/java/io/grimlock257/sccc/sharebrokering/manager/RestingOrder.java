@@ -0,0 +1,170 @@
+package io.grimlock257.sccc.sharebrokering.manager;
+
+import io.grimlock257.sccc.sharebrokering.model.LimitOrder;
+import io.grimlock257.sccc.sharebrokering.model.LimitOrderStatus;
+import io.grimlock257.sccc.sharebrokering.model.OrderSide;
+
+/**
+ * RestingOrder
+ *
+ * A limit order held in an OrderBook until it is filled, cancelled or rejected. The limit price is kept as a whole number of millionths (ticks) so that price levels compare exactly
+ *
+ * @author Adam Watson
+ */
+public class RestingOrder {
+
+    public static final double PRICE_SCALE = 1000000d;
+
+    private final String orderId;
+    private final String guid;
+    private final OrderSide side;
+    private String stockSymbol;
+    private final long limitTicks;
+    private final double quantity;
+    private final long placed;
+
+    private double filledQuantity = 0;
+    private LimitOrderStatus status = LimitOrderStatus.OPEN;
+    private String reason = null;
+    private long updated;
+
+    /**
+     * Create an open limit order
+     *
+     * @param orderId The ID of the order
+     * @param guid The GUID of the user who placed the order
+     * @param side Whether the order buys or sells
+     * @param stockSymbol The symbol of the stock
+     * @param limitPrice The highest price to buy at or the lowest price to sell at, in the stock's currency
+     * @param quantity The amount of shares
+     */
+    public RestingOrder(String orderId, String guid, OrderSide side, String stockSymbol, double limitPrice, double quantity) {
+        this.orderId = orderId;
+        this.guid = guid;
+        this.side = side;
+        this.stockSymbol = stockSymbol;
+        this.limitTicks = toTicks(limitPrice);
+        this.quantity = quantity;
+        this.placed = System.currentTimeMillis();
+        this.updated = placed;
+    }
+
+    /**
+     * Convert a price to ticks
+     *
+     * @param price The price
+     * @return The price in millionths
+     */
+    public static long toTicks(double price) {
+        return Math.round(price * PRICE_SCALE);
+    }
+
+    public String getOrderId() {
+        return orderId;
+    }
+
+    public String getGuid() {
+        return guid;
+    }
+
+    public OrderSide getSide() {
+        return side;
+    }
+
+    public synchronized String getStockSymbol() {
+        return stockSymbol;
+    }
+
+    /**
+     * Move the order to a stock's new symbol, after the stock has been renamed
+     *
+     * @param newStockSymbol The new symbol
+     */
+    public synchronized void setStockSymbol(String newStockSymbol) {
+        stockSymbol = newStockSymbol;
+    }
+
+    public long getLimitTicks() {
+        return limitTicks;
+    }
+
+    /**
+     * Check whether the order can execute at a price: a buy at or below its limit, or a sell at or above it
+     *
+     * @param priceTicks The price in ticks
+     * @return Whether the price crosses the limit
+     */
+    public boolean isExecutableAt(long priceTicks) {
+        return (side == OrderSide.BUY) ? priceTicks <= limitTicks : priceTicks >= limitTicks;
+    }
+
+    /**
+     * Get the amount of shares still to be filled
+     *
+     * @return The remaining quantity
+     */
+    public synchronized double getRemainingQuantity() {
+        return quantity - filledQuantity;
+    }
+
+    public synchronized boolean isOpen() {
+        return status == LimitOrderStatus.OPEN;
+    }
+
+    /**
+     * Record a fill, completing the order once the whole quantity has been filled
+     *
+     * @param filled The amount of shares filled
+     */
+    public synchronized void fill(double filled) {
+        filledQuantity += filled;
+
+        if (filledQuantity >= quantity) {
+            filledQuantity = quantity;
+            status = LimitOrderStatus.FILLED;
+        }
+
+        updated = System.currentTimeMillis();
+    }
+
+    /**
+     * Undo a fill that could not be recorded in the trade journal, rejecting the order
+     *
+     * @param filled The amount of shares that had been filled
+     * @param closedReason Why the order was rejected
+     */
+    public synchronized void revertFill(double filled, String closedReason) {
+        filledQuantity = Math.max(0, filledQuantity - filled);
+        status = LimitOrderStatus.REJECTED;
+        reason = closedReason;
+        updated = System.currentTimeMillis();
+    }
+
+    /**
+     * Close an open order without filling the rest of it
+     *
+     * @param closedStatus CANCELLED or REJECTED
+     * @param closedReason Why the order was rejected, or null
+     * @return Whether the order was open
+     */
+    public synchronized boolean close(LimitOrderStatus closedStatus, String closedReason) {
+        if (status != LimitOrderStatus.OPEN) {
+            return false;
+        }
+
+        status = closedStatus;
+        reason = closedReason;
+        updated = System.currentTimeMillis();
+
+        return true;
+    }
+
+    /**
+     * Copy the order into the model returned to clients
+     *
+     * @return The limit order
+     */
+    public synchronized LimitOrder toModel() {
+        return new LimitOrder(orderId, side, stockSymbol, limitTicks / PRICE_SCALE, quantity, filledQuantity, status, reason, placed, updated);
+    }
+}
@@ -0,0 +1,226 @@
+package io.grimlock257.sccc.sharebrokering.manager;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import static io.grimlock257.sccc.sharebrokering.util.StringUtil.isNotNullOrEmpty;
+
+/**
+ * SearchResultCache
+ *
+ * Bounded, least recently used cache of searchShares results keyed by the normalised search criteria. Results are held as positions in the StockBook they were computed against, so a hit is
+ * read from the current book and always reflects a single version. Each result records the stock book versions it was computed against, and only the versions
+ * the search actually depends on: the structure always, prices only when filtering or sorting by price or currency, and available shares only when sorting by them. A result is treated as a miss
+ * as soon as one of its versions moves on, so results are invalidated precisely when a change could alter them
+ *
+ * @author Adam Watson
+ */
+public class SearchResultCache {
+
+    private static final int NOT_DEPENDED_ON = -1;
+
+    private final int capacity;
+
+    private final LinkedHashMap<Key, CachedResult> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+    private long evictions = 0;
+
+    /**
+     * Create a search result cache
+     *
+     * @param capacity The largest amount of results to hold
+     */
+    public SearchResultCache(int capacity) {
+        this.capacity = Math.max(1, capacity);
+
+        this.entries = new LinkedHashMap<Key, CachedResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedResult> eldest) {
+                if (size() > SearchResultCache.this.capacity) {
+                    evictions++;
+
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get a cached result if it is still valid for the provided versions
+     *
+     * @param key The normalised search criteria
+     * @param structureVersion The current structure version
+     * @param priceVersion The current price version
+     * @param sharesVersion The current available shares version
+     * @return The positions of the cached result, or null on a miss
+     */
+    public synchronized int[] get(Key key, long structureVersion, long priceVersion, long sharesVersion) {
+        CachedResult cached = entries.get(key);
+
+        if (cached == null) {
+            misses++;
+
+            return null;
+        }
+
+        if (!cached.isValid(structureVersion, priceVersion, sharesVersion)) {
+            entries.remove(key);
+
+            invalidations++;
+            misses++;
+
+            return null;
+        }
+
+        hits++;
+
+        return cached.results;
+    }
+
+    /**
+     * Cache a result computed against the provided versions
+     *
+     * @param key The normalised search criteria
+     * @param results The positions of the search result, which must not be modified afterwards
+     * @param structureVersion The structure version the result was computed against
+     * @param priceVersion The price version the result was computed against
+     * @param sharesVersion The available shares version the result was computed against
+     */
+    public synchronized void put(Key key, int[] results, long structureVersion, long priceVersion, long sharesVersion) {
+        entries.put(key, new CachedResult(results,
+                structureVersion,
+                key.dependsOnPrices() ? priceVersion : NOT_DEPENDED_ON,
+                key.dependsOnShares() ? sharesVersion : NOT_DEPENDED_ON));
+    }
+
+    /**
+     * Get a summary of the cache statistics, for logging
+     *
+     * @return The statistics as a string
+     */
+    public synchronized String getMetrics() {
+        return "size=" + entries.size()
+                + ", hits=" + hits
+                + ", misses=" + misses
+                + ", invalidations=" + invalidations
+                + ", evictions=" + evictions;
+    }
+
+    /**
+     * The normalised criteria of a search. Text criteria are lower cased, empty criteria are dropped, and the share price is ignored unless a recognised price filter is provided, so requests
+     * that searchShares treats the same share a key
+     */
+    public static class Key {
+
+        private final String stockName;
+        private final String stockSymbol;
+        private final String currency;
+        private final String sharePriceFilter;
+        private final double sharePrice;
+        private final StockSearchIndex.SortKey sortKey;
+        private final boolean descending;
+
+        /**
+         * Create a normalised key from the searchShares parameters
+         *
+         * @param stockName Text contained in the stock name
+         * @param stockSymbol Text contained in the stock symbol
+         * @param currency The currency of the share price
+         * @param sharePriceFilter How to compare the share price
+         * @param sharePrice The share price to compare against
+         * @param sortKey The column to sort by
+         * @param descending Whether to sort in descending order
+         */
+        public Key(String stockName, String stockSymbol, String currency, String sharePriceFilter, double sharePrice, StockSearchIndex.SortKey sortKey, boolean descending) {
+            this.stockName = isNotNullOrEmpty(stockName) ? stockName.toLowerCase() : null;
+            this.stockSymbol = isNotNullOrEmpty(stockSymbol) ? stockSymbol.toLowerCase() : null;
+            this.currency = isNotNullOrEmpty(currency) ? currency.toUpperCase(Locale.ROOT) : null;
+            this.sortKey = sortKey;
+            this.descending = descending;
+
+            String filter = isNotNullOrEmpty(sharePriceFilter) ? sharePriceFilter.toLowerCase(Locale.ROOT) : null;
+
+            if (sharePrice >= 0 && ("lessorequal".equals(filter) || "equal".equals(filter) || "greaterorequal".equals(filter))) {
+                this.sharePriceFilter = filter;
+                this.sharePrice = sharePrice;
+            } else {
+                this.sharePriceFilter = null;
+                this.sharePrice = 0;
+            }
+        }
+
+        /**
+         * Check whether the result depends on share prices or currencies
+         *
+         * @return True when filtering or sorting by price or currency
+         */
+        private boolean dependsOnPrices() {
+            return currency != null || sharePriceFilter != null || sortKey == StockSearchIndex.SortKey.SHARE_PRICE || sortKey == StockSearchIndex.SortKey.SHARE_CURRENCY;
+        }
+
+        /**
+         * Check whether the result depends on available shares
+         *
+         * @return True when sorting by available shares
+         */
+        private boolean dependsOnShares() {
+            return sortKey == StockSearchIndex.SortKey.AVAILABLE_SHARES;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+
+            if (!(other instanceof Key)) {
+                return false;
+            }
+
+            Key key = (Key) other;
+
+            return Double.compare(sharePrice, key.sharePrice) == 0
+                    && descending == key.descending
+                    && sortKey == key.sortKey
+                    && Objects.equals(stockName, key.stockName)
+                    && Objects.equals(stockSymbol, key.stockSymbol)
+                    && Objects.equals(currency, key.currency)
+                    && Objects.equals(sharePriceFilter, key.sharePriceFilter);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(stockName, stockSymbol, currency, sharePriceFilter, sharePrice, sortKey, descending);
+        }
+    }
+
+    /**
+     * A cached result and the versions it is valid for
+     */
+    private static class CachedResult {
+
+        private final int[] results;
+        private final long structureVersion;
+        private final long priceVersion;
+        private final long sharesVersion;
+
+        private CachedResult(int[] results, long structureVersion, long priceVersion, long sharesVersion) {
+            this.results = results;
+            this.structureVersion = structureVersion;
+            this.priceVersion = priceVersion;
+            this.sharesVersion = sharesVersion;
+        }
+
+        private boolean isValid(long currentStructureVersion, long currentPriceVersion, long currentSharesVersion) {
+            return structureVersion == currentStructureVersion
+                    && (priceVersion == NOT_DEPENDED_ON || priceVersion == currentPriceVersion)
+                    && (sharesVersion == NOT_DEPENDED_ON || sharesVersion == currentSharesVersion);
+        }
+    }
+}
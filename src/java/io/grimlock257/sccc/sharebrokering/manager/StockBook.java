@@ -0,0 +1,238 @@
+package io.grimlock257.sccc.sharebrokering.manager;
+
+import io.grimlock257.sccc.jaxb.binding.Stock;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * StockBook
+ *
+ * An immutable, versioned snapshot of the stock list, published by the StocksFileManager each time a trade, price refresh or structural change is applied. Readers take the current book and use
+ * it without locking, so every response is consistent with a single version no matter what is being changed meanwhile.
+ *
+ * The stocks are private copies held in fixed size chunks. Changing one stock only copies its chunk and the table of chunks, so consecutive books share everything else, along with the symbol
+ * index when the structure of the list hasn't changed
+ *
+ * @author Adam Watson
+ */
+public class StockBook {
+
+    private static final int CHUNK_BITS = 6;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final StockBook EMPTY = new StockBook(new Stock[0][], 0, Collections.emptyMap(), 0, 0, 0, 0);
+
+    private final Stock[][] chunks;
+    private final int size;
+    private final Map<String, Integer> positions;
+
+    private final long version;
+    private final long structureVersion;
+    private final long priceVersion;
+    private final long sharesVersion;
+
+    private final List<Stock> view = new StockList();
+
+    /**
+     * Create a book from its parts
+     *
+     * @param chunks The chunks of stock copies
+     * @param size The amount of stocks
+     * @param positions The position of each stock, keyed by normalised symbol
+     * @param version The version of the book
+     * @param structureVersion The version of the list structure
+     * @param priceVersion The version of the share prices
+     * @param sharesVersion The version of the available shares
+     */
+    private StockBook(Stock[][] chunks, int size, Map<String, Integer> positions, long version, long structureVersion, long priceVersion, long sharesVersion) {
+        this.chunks = chunks;
+        this.size = size;
+        this.positions = positions;
+        this.version = version;
+        this.structureVersion = structureVersion;
+        this.priceVersion = priceVersion;
+        this.sharesVersion = sharesVersion;
+    }
+
+    /**
+     * Get the empty book published before any stocks are loaded
+     *
+     * @return The empty book
+     */
+    static StockBook empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Create a book holding copies of every stock in the resident list, for use after a structural change. The caller must hold the stocks write lock, or otherwise be the only one changing
+     * the list
+     *
+     * @param stocksList The resident stock list
+     * @param previous The previously published book
+     * @return The new book
+     */
+    static StockBook of(List<Stock> stocksList, StockBook previous) {
+        int size = stocksList.size();
+        Stock[][] chunks = new Stock[(size + CHUNK_MASK) >>> CHUNK_BITS][];
+        Map<String, Integer> positions = new HashMap<>(size * 2);
+
+        for (int chunk = 0; chunk < chunks.length; chunk++) {
+            chunks[chunk] = new Stock[Math.min(CHUNK_SIZE, size - (chunk << CHUNK_BITS))];
+        }
+
+        for (int position = 0; position < size; position++) {
+            Stock stock = stocksList.get(position);
+
+            chunks[position >>> CHUNK_BITS][position & CHUNK_MASK] = copy(stock);
+            positions.put(normaliseSymbol(stock.getStockSymbol()), position);
+        }
+
+        return new StockBook(chunks, size, Collections.unmodifiableMap(positions), previous.version + 1, previous.structureVersion + 1, previous.priceVersion + 1, previous.sharesVersion + 1);
+    }
+
+    /**
+     * Create a book with a fresh copy of one changed stock, sharing everything else with this book. The caller must hold the lock for the stock
+     *
+     * @param stock The resident stock that has changed
+     * @param priceChanged Whether the stock's price has changed
+     * @param sharesChanged Whether the stock's available shares have changed
+     * @return The new book, or this book if the stock isn't part of it
+     */
+    StockBook withStock(Stock stock, boolean priceChanged, boolean sharesChanged) {
+        Integer position = positions.get(normaliseSymbol(stock.getStockSymbol()));
+
+        if (position == null) {
+            return this;
+        }
+
+        int chunk = position >>> CHUNK_BITS;
+
+        Stock[][] newChunks = chunks.clone();
+        newChunks[chunk] = chunks[chunk].clone();
+        newChunks[chunk][position & CHUNK_MASK] = copy(stock);
+
+        return new StockBook(newChunks, size, positions, version + 1, structureVersion,
+                priceChanged ? priceVersion + 1 : priceVersion,
+                sharesChanged ? sharesVersion + 1 : sharesVersion);
+    }
+
+    /**
+     * Get the stock at a position
+     *
+     * @param position The position, in stock name order
+     * @return The stock copy
+     */
+    public Stock get(int position) {
+        return chunks[position >>> CHUNK_BITS][position & CHUNK_MASK];
+    }
+
+    /**
+     * Look up a stock by symbol, regardless of case
+     *
+     * @param stockSymbol The symbol to look up
+     * @return The stock copy, or null if no stock has the symbol
+     */
+    public Stock getBySymbol(String stockSymbol) {
+        Integer position = (stockSymbol != null) ? positions.get(normaliseSymbol(stockSymbol)) : null;
+
+        return (position != null) ? get(position) : null;
+    }
+
+    /**
+     * Get the stocks as an unmodifiable list, in stock name order
+     *
+     * @return A read only view of the stocks
+     */
+    public List<Stock> getStocks() {
+        return view;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    long getStructureVersion() {
+        return structureVersion;
+    }
+
+    long getPriceVersion() {
+        return priceVersion;
+    }
+
+    long getSharesVersion() {
+        return sharesVersion;
+    }
+
+    /**
+     * Copy a resident stock. The SharePrice is shared rather than copied, as prices are always replaced with a new SharePrice rather than changed in place
+     *
+     * @param stock The resident stock
+     * @return The copy
+     */
+    private static Stock copy(Stock stock) {
+        Stock copy = new Stock();
+        copy.setStockName(stock.getStockName());
+        copy.setStockSymbol(stock.getStockSymbol());
+        copy.setAvailableShares(stock.getAvailableShares());
+        copy.setPrice(stock.getPrice());
+
+        return copy;
+    }
+
+    /**
+     * Normalise a stock symbol for use as a position key
+     *
+     * @param stockSymbol The stock symbol
+     * @return The upper case stock symbol
+     */
+    private static String normaliseSymbol(String stockSymbol) {
+        return stockSymbol.toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * Read only list view over the chunks
+     */
+    private class StockList extends AbstractList<Stock> implements RandomAccess {
+
+        @Override
+        public Stock get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+
+            return StockBook.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Object[] toArray() {
+            Object[] array = new Object[size];
+
+            for (int chunk = 0; chunk < chunks.length; chunk++) {
+                System.arraycopy(chunks[chunk], 0, array, chunk << CHUNK_BITS, chunks[chunk].length);
+            }
+
+            return array;
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(toArray());
+        }
+    }
+}
@@ -0,0 +1,1188 @@
+package io.grimlock257.sccc.sharebrokering.manager;
+
+import io.grimlock257.sccc.jaxb.binding.Stock;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static io.grimlock257.sccc.sharebrokering.util.StringUtil.isNotNullOrEmpty;
+
+/**
+ * StockSearchIndex
+ *
+ * Immutable secondary indexes over a published StockBook, used to serve searchShares. Results are positions in the book, which stay valid for every later book with the same structure. For each sortable column the index holds the positions of the stocks in sorted order, so sorted results
+ * are read straight from the index in either direction, and price filters become a binary searched range of the price ordering rather than a scan of every stock. Lower cased names and
+ * symbols are indexed by trigram, so substring searches only check the stocks that contain every trigram of the query.
+ *
+ * The indexes are split by what invalidates them: names and symbols only change with the structure of the list, prices and currencies with a price refresh, and available shares with a trade.
+ * When only one part is out of date, a new index is created that shares the unchanged parts with the old one. The sort orders of the price and available shares parts are only built once a
+ * search needs them, starting from the previous index's order, so a price tick or trade costs nothing until a search sorts or filters by the changed column and then only the changed stocks
+ * are moved
+ *
+ * @author Adam Watson
+ */
+public class StockSearchIndex {
+
+    /**
+     * The columns search results can be sorted by
+     */
+    public enum SortKey {
+        STOCK_NAME, STOCK_SYMBOL, SHARE_CURRENCY, SHARE_PRICE, AVAILABLE_SHARES;
+
+        /**
+         * Map a searchShares sortBy value to a sort key
+         *
+         * @param sortBy The sortBy value
+         * @return The matching sort key, defaulting to the stock symbol as searchShares always has
+         */
+        public static SortKey fromSortBy(String sortBy) {
+            switch (sortBy) {
+                case "stockName":
+                    return STOCK_NAME;
+                case "shareCurrency":
+                    return SHARE_CURRENCY;
+                case "sharePrice":
+                    return SHARE_PRICE;
+                case "availableShares":
+                    return AVAILABLE_SHARES;
+                default:
+                    return STOCK_SYMBOL;
+            }
+        }
+    }
+
+    // Below this fraction of the catalogue, candidates are sorted directly rather than walking the full sort order
+    private static final int SMALL_CANDIDATE_DIVISOR = 8;
+
+    private static final int NO_PRICE_FILTER = 0;
+    private static final int LESS_OR_EQUAL = 1;
+    private static final int EQUAL = 2;
+    private static final int GREATER_OR_EQUAL = 3;
+
+    private final int size;
+
+    private final Structure structure;
+    private final Prices prices;
+    private final Shares shares;
+
+    /**
+     * Create an index from its parts
+     *
+     * @param size The amount of stocks indexed
+     * @param structure The name and symbol indexes
+     * @param prices The price and currency indexes
+     * @param shares The available shares index
+     */
+    private StockSearchIndex(int size, Structure structure, Prices prices, Shares shares) {
+        this.size = size;
+        this.structure = structure;
+        this.prices = prices;
+        this.shares = shares;
+    }
+
+    /**
+     * Build a complete index over the stocks of a published StockBook. Positions in the index are positions in the book
+     *
+     * @param stocksList The stocks of the book
+     * @param structureVersion The structure version of the book
+     * @param priceVersion The price version of the book
+     * @param sharesVersion The available shares version of the book
+     * @return The new index
+     */
+    static StockSearchIndex build(List<Stock> stocksList, long structureVersion, long priceVersion, long sharesVersion) {
+        Structure structure = new Structure(stocksList, structureVersion);
+
+        return new StockSearchIndex(stocksList.size(), structure, new Prices(stocksList, structure, priceVersion, null), new Shares(stocksList, structure, sharesVersion, null));
+    }
+
+    /**
+     * Get an index reflecting the provided versions, rebuilding only the parts that are out of date. Books with the same structure version hold the same stocks at the same positions, so the
+     * remaining parts are rebuilt from the new book's stocks
+     *
+     * @param stocksList The stocks of the book
+     * @param structureVersion The structure version of the book
+     * @param priceVersion The price version of the book
+     * @param sharesVersion The available shares version of the book
+     * @return This index if it is up to date, otherwise a new index sharing any parts that are
+     */
+    StockSearchIndex refresh(List<Stock> stocksList, long structureVersion, long priceVersion, long sharesVersion) {
+        if (structure.version != structureVersion) {
+            return build(stocksList, structureVersion, priceVersion, sharesVersion);
+        }
+
+        if (isCurrent(structureVersion, priceVersion, sharesVersion)) {
+            return this;
+        }
+
+        Prices newPrices = (prices.version == priceVersion) ? prices : new Prices(stocksList, structure, priceVersion, prices);
+        Shares newShares = (shares.version == sharesVersion) ? shares : new Shares(stocksList, structure, sharesVersion, shares);
+
+        return new StockSearchIndex(size, structure, newPrices, newShares);
+    }
+
+    /**
+     * Check whether the index reflects the provided versions
+     *
+     * @param structureVersion The current structure version
+     * @param priceVersion The current price version
+     * @param sharesVersion The current available shares version
+     * @return True if no part of the index is out of date
+     */
+    boolean isCurrent(long structureVersion, long priceVersion, long sharesVersion) {
+        return structure.version == structureVersion && prices.version == priceVersion && shares.version == sharesVersion;
+    }
+
+    /**
+     * Check whether any part of the index reflects a later book than the provided versions
+     *
+     * @param structureVersion The structure version of a book
+     * @param priceVersion The price version of a book
+     * @param sharesVersion The available shares version of a book
+     * @return True if a later book than the one described has been published
+     */
+    boolean isNewerThan(long structureVersion, long priceVersion, long sharesVersion) {
+        return structure.version > structureVersion || prices.version > priceVersion || shares.version > sharesVersion;
+    }
+
+    /**
+     * Find the stocks matching the provided criteria, sorted by the provided column. Criteria that are null or empty are not applied, as with searchShares.
+     *
+     * The smallest available source of candidates is enumerated: the trigram index for name and symbol text, the price range for price filters, or otherwise every stock in the requested order.
+     * Every candidate is then checked against all of the criteria
+     *
+     * @param stockName Text contained in the stock name
+     * @param stockSymbol Text contained in the stock symbol
+     * @param currency The currency of the share price
+     * @param sharePriceFilter How to compare the share price: lessOrEqual, equal or greaterOrEqual
+     * @param sharePrice The share price to compare against, ignored when negative
+     * @param sortKey The column to sort by
+     * @param descending Whether to sort in descending order
+     * @return The positions of the matching stocks, in order
+     */
+    public int[] search(String stockName, String stockSymbol, String currency, String sharePriceFilter, double sharePrice, SortKey sortKey, boolean descending) {
+        Query query = new Query(stockName, stockSymbol, currency, sharePriceFilter, sharePrice);
+
+        int[] order = orderFor(sortKey);
+
+        int[] results;
+        int count = 0;
+
+        // Work out the range of the price ordering the price filter allows, which is everything when not filtering by price
+        int from = 0;
+        int to = size;
+
+        if (query.priceComparison == GREATER_OR_EQUAL || query.priceComparison == EQUAL) {
+            from = prices.lowerBound(query.sharePrice);
+        }
+
+        if (query.priceComparison == LESS_OR_EQUAL || query.priceComparison == EQUAL) {
+            to = prices.upperBound(query.sharePrice);
+        }
+
+        // Stocks whose names and symbols contain every trigram of the queried text, or null when there is no text long enough to use the trigram index
+        int[] textCandidates = null;
+
+        if (query.stockName != null) {
+            textCandidates = intersect(textCandidates, structure.nameTrigrams.candidates(query.stockName));
+        }
+
+        if (query.stockSymbol != null) {
+            textCandidates = intersect(textCandidates, structure.symbolTrigrams.candidates(query.stockSymbol));
+        }
+
+        if (textCandidates == null && sortKey == SortKey.SHARE_PRICE) {
+            // The price range is already in the requested order
+            int[] byPrice = prices.byPrice.order();
+
+            results = new int[to - from];
+
+            for (int i = from; i < to; i++) {
+                int position = byPrice[descending ? to - 1 - (i - from) : i];
+
+                if (matches(position, query)) {
+                    results[count++] = position;
+                }
+            }
+
+            return Arrays.copyOf(results, count);
+        }
+
+        boolean fromText = textCandidates != null && textCandidates.length <= to - from;
+        int candidateCount = fromText ? textCandidates.length : to - from;
+
+        if (candidateCount * SMALL_CANDIDATE_DIVISOR >= size) {
+            // Most stocks are candidates, so walk the requested order checking each one
+            results = new int[size];
+
+            for (int i = 0; i < order.length; i++) {
+                int position = order[descending ? order.length - 1 - i : i];
+
+                if (matches(position, query)) {
+                    results[count++] = position;
+                }
+            }
+
+            return Arrays.copyOf(results, count);
+        }
+
+        // Few stocks are candidates, so check just those and sort them by their rank in the requested order
+        int[] rank = rankFor(sortKey);
+        List<Integer> candidates = new ArrayList<>(candidateCount);
+
+        for (int i = 0; i < candidateCount; i++) {
+            int position = fromText ? textCandidates[i] : prices.byPrice.order()[from + i];
+
+            if (matches(position, query)) {
+                candidates.add(position);
+            }
+        }
+
+        candidates.sort(descending ? Comparator.comparingInt((Integer position) -> rank[position]).reversed() : Comparator.comparingInt(position -> rank[position]));
+
+        results = new int[candidates.size()];
+
+        for (int position : candidates) {
+            results[count++] = position;
+        }
+
+        return results;
+    }
+
+    /**
+     * Find a page of the stocks matching the provided criteria. Pages are ordered by the sort column and then by stock symbol, so that every stock has a unique place in the order, and the
+     * cursor records the sort value and symbol of the last stock returned. The next page carries on from that point in the order rather than from a count of stocks, so stocks added or removed
+     * in the meantime don't cause the following page to skip or repeat results
+     *
+     * @param stockName Text contained in the stock name
+     * @param stockSymbol Text contained in the stock symbol
+     * @param currency The currency of the share price
+     * @param sharePriceFilter How to compare the share price: lessOrEqual, equal or greaterOrEqual
+     * @param sharePrice The share price to compare against, ignored when negative
+     * @param sortKey The column to sort by
+     * @param descending Whether to sort in descending order
+     * @param cursor The cursor returned with the previous page, or null for the first page
+     * @param pageSize The largest amount of stocks to return
+     * @return The positions of the stocks on the page, and the cursor for the following page
+     * @throws IllegalArgumentException If the cursor is malformed or was issued for a different sort order
+     */
+    public Page searchPage(String stockName, String stockSymbol, String currency, String sharePriceFilter, double sharePrice, SortKey sortKey, boolean descending, String cursor, int pageSize) {
+        pageSize = Math.max(1, pageSize);
+
+        Query query = new Query(stockName, stockSymbol, currency, sharePriceFilter, sharePrice);
+        PageCursor after = isNotNullOrEmpty(cursor) ? PageCursor.decode(cursor, sortKey, descending) : null;
+
+        Comparator<Integer> pageComparator = (a, b) -> comparePage(sortKey, a, b);
+
+        if (descending) {
+            pageComparator = pageComparator.reversed();
+        }
+
+        List<Integer> page = new ArrayList<>(pageSize + 1);
+
+        int[] candidates = smallCandidates(query);
+
+        if (candidates != null) {
+            // Few stocks are candidates, so check just those and sort them into page order
+            for (int position : candidates) {
+                if (matches(position, query) && isAfter(sortKey, descending, position, after)) {
+                    page.add(position);
+                }
+            }
+
+            page.sort(pageComparator);
+        } else {
+            // Seek to the cursor in the page order and walk until the page is full. One extra stock is read to tell whether there is a following page
+            int[] order = pageOrderFor(sortKey);
+            int start = (after == null) ? 0 : seek(sortKey, descending, order, after);
+
+            for (int i = start; i < order.length && page.size() <= pageSize; i++) {
+                int position = order[descending ? order.length - 1 - i : i];
+
+                if (matches(position, query)) {
+                    page.add(position);
+                }
+            }
+        }
+
+        boolean hasMore = page.size() > pageSize;
+        int[] results = new int[Math.min(page.size(), pageSize)];
+
+        for (int i = 0; i < results.length; i++) {
+            results[i] = page.get(i);
+        }
+
+        String nextCursor = hasMore ? PageCursor.encode(sortKey, descending, sortValue(sortKey, page.get(pageSize - 1)), structure.symbols[page.get(pageSize - 1)]) : null;
+
+        return new Page(results, nextCursor);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the candidates from the trigram index or the price range when there are few enough of them to be worth checking on their own
+     *
+     * @param query The search criteria
+     * @return The candidate positions, or null if most stocks are candidates
+     */
+    private int[] smallCandidates(Query query) {
+        int[] textCandidates = null;
+
+        if (query.stockName != null) {
+            textCandidates = intersect(textCandidates, structure.nameTrigrams.candidates(query.stockName));
+        }
+
+        if (query.stockSymbol != null) {
+            textCandidates = intersect(textCandidates, structure.symbolTrigrams.candidates(query.stockSymbol));
+        }
+
+        if (textCandidates != null && textCandidates.length * SMALL_CANDIDATE_DIVISOR < size) {
+            return textCandidates;
+        }
+
+        int from = (query.priceComparison == GREATER_OR_EQUAL || query.priceComparison == EQUAL) ? prices.lowerBound(query.sharePrice) : 0;
+        int to = (query.priceComparison == LESS_OR_EQUAL || query.priceComparison == EQUAL) ? prices.upperBound(query.sharePrice) : size;
+
+        if ((to - from) * SMALL_CANDIDATE_DIVISOR < size) {
+            return Arrays.copyOfRange(prices.byPrice.order(), from, to);
+        }
+
+        return null;
+    }
+
+    /**
+     * Find where the page after a cursor starts when walking a page order in the requested direction
+     *
+     * @param sortKey The column being sorted by
+     * @param descending Whether the page order is walked from the end
+     * @param order The ascending page order
+     * @param after The cursor
+     * @return The amount of stocks in the walk that come at or before the cursor
+     */
+    private int seek(SortKey sortKey, boolean descending, int[] order, PageCursor after) {
+        // Find the first position in ascending order that comes after the cursor (ascending), or at or after it (descending)
+        int low = 0;
+        int high = order.length;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int comparison = compareToCursor(sortKey, order[mid], after);
+
+            if (comparison < 0 || (!descending && comparison == 0)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return descending ? order.length - low : low;
+    }
+
+    /**
+     * Check whether a stock comes after the cursor in the requested direction
+     *
+     * @param sortKey The column being sorted by
+     * @param descending Whether the order is descending
+     * @param position The position of the stock
+     * @param after The cursor, or null for the first page
+     * @return True if the stock belongs on or after the requested page
+     */
+    private boolean isAfter(SortKey sortKey, boolean descending, int position, PageCursor after) {
+        if (after == null) {
+            return true;
+        }
+
+        int comparison = compareToCursor(sortKey, position, after);
+
+        return descending ? comparison < 0 : comparison > 0;
+    }
+
+    /**
+     * Compare two stocks in ascending page order
+     *
+     * @param sortKey The column being sorted by
+     * @param a The position of the first stock
+     * @param b The position of the second stock
+     * @return The comparison of the sort values, then of the symbols
+     */
+    private int comparePage(SortKey sortKey, int a, int b) {
+        int comparison;
+
+        switch (sortKey) {
+            case STOCK_NAME:
+                comparison = structure.names[a].compareTo(structure.names[b]);
+                break;
+            case SHARE_CURRENCY:
+                comparison = prices.currencies[a].compareTo(prices.currencies[b]);
+                break;
+            case SHARE_PRICE:
+                comparison = Double.compare(prices.prices[a], prices.prices[b]);
+                break;
+            case AVAILABLE_SHARES:
+                comparison = Double.compare(shares.shares[a], shares.shares[b]);
+                break;
+            default:
+                comparison = 0;
+        }
+
+        return (comparison != 0) ? comparison : structure.symbols[a].compareTo(structure.symbols[b]);
+    }
+
+    /**
+     * Compare a stock with a cursor in ascending page order
+     *
+     * @param sortKey The column being sorted by
+     * @param position The position of the stock
+     * @param cursor The cursor
+     * @return The comparison of the sort values, then of the symbols
+     */
+    private int compareToCursor(SortKey sortKey, int position, PageCursor cursor) {
+        int comparison;
+
+        switch (sortKey) {
+            case STOCK_NAME:
+                comparison = structure.names[position].compareTo(cursor.value);
+                break;
+            case SHARE_CURRENCY:
+                comparison = prices.currencies[position].compareTo(cursor.value);
+                break;
+            case SHARE_PRICE:
+                comparison = Double.compare(prices.prices[position], Double.parseDouble(cursor.value));
+                break;
+            case AVAILABLE_SHARES:
+                comparison = Double.compare(shares.shares[position], Double.parseDouble(cursor.value));
+                break;
+            default:
+                comparison = 0;
+        }
+
+        return (comparison != 0) ? comparison : structure.symbols[position].compareTo(cursor.stockSymbol);
+    }
+
+    /**
+     * Get the sort value of a stock as recorded in a cursor
+     *
+     * @param sortKey The column being sorted by
+     * @param position The position of the stock
+     * @return The sort value as a string
+     */
+    private String sortValue(SortKey sortKey, int position) {
+        switch (sortKey) {
+            case STOCK_NAME:
+                return structure.names[position];
+            case SHARE_CURRENCY:
+                return prices.currencies[position];
+            case SHARE_PRICE:
+                return Double.toString(prices.prices[position]);
+            case AVAILABLE_SHARES:
+                return Double.toString(shares.shares[position]);
+            default:
+                return structure.symbols[position];
+        }
+    }
+
+    /**
+     * Get the positions of the stocks in page order for a column
+     *
+     * @param sortKey The column
+     * @return The positions in ascending order of the column, then of the symbol
+     */
+    private int[] pageOrderFor(SortKey sortKey) {
+        switch (sortKey) {
+            case STOCK_NAME:
+                return structure.byNamePage;
+            case SHARE_CURRENCY:
+                return prices.byCurrencyPage.order();
+            case SHARE_PRICE:
+                return prices.byPricePage.order();
+            case AVAILABLE_SHARES:
+                return shares.bySharesPage.order();
+            default:
+                // Symbols are unique, so the symbol order is already a page order
+                return structure.bySymbol;
+        }
+    }
+
+    /**
+     * Check every criteria against the stock at a position
+     *
+     * @param position The position of the stock
+     * @param query The search criteria
+     * @return Whether the stock matches
+     */
+    private boolean matches(int position, Query query) {
+        if (query.stockName != null && !structure.lowerNames[position].contains(query.stockName)) {
+            return false;
+        }
+
+        if (query.stockSymbol != null && !structure.lowerSymbols[position].contains(query.stockSymbol)) {
+            return false;
+        }
+
+        if (query.currency != null && !prices.currencies[position].equalsIgnoreCase(query.currency)) {
+            return false;
+        }
+
+        double price = prices.prices[position];
+
+        switch (query.priceComparison) {
+            case LESS_OR_EQUAL:
+                return price <= query.sharePrice;
+            case EQUAL:
+                return price == query.sharePrice;
+            case GREATER_OR_EQUAL:
+                return price >= query.sharePrice;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Intersect two ascending arrays of positions, where null stands for every position
+     *
+     * @param first The first positions, or null
+     * @param second The second positions, or null
+     * @return The positions in both
+     */
+    private static int[] intersect(int[] first, int[] second) {
+        if (first == null) {
+            return second;
+        }
+
+        if (second == null) {
+            return first;
+        }
+
+        int[] both = new int[Math.min(first.length, second.length)];
+        int count = 0;
+
+        for (int i = 0, j = 0; i < first.length && j < second.length;) {
+            if (first[i] < second[j]) {
+                i++;
+            } else if (first[i] > second[j]) {
+                j++;
+            } else {
+                both[count++] = first[i];
+                i++;
+                j++;
+            }
+        }
+
+        return Arrays.copyOf(both, count);
+    }
+
+    /**
+     * Get the positions of the stocks sorted by a column
+     *
+     * @param sortKey The column
+     * @return The positions in ascending order of the column
+     */
+    private int[] orderFor(SortKey sortKey) {
+        switch (sortKey) {
+            case STOCK_NAME:
+                return structure.byName;
+            case SHARE_CURRENCY:
+                return prices.byCurrency.order();
+            case SHARE_PRICE:
+                return prices.byPrice.order();
+            case AVAILABLE_SHARES:
+                return shares.byShares.order();
+            default:
+                return structure.bySymbol;
+        }
+    }
+
+    /**
+     * Get the rank of each stock when sorted by a column
+     *
+     * @param sortKey The column
+     * @return The rank of each position
+     */
+    private int[] rankFor(SortKey sortKey) {
+        switch (sortKey) {
+            case STOCK_NAME:
+                return structure.nameRank;
+            case SHARE_CURRENCY:
+                return prices.byCurrency.rank();
+            case SHARE_PRICE:
+                return prices.byPrice.rank();
+            case AVAILABLE_SHARES:
+                return shares.byShares.rank();
+            default:
+                return structure.symbolRank;
+        }
+    }
+
+    /**
+     * Sort the positions 0 to size - 1 by the provided comparator. Ties keep their resident list order, matching the stable sort searchShares previously used
+     *
+     * @param size The amount of positions
+     * @param comparator The comparator between positions
+     * @return The sorted positions
+     */
+    private static int[] sortPositions(int size, Comparator<Integer> comparator) {
+        Integer[] boxed = new Integer[size];
+
+        for (int i = 0; i < size; i++) {
+            boxed[i] = i;
+        }
+
+        Arrays.sort(boxed, comparator);
+
+        int[] sorted = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            sorted[i] = boxed[i];
+        }
+
+        return sorted;
+    }
+
+    /**
+     * Sort the positions 0 to size - 1 by the provided comparator, which must order every position uniquely, starting from a previous order of the same positions. The sort is adaptive, so
+     * when only a few positions have moved since the previous order it takes little more than a single pass
+     *
+     * @param size The amount of positions
+     * @param comparator The comparator between positions
+     * @param previous A previous order of the same positions, or null to start from the resident list order
+     * @return The sorted positions
+     */
+    private static int[] sortPositions(int size, Comparator<Integer> comparator, int[] previous) {
+        if (previous == null || previous.length != size) {
+            return sortPositions(size, comparator);
+        }
+
+        Integer[] boxed = new Integer[size];
+
+        for (int i = 0; i < size; i++) {
+            boxed[i] = previous[i];
+        }
+
+        Arrays.sort(boxed, comparator);
+
+        int[] sorted = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            sorted[i] = boxed[i];
+        }
+
+        return sorted;
+    }
+
+    /**
+     * Invert a sort order into the rank of each position
+     *
+     * @param order The sorted positions
+     * @return The rank of each position
+     */
+    private static int[] rankOf(int[] order) {
+        int[] rank = new int[order.length];
+
+        for (int i = 0; i < order.length; i++) {
+            rank[order[i]] = i;
+        }
+
+        return rank;
+    }
+
+    /**
+     * The name and symbol indexes, including their trigram indexes, which only change when stocks are added, removed, renamed or re-titled
+     */
+    private static class Structure {
+
+        private final long version;
+        private final String[] names;
+        private final String[] symbols;
+        private final String[] lowerNames;
+        private final String[] lowerSymbols;
+        private final TrigramIndex nameTrigrams;
+        private final TrigramIndex symbolTrigrams;
+        private final int[] byName;
+        private final int[] bySymbol;
+        private final int[] nameRank;
+        private final int[] symbolRank;
+        private final int[] byNamePage;
+
+        private Structure(List<Stock> stocks, long version) {
+            this.version = version;
+
+            int size = stocks.size();
+
+            names = new String[size];
+            symbols = new String[size];
+            lowerNames = new String[size];
+            lowerSymbols = new String[size];
+
+            // Lower case once here, using the same conversion as StringUtil.containsIgnoreCase, rather than for every stock on every search
+            for (int i = 0; i < size; i++) {
+                names[i] = stocks.get(i).getStockName();
+                symbols[i] = stocks.get(i).getStockSymbol();
+                lowerNames[i] = names[i].toLowerCase();
+                lowerSymbols[i] = symbols[i].toLowerCase();
+            }
+
+            nameTrigrams = new TrigramIndex(lowerNames);
+            symbolTrigrams = new TrigramIndex(lowerSymbols);
+
+            byName = sortPositions(size, Comparator.comparing(position -> names[position]));
+            bySymbol = sortPositions(size, Comparator.comparing(position -> symbols[position]));
+            nameRank = rankOf(byName);
+            symbolRank = rankOf(bySymbol);
+
+            byNamePage = sortPositions(size, Comparator.comparing((Integer position) -> names[position]).thenComparing(position -> symbols[position]));
+        }
+    }
+
+    /**
+     * Maps each three character sequence to the positions of the strings containing it. A string can only contain a query if it contains every trigram of the query, so intersecting the
+     * trigrams' positions narrows a substring search down to a few candidates, which are then checked in full
+     */
+    private static class TrigramIndex {
+
+        private final Map<Long, int[]> postings = new HashMap<>();
+
+        private TrigramIndex(String[] values) {
+            Map<Long, int[]> building = new HashMap<>();
+            Map<Long, Integer> sizes = new HashMap<>();
+
+            for (int position = 0; position < values.length; position++) {
+                String value = values[position];
+
+                for (int i = 0; i + 3 <= value.length(); i++) {
+                    Long trigram = trigram(value, i);
+                    int size = sizes.getOrDefault(trigram, 0);
+                    int[] positions = building.get(trigram);
+
+                    // Positions are added in ascending order, so a repeated trigram within the same string is always the last one added
+                    if (size > 0 && positions[size - 1] == position) {
+                        continue;
+                    }
+
+                    if (positions == null) {
+                        positions = new int[4];
+                    } else if (size == positions.length) {
+                        positions = Arrays.copyOf(positions, size * 2);
+                    }
+
+                    positions[size] = position;
+
+                    building.put(trigram, positions);
+                    sizes.put(trigram, size + 1);
+                }
+            }
+
+            for (Map.Entry<Long, int[]> entry : building.entrySet()) {
+                postings.put(entry.getKey(), Arrays.copyOf(entry.getValue(), sizes.get(entry.getKey())));
+            }
+        }
+
+        /**
+         * Find the positions of the strings that may contain the query
+         *
+         * @param query The lower case query
+         * @return The candidate positions in ascending order, or null if the query is too short to narrow down
+         */
+        private int[] candidates(String query) {
+            if (query.length() < 3) {
+                return null;
+            }
+
+            int[] candidates = null;
+
+            for (int i = 0; i + 3 <= query.length(); i++) {
+                int[] positions = postings.get(trigram(query, i));
+
+                if (positions == null) {
+                    return new int[0];
+                }
+
+                candidates = intersect(candidates, positions);
+
+                if (candidates.length == 0) {
+                    break;
+                }
+            }
+
+            return candidates;
+        }
+
+        /**
+         * Pack the three characters at an offset into a single key
+         *
+         * @param value The string
+         * @param offset The offset of the first character
+         * @return The trigram key
+         */
+        private static Long trigram(String value, int offset) {
+            return ((long) value.charAt(offset) << 32) | ((long) value.charAt(offset + 1) << 16) | value.charAt(offset + 2);
+        }
+    }
+
+    /**
+     * A page of search results, as positions in the book the index was built over
+     */
+    public static class Page {
+
+        private final int[] positions;
+        private final String nextCursor;
+
+        private Page(int[] positions, String nextCursor) {
+            this.positions = positions;
+            this.nextCursor = nextCursor;
+        }
+
+        public int[] getPositions() {
+            return positions;
+        }
+
+        /**
+         * Get the cursor for the following page
+         *
+         * @return The opaque cursor, or null if this is the last page
+         */
+        public String getNextCursor() {
+            return nextCursor;
+        }
+    }
+
+    /**
+     * The position of the last stock on a page, encoded as an opaque string for clients to hand back
+     */
+    private static class PageCursor {
+
+        private static final int FORMAT = 1;
+
+        private final String value;
+        private final String stockSymbol;
+
+        private PageCursor(String value, String stockSymbol) {
+            this.value = value;
+            this.stockSymbol = stockSymbol;
+        }
+
+        /**
+         * Encode a cursor
+         *
+         * @param sortKey The column the page was sorted by
+         * @param descending Whether the page was in descending order
+         * @param value The sort value of the last stock on the page
+         * @param stockSymbol The symbol of the last stock on the page
+         * @return The opaque cursor
+         */
+        private static String encode(SortKey sortKey, boolean descending, String value, String stockSymbol) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+            try (DataOutputStream output = new DataOutputStream(bytes)) {
+                output.writeByte(FORMAT);
+                output.writeUTF(sortKey.name());
+                output.writeBoolean(descending);
+                output.writeUTF(value);
+                output.writeUTF(stockSymbol);
+            } catch (IOException e) {
+                // Writing to memory can't fail
+                throw new IllegalStateException(e);
+            }
+
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+        }
+
+        /**
+         * Decode a cursor, checking it was issued for the same sort order
+         *
+         * @param cursor The opaque cursor
+         * @param sortKey The column being sorted by
+         * @param descending Whether the order is descending
+         * @return The decoded cursor
+         * @throws IllegalArgumentException If the cursor is malformed or belongs to a different sort order
+         */
+        private static PageCursor decode(String cursor, SortKey sortKey, boolean descending) {
+            try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(cursor)))) {
+                if (input.readByte() != FORMAT || !input.readUTF().equals(sortKey.name()) || input.readBoolean() != descending) {
+                    throw new IllegalArgumentException("Cursor does not belong to this sort order");
+                }
+
+                PageCursor decoded = new PageCursor(input.readUTF(), input.readUTF());
+
+                // Numeric sort values must parse, so comparisons can't fail part way through a search
+                if (sortKey == SortKey.SHARE_PRICE || sortKey == SortKey.AVAILABLE_SHARES) {
+                    Double.parseDouble(decoded.value);
+                }
+
+                return decoded;
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Malformed cursor", e);
+            }
+        }
+    }
+
+    /**
+     * The normalised criteria of a search
+     */
+    private static class Query {
+
+        private final String stockName;
+        private final String stockSymbol;
+        private final String currency;
+        private final int priceComparison;
+        private final double sharePrice;
+
+        private Query(String stockName, String stockSymbol, String currency, String sharePriceFilter, double sharePrice) {
+            this.stockName = isNotNullOrEmpty(stockName) ? stockName.toLowerCase() : null;
+            this.stockSymbol = isNotNullOrEmpty(stockSymbol) ? stockSymbol.toLowerCase() : null;
+            this.currency = isNotNullOrEmpty(currency) ? currency : null;
+            this.sharePrice = sharePrice;
+
+            if (!isNotNullOrEmpty(sharePriceFilter) || sharePrice < 0) {
+                priceComparison = NO_PRICE_FILTER;
+            } else if (sharePriceFilter.equalsIgnoreCase("lessOrEqual")) {
+                priceComparison = LESS_OR_EQUAL;
+            } else if (sharePriceFilter.equalsIgnoreCase("equal")) {
+                priceComparison = EQUAL;
+            } else if (sharePriceFilter.equalsIgnoreCase("greaterOrEqual")) {
+                priceComparison = GREATER_OR_EQUAL;
+            } else {
+                priceComparison = NO_PRICE_FILTER;
+            }
+        }
+    }
+
+    /**
+     * The price and currency indexes, which change with each price refresh. The values are copied straight away, while the sort orders are built on first use
+     */
+    private static class Prices {
+
+        private final long version;
+        private final String[] currencies;
+        private final double[] prices;
+        private final SortOrder byCurrency;
+        private final SortOrder byPrice;
+        private final SortOrder byCurrencyPage;
+        private final SortOrder byPricePage;
+
+        private volatile double[] sortedPrices = null;
+
+        /**
+         * Create the price indexes over a book
+         *
+         * @param stocks The stocks of the book
+         * @param structure The structure of the book
+         * @param version The price version of the book
+         * @param previous The price indexes of an earlier book with the same structure, whose orders the new orders start from, or null
+         */
+        private Prices(List<Stock> stocks, Structure structure, long version, Prices previous) {
+            this.version = version;
+
+            int size = stocks.size();
+
+            currencies = new String[size];
+            prices = new double[size];
+
+            for (int i = 0; i < size; i++) {
+                currencies[i] = stocks.get(i).getPrice().getCurrency();
+                prices[i] = stocks.get(i).getPrice().getPrice();
+            }
+
+            // Ties are broken by position, so the orders are the same whichever order they start from
+            byCurrency = new SortOrder(size, Comparator.comparing((Integer position) -> currencies[position]).thenComparingInt(position -> position),
+                    (previous != null) ? previous.byCurrency.orderOrPrevious() : null);
+            byPrice = new SortOrder(size, Comparator.comparingDouble((Integer position) -> prices[position]).thenComparingInt(position -> position),
+                    (previous != null) ? previous.byPrice.orderOrPrevious() : null);
+
+            byCurrencyPage = new SortOrder(size, Comparator.comparing((Integer position) -> currencies[position]).thenComparing(position -> structure.symbols[position]),
+                    (previous != null) ? previous.byCurrencyPage.orderOrPrevious() : null);
+            byPricePage = new SortOrder(size, Comparator.comparingDouble((Integer position) -> prices[position]).thenComparing(position -> structure.symbols[position]),
+                    (previous != null) ? previous.byPricePage.orderOrPrevious() : null);
+        }
+
+        /**
+         * Get the prices in ascending order, building them on first use
+         *
+         * @return The sorted prices
+         */
+        private double[] sortedPrices() {
+            double[] sorted = sortedPrices;
+
+            if (sorted == null) {
+                int[] order = byPrice.order();
+
+                sorted = new double[order.length];
+
+                for (int i = 0; i < order.length; i++) {
+                    sorted[i] = prices[order[i]];
+                }
+
+                sortedPrices = sorted;
+            }
+
+            return sorted;
+        }
+
+        /**
+         * Find the first index in the price order whose price is at least the provided price
+         *
+         * @param price The lowest price to include
+         * @return The first index in range
+         */
+        private int lowerBound(double price) {
+            double[] sortedPrices = sortedPrices();
+
+            int low = 0;
+            int high = sortedPrices.length;
+
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+
+                if (sortedPrices[mid] < price) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            return low;
+        }
+
+        /**
+         * Find the first index in the price order whose price is above the provided price
+         *
+         * @param price The highest price to include
+         * @return The index after the last one in range
+         */
+        private int upperBound(double price) {
+            double[] sortedPrices = sortedPrices();
+
+            int low = 0;
+            int high = sortedPrices.length;
+
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+
+                if (sortedPrices[mid] <= price) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            return low;
+        }
+    }
+
+    /**
+     * The available shares index, which changes with each trade. The values are copied straight away, while the sort orders are built on first use
+     */
+    private static class Shares {
+
+        private final long version;
+        private final double[] shares;
+        private final SortOrder byShares;
+        private final SortOrder bySharesPage;
+
+        /**
+         * Create the available shares indexes over a book
+         *
+         * @param stocks The stocks of the book
+         * @param structure The structure of the book
+         * @param version The available shares version of the book
+         * @param previous The available shares indexes of an earlier book with the same structure, whose orders the new orders start from, or null
+         */
+        private Shares(List<Stock> stocks, Structure structure, long version, Shares previous) {
+            this.version = version;
+
+            int size = stocks.size();
+
+            shares = new double[size];
+
+            for (int i = 0; i < size; i++) {
+                shares[i] = stocks.get(i).getAvailableShares();
+            }
+
+            // Ties are broken by position, so the order is the same whichever order it starts from
+            byShares = new SortOrder(size, Comparator.comparingDouble((Integer position) -> shares[position]).thenComparingInt(position -> position),
+                    (previous != null) ? previous.byShares.orderOrPrevious() : null);
+
+            bySharesPage = new SortOrder(size, Comparator.comparingDouble((Integer position) -> shares[position]).thenComparing(position -> structure.symbols[position]),
+                    (previous != null) ? previous.bySharesPage.orderOrPrevious() : null);
+        }
+    }
+
+    /**
+     * A sort order of the positions in an index, and the rank of each position in it, built the first time a search needs it. Concurrent searches may both build it, which gives the same
+     * result
+     */
+    private static class SortOrder {
+
+        private final int size;
+        private final Comparator<Integer> comparator;
+
+        // The order of an earlier index to start sorting from, dropped once the order is built
+        private int[] previous;
+
+        private volatile int[] order = null;
+        private volatile int[] rank = null;
+
+        private SortOrder(int size, Comparator<Integer> comparator, int[] previous) {
+            this.size = size;
+            this.comparator = comparator;
+            this.previous = previous;
+        }
+
+        /**
+         * Get the positions in order, sorting them on first use
+         *
+         * @return The sorted positions
+         */
+        private int[] order() {
+            int[] sorted = order;
+
+            if (sorted == null) {
+                synchronized (this) {
+                    sorted = order;
+
+                    if (sorted == null) {
+                        sorted = sortPositions(size, comparator, previous);
+
+                        order = sorted;
+                        previous = null;
+                    }
+                }
+            }
+
+            return sorted;
+        }
+
+        /**
+         * Get the rank of each position in the order, building it on first use
+         *
+         * @return The rank of each position
+         */
+        private int[] rank() {
+            int[] ranks = rank;
+
+            if (ranks == null) {
+                ranks = rankOf(order());
+                rank = ranks;
+            }
+
+            return ranks;
+        }
+
+        /**
+         * Get the order if it has been built, otherwise the order it would start from, for the next index to start from in turn
+         *
+         * @return The best known order, or null
+         */
+        private synchronized int[] orderOrPrevious() {
+            return (order != null) ? order : previous;
+        }
+    }
+}
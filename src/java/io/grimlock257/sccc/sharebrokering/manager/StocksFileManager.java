@@ -1,8 +1,25 @@
 package io.grimlock257.sccc.sharebrokering.manager;
 
+import io.grimlock257.sccc.jaxb.binding.Stock;
 import io.grimlock257.sccc.jaxb.binding.Stocks;
+import io.grimlock257.sccc.sharebrokering.model.StockPage;
+import io.grimlock257.sccc.sharebrokering.util.LockStripes;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import javax.xml.bind.JAXBContext;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
@@ -10,7 +27,11 @@ import javax.xml.bind.Unmarshaller;
 /**
  * StocksFileManager
  *
- * This class handles marshalling and unmarshalling of the stocks XML files
+ * This class holds the resident Stocks model, loaded once from the stocks XML file, and serialises it for the snapshots written by the PersistenceManager. Bursts of changes are coalesced so
+ * that only one marshal happens per snapshot. A symbol index is maintained alongside the stock list so that stocks can be looked up by symbol in constant time.
+ *
+ * Every change to the resident model is published as a new immutable StockBook. Reads are served from the current book without taking any lock, so they never wait behind a trade, price
+ * refresh or snapshot, and each read sees exactly one version of the stocks. Sorted search indexes are built over the books and kept up to date through the book's version counters
  *
  * @author Adam Watson
  */
@@ -18,10 +39,30 @@ public class StocksFileManager {
 
     private static StocksFileManager instance = null;
 
+    private static final int LOCK_STRIPES = 64;
+    private static final int DEFAULT_SEARCH_CACHE_SIZE = 256;
+
     private final String xmlFileLocation;
 
     private final Object fileLock = new Object();
 
+    private final ReentrantReadWriteLock stocksLock = new ReentrantReadWriteLock();
+
+    private final LockStripes stockLocks = new LockStripes(LOCK_STRIPES);
+
+    private final Map<String, Stock> symbolIndex = new HashMap<>();
+
+    private volatile Stocks stocks = null;
+    private volatile boolean loaded = false;
+
+    private final Object publishLock = new Object();
+    private final AtomicReference<StockBook> stockBook = new AtomicReference<>(StockBook.empty());
+
+    private final Object searchIndexLock = new Object();
+    private volatile StockSearchIndex searchIndex = null;
+
+    private final SearchResultCache searchResultCache = new SearchResultCache(Integer.getInteger("sharebrokering.searchCacheSize", DEFAULT_SEARCH_CACHE_SIZE));
+
     /**
      * JAXBFileManager constructor
      *
@@ -36,7 +77,7 @@ public class StocksFileManager {
      *
      * @return The instance of the StocksFileManager
      */
-    public static StocksFileManager getInstance() {
+    public static synchronized StocksFileManager getInstance() {
 
         if (instance == null) {
             instance = new StocksFileManager();
@@ -46,35 +87,464 @@ public class StocksFileManager {
     }
 
     /**
-     * Marshal the provided Stocks object to the local XML file
+     * Get the lock that must be held for reading while accessing the resident Stocks model. Changes to a single Stock may be made under the read lock as long as the lock for that Stock is also
+     * held, see getStockLock
+     *
+     * @return The read lock for the resident Stocks model
+     */
+    public Lock readLock() {
+        return stocksLock.readLock();
+    }
+
+    /**
+     * Get the lock that must be held for writing while adding, removing or re-keying Stocks in the resident Stocks model
+     *
+     * @return The write lock for the resident Stocks model
+     */
+    public Lock writeLock() {
+        return stocksLock.writeLock();
+    }
+
+    /**
+     * Get the lock guarding changes to the Stock with the provided stock symbol. It must be taken while holding the read lock. When stock locks are combined with locks from the other file
+     * manager, stock locks are always taken before user locks
+     *
+     * @param stockSymbol The stock symbol
+     * @return The lock for the Stock
+     */
+    public Lock getStockLock(String stockSymbol) {
+        return stockLocks.getLock(stockSymbol);
+    }
+
+    /**
+     * Lock the Stocks with the provided stock symbols in a deterministic order. It must be called while holding the read lock
+     *
+     * @param stockSymbols The stock symbols to lock
+     * @return The acquired locks, to be released through LockStripes.unlockAll
+     */
+    public List<Lock> lockStocks(Collection<String> stockSymbols) {
+        return stockLocks.lockAll(stockSymbols);
+    }
+
+    /**
+     * Get the resident Stocks model, loading it from the XML file on first access
+     *
+     * @return The resident Stocks object, or null if no stocks file could be loaded
+     */
+    public Stocks getStocks() {
+        if (!loaded) {
+            synchronized (fileLock) {
+                if (!loaded) {
+                    stocks = unmarshal();
+                    rebuildSymbolIndex();
+                    loaded = true;
+                }
+            }
+        }
+
+        return stocks;
+    }
+
+    /**
+     * Replace the resident Stocks model and schedule it to be written to the XML file
+     *
+     * @param stocks The new Stocks object
+     */
+    public void setStocks(Stocks stocks) {
+        stocksLock.writeLock().lock();
+
+        try {
+            this.stocks = stocks;
+            this.loaded = true;
+
+            rebuildSymbolIndex();
+
+            scheduleFlush();
+        } finally {
+            stocksLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Look up the Stock with the provided symbol, regardless of case. The caller must hold the read or write lock
+     *
+     * @param stockSymbol The symbol to look up
+     * @return The matching Stock, or null if no stock has the symbol
+     */
+    public Stock getStockBySymbol(String stockSymbol) {
+        if (stockSymbol == null || getStocks() == null) {
+            return null;
+        }
+
+        return symbolIndex.get(normaliseSymbol(stockSymbol));
+    }
+
+    /**
+     * Add a Stock to the resident model, keeping the list ordered by stock name. The caller must hold the write lock
+     *
+     * @param stock The Stock to add
+     * @return Whether the stock was added, false if a stock with the same symbol already exists
+     */
+    public boolean addStock(Stock stock) {
+        String key = normaliseSymbol(stock.getStockSymbol());
+
+        if (getStocks() == null || symbolIndex.containsKey(key)) {
+            return false;
+        }
+
+        List<Stock> stocksList = getStocks().getStocks();
+
+        stocksList.add(stock);
+        stocksList.sort(Comparator.comparing(Stock::getStockName));
+
+        symbolIndex.put(key, stock);
+
+        publishStructure();
+
+        return true;
+    }
+
+    /**
+     * Remove the Stock with the provided symbol from the resident model. The caller must hold the write lock
+     *
+     * @param stockSymbol The symbol of the stock to remove
+     * @return The removed Stock, or null if no stock has the symbol
+     */
+    public Stock removeStock(String stockSymbol) {
+        if (getStocks() == null) {
+            return null;
+        }
+
+        Stock stock = symbolIndex.remove(normaliseSymbol(stockSymbol));
+
+        if (stock != null) {
+            stocks.getStocks().remove(stock);
+
+            publishStructure();
+        }
+
+        return stock;
+    }
+
+    /**
+     * Change the symbol of a Stock in the resident model. The caller must hold the write lock
+     *
+     * @param stock The Stock to rename
+     * @param newStockSymbol The new symbol
+     * @return Whether the stock was renamed, false if another stock already has the new symbol
+     */
+    public boolean renameStock(Stock stock, String newStockSymbol) {
+        String newKey = normaliseSymbol(newStockSymbol);
+        Stock existing = symbolIndex.get(newKey);
+
+        if (existing != null && existing != stock) {
+            return false;
+        }
+
+        symbolIndex.remove(normaliseSymbol(stock.getStockSymbol()));
+        stock.setStockSymbol(newStockSymbol);
+        symbolIndex.put(newKey, stock);
+
+        publishStructure();
+
+        return true;
+    }
+
+    /**
+     * Record that a stock has been re-titled, publishing a new book and rebuilding the name index. The caller must hold the write lock
+     */
+    public void markStructureChanged() {
+        publishStructure();
+    }
+
+    /**
+     * Record that the price of a stock has changed, publishing a new book with the stock's new price. The caller must hold the lock for the stock
+     *
+     * @param stock The resident stock whose price has changed
+     */
+    public void markPricesChanged(Stock stock) {
+        publishStock(stock, true, false);
+    }
+
+    /**
+     * Record that the available shares of a stock have changed, publishing a new book with the stock's new available shares. The caller must hold the lock for the stock
+     *
+     * @param stock The resident stock whose available shares have changed
+     */
+    public void markSharesChanged(Stock stock) {
+        publishStock(stock, false, true);
+    }
+
+    /**
+     * Get the most recently published StockBook. No lock is needed, and the book never changes once it has been published
+     *
+     * @return The current book, which is empty if there is no resident model
+     */
+    public StockBook getStockBook() {
+        getStocks();
+
+        return stockBook.get();
+    }
+
+    /**
+     * Search the current book, returning a cached result when the same search has been made since the last change that could affect it. No lock is needed
+     *
+     * @param stockName Text contained in the stock name
+     * @param stockSymbol Text contained in the stock symbol
+     * @param currency The currency of the share price
+     * @param sharePriceFilter How to compare the share price: lessOrEqual, equal or greaterOrEqual
+     * @param sharePrice The share price to compare against, ignored when negative
+     * @param sortKey The column to sort by
+     * @param descending Whether to sort in descending order
+     * @return The matching stocks, all taken from the same book
+     */
+    public List<Stock> searchStocks(String stockName, String stockSymbol, String currency, String sharePriceFilter, double sharePrice, StockSearchIndex.SortKey sortKey, boolean descending) {
+        SearchResultCache.Key key = new SearchResultCache.Key(stockName, stockSymbol, currency, sharePriceFilter, sharePrice, sortKey, descending);
+
+        StockBook book;
+        StockSearchIndex index = null;
+
+        int[] positions;
+
+        do {
+            book = getStockBook();
+            positions = searchResultCache.get(key, book.getStructureVersion(), book.getPriceVersion(), book.getSharesVersion());
+
+            if (positions == null) {
+                index = getSearchIndex(book);
+            }
+        } while (positions == null && index == null);
+
+        if (positions == null) {
+            positions = index.search(stockName, stockSymbol, currency, sharePriceFilter, sharePrice, sortKey, descending);
+
+            searchResultCache.put(key, positions, book.getStructureVersion(), book.getPriceVersion(), book.getSharesVersion());
+        }
+
+        return stocksAt(book, positions);
+    }
+
+    /**
+     * Find a page of the stocks in the current book matching the provided criteria. No lock is needed
+     *
+     * @param stockName Text contained in the stock name
+     * @param stockSymbol Text contained in the stock symbol
+     * @param currency The currency of the share price
+     * @param sharePriceFilter How to compare the share price: lessOrEqual, equal or greaterOrEqual
+     * @param sharePrice The share price to compare against, ignored when negative
+     * @param sortKey The column to sort by
+     * @param descending Whether to sort in descending order
+     * @param cursor The cursor returned with the previous page, or null for the first page
+     * @param pageSize The largest amount of stocks to return
+     * @return The page of matching stocks, the cursor for the following page and the version of the book the page was read from
+     * @throws IllegalArgumentException If the cursor is malformed or was issued for a different sort order
+     */
+    public StockPage searchStocksPage(String stockName, String stockSymbol, String currency, String sharePriceFilter, double sharePrice, StockSearchIndex.SortKey sortKey, boolean descending, String cursor, int pageSize) {
+        StockBook book;
+        StockSearchIndex index;
+
+        do {
+            book = getStockBook();
+            index = getSearchIndex(book);
+        } while (index == null);
+
+        StockSearchIndex.Page page = index.searchPage(stockName, stockSymbol, currency, sharePriceFilter, sharePrice, sortKey, descending, cursor, pageSize);
+
+        return new StockPage(stocksAt(book, page.getPositions()), page.getNextCursor(), book.getVersion());
+    }
+
+    /**
+     * Get a summary of the search result cache statistics, for logging
+     *
+     * @return The statistics as a string
+     */
+    public String getSearchCacheMetrics() {
+        return searchResultCache.getMetrics();
+    }
+
+    /**
+     * Mark the resident Stocks model as modified and schedule a snapshot of it to be written to the XML file
+     */
+    public void scheduleFlush() {
+        PersistenceManager.getInstance().scheduleSnapshot();
+    }
+
+    /**
+     * Serialise the resident Stocks model for a snapshot. The caller must hold the write lock
+     *
+     * @return The marshaled XML, or null if there is no model or the marshal failed
+     */
+    byte[] serialize() {
+        if (stocks == null) {
+            return null;
+        }
+
+        return marshal(stocks);
+    }
+
+    /**
+     * Rebuild the symbol index from the resident stock list, and publish a book holding the new list
+     */
+    private void rebuildSymbolIndex() {
+        symbolIndex.clear();
+
+        if (stocks != null) {
+            for (Stock stock : stocks.getStocks()) {
+                symbolIndex.put(normaliseSymbol(stock.getStockSymbol()), stock);
+            }
+        }
+
+        publishStructure();
+    }
+
+    /**
+     * Publish a book holding a fresh copy of the whole resident stock list. The caller must hold the write lock, or be loading the model
+     */
+    private void publishStructure() {
+        synchronized (publishLock) {
+            stockBook.set(StockBook.of((stocks != null) ? stocks.getStocks() : new ArrayList<>(), stockBook.get()));
+        }
+    }
+
+    /**
+     * Publish a book with a fresh copy of one changed stock. Stocks that are no longer part of the resident model, such as one removed while its price was being retrieved, are ignored
+     *
+     * @param stock The resident stock that has changed
+     * @param priceChanged Whether the stock's price has changed
+     * @param sharesChanged Whether the stock's available shares have changed
+     */
+    private void publishStock(Stock stock, boolean priceChanged, boolean sharesChanged) {
+        if (symbolIndex.get(normaliseSymbol(stock.getStockSymbol())) != stock) {
+            return;
+        }
+
+        // Changes to different stocks are published one at a time, so no change is lost between reading the current book and replacing it
+        synchronized (publishLock) {
+            stockBook.set(stockBook.get().withStock(stock, priceChanged, sharesChanged));
+        }
+    }
+
+    /**
+     * Get the search index over a book, rebuilding whichever parts of the latest index are out of date
+     *
+     * @param book The book to search
+     * @return The search index, or null if a later book has already been indexed and the caller should search that instead
+     */
+    private StockSearchIndex getSearchIndex(StockBook book) {
+        StockSearchIndex index = searchIndex;
+
+        if (index != null && index.isCurrent(book.getStructureVersion(), book.getPriceVersion(), book.getSharesVersion())) {
+            return index;
+        }
+
+        synchronized (searchIndexLock) {
+            index = searchIndex;
+
+            if (index == null) {
+                index = StockSearchIndex.build(book.getStocks(), book.getStructureVersion(), book.getPriceVersion(), book.getSharesVersion());
+            } else if (index.isNewerThan(book.getStructureVersion(), book.getPriceVersion(), book.getSharesVersion())) {
+                return null;
+            } else {
+                index = index.refresh(book.getStocks(), book.getStructureVersion(), book.getPriceVersion(), book.getSharesVersion());
+            }
+
+            searchIndex = index;
+        }
+
+        return index;
+    }
+
+    /**
+     * Read the stocks at the provided positions of a book
+     *
+     * @param book The book
+     * @param positions The positions to read
+     * @return The stocks, in the order of the positions
+     */
+    private static List<Stock> stocksAt(StockBook book, int[] positions) {
+        List<Stock> results = new ArrayList<>(positions.length);
+
+        for (int position : positions) {
+            results.add(book.get(position));
+        }
+
+        return results;
+    }
+
+    /**
+     * Normalise a stock symbol for use as a symbol index key
+     *
+     * @param stockSymbol The stock symbol
+     * @return The upper case stock symbol
+     */
+    private static String normaliseSymbol(String stockSymbol) {
+        return stockSymbol.toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * Marshal the provided Stocks object to an in memory XML document
      *
      * @param stocks The Stocks object to be marshaled
-     * @return Whether the marshal was successful or not
+     * @return The marshaled XML, or null if the marshal failed
      */
-    public Boolean marshal(Stocks stocks) {
+    private byte[] marshal(Stocks stocks) {
 
         try {
 
-            JAXBContext jaxbContext = JAXBContext.newInstance(Stocks.class.getPackage().getName());
+            JAXBPool jaxbPool = JAXBPool.forPackage(Stocks.class.getPackage().getName());
 
-            Marshaller marshaller = jaxbContext.createMarshaller();
-            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-            marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+            Marshaller marshaller = jaxbPool.borrowMarshaller();
 
-            // Apply a file lock at this point so that when the file is being marshaled, no other
-            // file operations can happen at the same time
-            synchronized (fileLock) {
-                // Create the folder if it doesn't already exist
-                File file = new File(xmlFileLocation);
-                file.getParentFile().mkdirs();
+            try {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+                marshaller.marshal(stocks, outputStream);
 
-                marshaller.marshal(stocks, new File(xmlFileLocation));
+                return outputStream.toByteArray();
+            } finally {
+                jaxbPool.returnMarshaller(marshaller);
             }
         } catch (JAXBException e) {
 
-            System.err.println("[ERROR] Could not create JAXBContext instance: " + e.getMessage());
+            System.err.println("[ERROR] Could not marshal stocks: " + e.getMessage());
 
-            return false;
+            return null;
+        }
+    }
+
+    /**
+     * Write a serialised snapshot to the local XML file. The snapshot is written to a temporary file and forced to disk before replacing the XML file, so a crash never leaves a partial file
+     *
+     * @param xml The marshaled XML document
+     * @return Whether the write was successful or not
+     */
+    boolean writeSnapshot(byte[] xml) {
+
+        // Apply a file lock at this point so that when the file is being written, no other
+        // file operations can happen at the same time
+        synchronized (fileLock) {
+            // Create the folder if it doesn't already exist
+            File file = new File(xmlFileLocation);
+            file.getParentFile().mkdirs();
+
+            File tempFile = new File(xmlFileLocation + ".tmp");
+
+            try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+                outputStream.write(xml);
+                outputStream.getFD().sync();
+            } catch (IOException e) {
+                System.err.println("[ERROR] Could not write stocks file: " + e.getMessage());
+
+                return false;
+            }
+
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("[ERROR] Could not replace stocks file: " + e.getMessage());
+
+                return false;
+            }
         }
 
         return true;
@@ -85,25 +555,29 @@ public class StocksFileManager {
      *
      * @return The unmarshalled Stocks object
      */
-    public Stocks unmarshal() {
+    private Stocks unmarshal() {
 
         try {
 
-            JAXBContext jaxbContext = JAXBContext.newInstance(Stocks.class.getPackage().getName());
+            JAXBPool jaxbPool = JAXBPool.forPackage(Stocks.class.getPackage().getName());
 
-            Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
+            Unmarshaller unmarshaller = jaxbPool.borrowUnmarshaller();
 
             Stocks stocks;
 
             // Apply a file lock at this point so that when the file is being unmarshalled, no other
             // file operations can happen at the same time
-            synchronized (fileLock) {
-                stocks = (Stocks) unmarshaller.unmarshal(new File(xmlFileLocation));
+            try {
+                synchronized (fileLock) {
+                    stocks = (Stocks) unmarshaller.unmarshal(new File(xmlFileLocation));
+                }
+            } finally {
+                jaxbPool.returnUnmarshaller(unmarshaller);
             }
 
             return stocks;
         } catch (JAXBException e) {
-            System.err.println("[ERROR] Could not create JAXBContext instance: " + e.getMessage());
+            System.err.println("[ERROR] Could not unmarshal stocks: " + e.getMessage());
         }
 
         return null;
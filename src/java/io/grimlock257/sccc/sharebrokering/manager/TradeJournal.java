@@ -0,0 +1,621 @@
+package io.grimlock257.sccc.sharebrokering.manager;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TradeJournal
+ *
+ * Append-only, line oriented journal of trades and fund movements. Appends are handed to a single writer thread, which writes everything queued since its last write in one go and then forces
+ * it to disk once, so concurrent callers share a single fsync (group commit). The writer can optionally hold a batch open for a short commit window, or until it reaches a maximum size,
+ * trading a little latency for fewer, larger writes under heavy load. The journal is split into numbered segment files; a snapshot of the XML files rotates to a new segment so that
+ * segments fully covered by the snapshot can be deleted.
+ *
+ * Once a commit has failed the journal refuses every later entry. Changes still in flight may build on the ones that were lost, so nothing further can safely be made durable until the service
+ * is restarted and recovers from the last snapshot and the journal
+ *
+ * @author Adam Watson
+ */
+public class TradeJournal {
+
+    private static TradeJournal instance = null;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final long DEFAULT_COMMIT_WINDOW_MICROS = 0;
+    private static final int DEFAULT_MAX_BATCH_SIZE = 512;
+
+    private final File journalDirectory;
+
+    private final LinkedBlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+
+    private final AtomicLong appendCount = new AtomicLong();
+
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong committedEntries = new AtomicLong();
+    private final AtomicLong largestCommit = new AtomicLong();
+    private final AtomicLong commitNanos = new AtomicLong();
+
+    private volatile long commitWindowNanos;
+    private volatile int maxBatchSize;
+
+    private Thread writerThread = null;
+    private volatile boolean running = false;
+    private volatile boolean failed = false;
+    private boolean closed = false;
+
+    private FileChannel channel = null;
+    private long segment = 0;
+    private long committedSize = 0;
+
+    /**
+     * TradeJournal constructor
+     *
+     * Private to enforce singleton behaviour
+     */
+    private TradeJournal() {
+        journalDirectory = new File("./sharesBrokering/journal");
+
+        setCommitWindowMicros(Long.getLong("sharebrokering.journal.commitWindowMicros", DEFAULT_COMMIT_WINDOW_MICROS));
+        setMaxBatchSize(Integer.getInteger("sharebrokering.journal.maxBatchSize", DEFAULT_MAX_BATCH_SIZE));
+    }
+
+    /**
+     * Get the instance of the TradeJournal singleton
+     *
+     * @return The instance of the TradeJournal
+     */
+    public static synchronized TradeJournal getInstance() {
+
+        if (instance == null) {
+            instance = new TradeJournal();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Set how long (in microseconds) the writer keeps a batch open for further entries after the first one arrives. 0 writes whatever is queued straight away, which gives the lowest
+     * latency while still sharing a write between callers that queued at the same time
+     *
+     * @param commitWindowMicros The commit window in microseconds
+     */
+    public void setCommitWindowMicros(long commitWindowMicros) {
+        this.commitWindowNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, commitWindowMicros));
+    }
+
+    /**
+     * Set the largest amount of entries written by a single commit. A batch that reaches this size is written without waiting for the rest of the commit window
+     *
+     * @param maxBatchSize The maximum batch size
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    /**
+     * Read every entry from the existing journal segments, oldest first. Must be called before the journal is opened for appending. Only the final line of a segment can have been torn by a
+     * crash, so a malformed line anywhere else is reported and skipped without losing the entries after it
+     *
+     * @return The journal entries to replay on top of the last snapshot
+     */
+    public List<JournalEntry> readAll() {
+        List<JournalEntry> entries = new ArrayList<>();
+
+        for (long existing : listSegments()) {
+            File file = segmentFile(existing);
+
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line = reader.readLine();
+                int lineNumber = 0;
+
+                while (line != null) {
+                    String next = reader.readLine();
+
+                    lineNumber++;
+
+                    JournalEntry entry = JournalEntry.fromLine(line);
+
+                    if (entry != null) {
+                        entries.add(entry);
+                    } else if (next == null) {
+                        System.err.println("[ShareBrokering JAX-WS] Ignoring incomplete journal entry at the end of " + file.getName());
+                    } else {
+                        System.err.println("[ShareBrokering JAX-WS] Skipping malformed journal entry on line " + lineNumber + " of " + file.getName());
+                    }
+
+                    line = next;
+                }
+            } catch (IOException e) {
+                System.err.println("[ShareBrokering JAX-WS] Could not read journal segment " + file.getName() + ": " + e.getMessage());
+            }
+        }
+
+        return entries;
+    }
+
+    /**
+     * Open a new segment after any existing ones and start the writer thread, if not already open
+     *
+     * @return Whether the journal is open
+     */
+    public synchronized boolean open() {
+        if (running) {
+            return true;
+        }
+
+        if (closed) {
+            return false;
+        }
+
+        journalDirectory.mkdirs();
+
+        long[] segments = listSegments();
+
+        try {
+            openSegment(segments.length == 0 ? 1 : segments[segments.length - 1] + 1);
+        } catch (IOException e) {
+            System.err.println("[ShareBrokering JAX-WS] Could not open trade journal: " + e.getMessage());
+
+            return false;
+        }
+
+        running = true;
+
+        writerThread = new Thread(this::writeLoop, "TradeJournal-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        return true;
+    }
+
+    /**
+     * Queue an entry to be appended to the journal. Callers should queue the entry while still holding the locks that ordered the change it records, and wait for the returned future only
+     * once those locks have been released. Changes that are only applied once durable (registrations and administrators' stock changes) wait while holding their write lock instead
+     *
+     * @param entry The entry to append
+     * @return A future completing with whether the entry was durably written
+     */
+    public CompletableFuture<Boolean> append(JournalEntry entry) {
+        return appendAll(Collections.singletonList(entry));
+    }
+
+    /**
+     * Queue several entries to be appended to the journal together. They are written consecutively and forced to disk in the same commit, so either all of them are durable or none of them
+     * are reported as such
+     *
+     * @param entries The entries to append, in order
+     * @return A future completing with whether the entries were durably written
+     */
+    public CompletableFuture<Boolean> appendAll(List<JournalEntry> entries) {
+        PendingWrite write = new PendingWrite(new ArrayList<>(entries));
+
+        if (entries.isEmpty()) {
+            write.written.complete(true);
+
+            return write.written;
+        }
+
+        // Queue under the monitor so that nothing can be queued after close has stopped the writer
+        synchronized (this) {
+            if (failed || !open()) {
+                write.written.complete(false);
+
+                return write.written;
+            }
+
+            queue.add(write);
+        }
+
+        appendCount.addAndGet(entries.size());
+
+        return write.written;
+    }
+
+    /**
+     * Queue a switch to a new segment. Every entry appended before this call is written to the old segment, and every entry appended afterwards goes to the new one
+     *
+     * @return A future completing with the number of the new segment, or -1 if the rotation failed or the journal has failed
+     */
+    public CompletableFuture<Long> rotate() {
+        PendingWrite write = new PendingWrite(null);
+
+        synchronized (this) {
+            if (failed || !open()) {
+                write.rotated.complete(-1L);
+
+                return write.rotated;
+            }
+
+            queue.add(write);
+        }
+
+        return write.rotated;
+    }
+
+    /**
+     * Delete every segment numbered lower than the provided segment, as these are fully covered by a snapshot
+     *
+     * @param firstRetained The number of the oldest segment to keep
+     */
+    public void deleteSegmentsBefore(long firstRetained) {
+        for (long existing : listSegments()) {
+            if (existing < firstRetained && !segmentFile(existing).delete()) {
+                System.err.println("[ShareBrokering JAX-WS] Could not delete journal segment " + existing);
+            }
+        }
+    }
+
+    /**
+     * Stop the writer thread once every queued entry has been written, and close the current segment
+     */
+    public void close() {
+        Thread thread;
+
+        synchronized (this) {
+            closed = true;
+
+            if (!running) {
+                return;
+            }
+
+            running = false;
+            thread = writerThread;
+        }
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Check whether a commit has failed, after which no further entries are accepted and the resident models may hold changes that were never made durable
+     *
+     * @return Whether the journal has failed
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Get the amount of entries appended since the journal was created, used to tell whether anything has changed since a snapshot
+     *
+     * @return The amount of appended entries
+     */
+    public long getAppendCount() {
+        return appendCount.get();
+    }
+
+    public long getCommits() {
+        return commits.get();
+    }
+
+    public long getCommittedEntries() {
+        return committedEntries.get();
+    }
+
+    /**
+     * Get a summary of the group commit statistics, for logging
+     *
+     * @return The statistics as a string
+     */
+    public String getMetrics() {
+        long commitCount = getCommits();
+        long entryCount = getCommittedEntries();
+
+        return "commits=" + commitCount
+                + ", entries=" + entryCount
+                + ", averageBatch=" + (commitCount == 0 ? 0 : String.format("%.2f", (double) entryCount / commitCount))
+                + ", largestBatch=" + largestCommit.get()
+                + ", averageCommitMicros=" + (commitCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(commitNanos.get() / commitCount));
+    }
+
+    /**
+     * Wait for a journal append to complete
+     *
+     * @param written The future returned by append
+     * @return Whether the entry was durably written
+     */
+    public static boolean awaitDurable(Future<Boolean> written) {
+        try {
+            return written.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writer thread body. Collects a batch, writes it and forces it to disk before completing the waiting callers
+     */
+    private void writeLoop() {
+        List<PendingWrite> batch = new ArrayList<>();
+
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+
+                collectBatch(batch);
+
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("[ShareBrokering JAX-WS] Could not close trade journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Add further queued writes to a batch, waiting up to the commit window for more to arrive unless the batch fills up first
+     *
+     * @param batch The batch, holding the first write
+     * @throws InterruptedException If interrupted while waiting for more writes
+     */
+    private void collectBatch(List<PendingWrite> batch) throws InterruptedException {
+        int limit = maxBatchSize;
+        long deadline = System.nanoTime() + commitWindowNanos;
+
+        while (batch.size() < limit) {
+            queue.drainTo(batch, limit - batch.size());
+
+            long remaining = deadline - System.nanoTime();
+
+            if (batch.size() >= limit || remaining <= 0 || !running) {
+                return;
+            }
+
+            PendingWrite next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+
+            if (next == null) {
+                return;
+            }
+
+            batch.add(next);
+        }
+    }
+
+    /**
+     * Write a batch of queued entries and rotations in order, forcing the entries to disk before their callers are completed
+     *
+     * @param batch The queued writes
+     */
+    private void writeBatch(List<PendingWrite> batch) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        List<PendingWrite> buffered = new ArrayList<>();
+
+        for (PendingWrite write : batch) {
+            if (write.entries != null) {
+                for (JournalEntry entry : write.entries) {
+                    byte[] line = (entry.toLine() + "\n").getBytes(StandardCharsets.UTF_8);
+
+                    buffer.write(line, 0, line.length);
+                }
+
+                buffered.add(write);
+            } else {
+                // Commit what has been buffered so far to the current segment before switching
+                commit(buffer, buffered);
+
+                // A snapshot taken before the rotation may hold changes whose commit just failed, so the old segments must not be discarded on its account
+                if (failed) {
+                    write.rotated.complete(-1L);
+
+                    continue;
+                }
+
+                try {
+                    channel.close();
+                    openSegment(segment + 1);
+
+                    write.rotated.complete(segment);
+                } catch (IOException e) {
+                    System.err.println("[ShareBrokering JAX-WS] Could not rotate trade journal: " + e.getMessage());
+
+                    write.rotated.complete(-1L);
+                }
+            }
+        }
+
+        commit(buffer, buffered);
+    }
+
+    /**
+     * Write and force the buffered entries, then complete their callers. If the write fails, the segment is cut back to the end of the last successful commit, so no later commit is appended
+     * after a partially written one
+     *
+     * @param buffer The encoded entries
+     * @param buffered The writes the buffer holds
+     */
+    private void commit(ByteArrayOutputStream buffer, List<PendingWrite> buffered) {
+        if (buffered.isEmpty()) {
+            return;
+        }
+
+        // Writes queued before an earlier commit failed are refused along with everything after them
+        if (failed) {
+            for (PendingWrite write : buffered) {
+                write.written.complete(false);
+            }
+
+            buffer.reset();
+            buffered.clear();
+
+            return;
+        }
+
+        boolean success;
+
+        long start = System.nanoTime();
+
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+
+            channel.force(false);
+
+            committedSize = channel.size();
+
+            success = true;
+        } catch (IOException e) {
+            System.err.println("[ShareBrokering JAX-WS] Could not write to trade journal: " + e.getMessage());
+
+            discardPartialWrite();
+
+            failed = true;
+            success = false;
+        }
+
+        int entryCount = 0;
+
+        for (PendingWrite write : buffered) {
+            entryCount += write.entries.size();
+        }
+
+        commits.incrementAndGet();
+        committedEntries.addAndGet(entryCount);
+        largestCommit.accumulateAndGet(entryCount, Math::max);
+        commitNanos.addAndGet(System.nanoTime() - start);
+
+        for (PendingWrite write : buffered) {
+            write.written.complete(success);
+        }
+
+        buffer.reset();
+        buffered.clear();
+    }
+
+    /**
+     * Remove whatever a failed commit managed to write, by truncating the segment back to the last successful commit. If that fails too, the segment is abandoned for a new one, leaving the
+     * partial line as the last line of the old segment where readAll expects it
+     */
+    private void discardPartialWrite() {
+        try {
+            channel.truncate(committedSize);
+            channel.force(false);
+
+            return;
+        } catch (IOException e) {
+            System.err.println("[ShareBrokering JAX-WS] Could not truncate trade journal after a failed write: " + e.getMessage());
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("[ShareBrokering JAX-WS] Could not close trade journal segment " + segment + ": " + e.getMessage());
+        }
+
+        try {
+            openSegment(segment + 1);
+        } catch (IOException e) {
+            System.err.println("[ShareBrokering JAX-WS] Could not open a new trade journal segment: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Open the provided segment for appending
+     *
+     * @param newSegment The segment number
+     * @throws IOException If the segment file could not be opened
+     */
+    private void openSegment(long newSegment) throws IOException {
+        channel = FileChannel.open(segmentFile(newSegment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segment = newSegment;
+        committedSize = channel.size();
+    }
+
+    /**
+     * List the numbers of the segment files on disk, in ascending order
+     *
+     * @return The segment numbers
+     */
+    private long[] listSegments() {
+        File[] files = journalDirectory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+
+        if (files == null) {
+            return new long[0];
+        }
+
+        long[] segments = new long[files.length];
+        int count = 0;
+
+        for (File file : files) {
+            String name = file.getName();
+
+            try {
+                segments[count++] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                count--;
+            }
+        }
+
+        segments = Arrays.copyOf(segments, count);
+        Arrays.sort(segments);
+
+        return segments;
+    }
+
+    /**
+     * Get the file for a segment number
+     *
+     * @param segmentNumber The segment number
+     * @return The segment file
+     */
+    private File segmentFile(long segmentNumber) {
+        return new File(journalDirectory, String.format("%s%012d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * A queued journal write: either entries to append, or a rotation to a new segment when entries is null
+     */
+    private static class PendingWrite {
+
+        private final List<JournalEntry> entries;
+        private final CompletableFuture<Boolean> written = new CompletableFuture<>();
+        private final CompletableFuture<Long> rotated = new CompletableFuture<>();
+
+        private PendingWrite(List<JournalEntry> entries) {
+            this.entries = entries;
+        }
+    }
+}
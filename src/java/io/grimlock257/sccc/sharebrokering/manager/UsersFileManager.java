@@ -1,8 +1,21 @@
 package io.grimlock257.sccc.sharebrokering.manager;
 
+import io.grimlock257.sccc.jaxb.binding.users.User;
 import io.grimlock257.sccc.jaxb.binding.users.Users;
+import io.grimlock257.sccc.sharebrokering.util.LockStripes;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import javax.xml.bind.JAXBContext;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
@@ -10,7 +23,8 @@ import javax.xml.bind.Unmarshaller;
 /**
  * UsersFileManager
  *
- * This class handles marshalling and unmarshalling of the users XML files
+ * This class holds the resident Users model, loaded once from the users XML file, and serialises it for the snapshots written by the PersistenceManager. All changes made between snapshots
+ * are written by a single marshal. GUID and username indexes are maintained alongside the user list so that users can be resolved in constant time
  *
  * @author Adam Watson
  */
@@ -18,10 +32,22 @@ public class UsersFileManager {
 
     private static UsersFileManager instance = null;
 
+    private static final int LOCK_STRIPES = 64;
+
     private final String xmlFileLocation;
 
     private final Object fileLock = new Object();
 
+    private final ReentrantReadWriteLock usersLock = new ReentrantReadWriteLock();
+
+    private final LockStripes userLocks = new LockStripes(LOCK_STRIPES);
+
+    private final Map<String, User> guidIndex = new HashMap<>();
+    private final Map<String, User> usernameIndex = new HashMap<>();
+
+    private volatile Users users = null;
+    private volatile boolean loaded = false;
+
     /**
      * JAXBFileManager constructor
      *
@@ -36,7 +62,7 @@ public class UsersFileManager {
      *
      * @return The instance of the UsersFileManager
      */
-    public static UsersFileManager getInstance() {
+    public static synchronized UsersFileManager getInstance() {
 
         if (instance == null) {
             instance = new UsersFileManager();
@@ -46,35 +72,243 @@ public class UsersFileManager {
     }
 
     /**
-     * Marshal the provided Users object to the local XML file
+     * Get the lock that must be held for reading while accessing the resident Users model. Changes to a single User may be made under the read lock as long as the lock for that User is also
+     * held, see getUserLock
+     *
+     * @return The read lock for the resident Users model
+     */
+    public Lock readLock() {
+        return usersLock.readLock();
+    }
+
+    /**
+     * Get the lock that must be held for writing while adding, removing or re-keying Users in the resident Users model
+     *
+     * @return The write lock for the resident Users model
+     */
+    public Lock writeLock() {
+        return usersLock.writeLock();
+    }
+
+    /**
+     * Get the lock guarding changes to the User with the provided user GUID. It must be taken while holding the read lock. When user locks are combined with locks from the other file
+     * manager, stock locks are always taken before user locks
+     *
+     * @param guid The user GUID
+     * @return The lock for the User
+     */
+    public Lock getUserLock(String guid) {
+        return userLocks.getLock(guid);
+    }
+
+    /**
+     * Lock the Users with the provided user GUIDs in a deterministic order. It must be called while holding the read lock
+     *
+     * @param guids The user GUIDs to lock
+     * @return The acquired locks, to be released through LockStripes.unlockAll
+     */
+    public List<Lock> lockUsers(Collection<String> guids) {
+        return userLocks.lockAll(guids);
+    }
+
+    /**
+     * Get the resident Users model, loading it from the XML file on first access
+     *
+     * @return The resident Users object, or null if no users file could be loaded
+     */
+    public Users getUsers() {
+        if (!loaded) {
+            synchronized (fileLock) {
+                if (!loaded) {
+                    users = unmarshal();
+                    rebuildIndexes();
+                    loaded = true;
+                }
+            }
+        }
+
+        return users;
+    }
+
+    /**
+     * Replace the resident Users model and schedule it to be written to the XML file
+     *
+     * @param users The new Users object
+     */
+    public void setUsers(Users users) {
+        usersLock.writeLock().lock();
+
+        try {
+            this.users = users;
+            this.loaded = true;
+
+            rebuildIndexes();
+
+            scheduleFlush();
+        } finally {
+            usersLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Look up the User with the provided GUID, regardless of case. The caller must hold the read or write lock
+     *
+     * @param guid The GUID to look up
+     * @return The matching User, or null if no user has the GUID
+     */
+    public User getUserByGuid(String guid) {
+        if (guid == null || getUsers() == null) {
+            return null;
+        }
+
+        return guidIndex.get(normaliseKey(guid));
+    }
+
+    /**
+     * Look up the User with the provided username, regardless of case. The caller must hold the read or write lock
+     *
+     * @param username The username to look up
+     * @return The matching User, or null if no user has the username
+     */
+    public User getUserByUsername(String username) {
+        if (username == null || getUsers() == null) {
+            return null;
+        }
+
+        return usernameIndex.get(normaliseKey(username));
+    }
+
+    /**
+     * Add a User to the resident model. The caller must hold the write lock, and is responsible for journaling the registration
+     *
+     * @param user The User to add
+     * @return Whether the user was added, false if a user with the same username or GUID already exists
+     */
+    public boolean addUser(User user) {
+        String guidKey = normaliseKey(user.getGuid());
+        String usernameKey = normaliseKey(user.getUsername());
+
+        if (getUsers() == null || guidIndex.containsKey(guidKey) || usernameIndex.containsKey(usernameKey)) {
+            return false;
+        }
+
+        users.getUsers().add(user);
+
+        guidIndex.put(guidKey, user);
+        usernameIndex.put(usernameKey, user);
+
+        return true;
+    }
+
+    /**
+     * Mark the resident Users model as modified and schedule a snapshot of it to be written to the XML file
+     */
+    public void scheduleFlush() {
+        PersistenceManager.getInstance().scheduleSnapshot();
+    }
+
+    /**
+     * Serialise the resident Users model for a snapshot. The caller must hold the write lock
+     *
+     * @return The marshaled XML, or null if there is no model or the marshal failed
+     */
+    byte[] serialize() {
+        if (users == null) {
+            return null;
+        }
+
+        return marshal(users);
+    }
+
+    /**
+     * Rebuild the GUID and username indexes from the resident user list
+     */
+    private void rebuildIndexes() {
+        guidIndex.clear();
+        usernameIndex.clear();
+
+        if (users != null) {
+            for (User user : users.getUsers()) {
+                guidIndex.put(normaliseKey(user.getGuid()), user);
+                usernameIndex.put(normaliseKey(user.getUsername()), user);
+            }
+        }
+    }
+
+    /**
+     * Normalise a GUID or username for use as an index key
+     *
+     * @param key The GUID or username
+     * @return The lower case key
+     */
+    private static String normaliseKey(String key) {
+        return key.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Marshal the provided Users object to an in memory XML document
      *
      * @param users The Users object to be marshaled
-     * @return Whether the marshal was successful or not
+     * @return The marshaled XML, or null if the marshal failed
      */
-    public Boolean marshal(Users users) {
+    private byte[] marshal(Users users) {
 
         try {
 
-            JAXBContext jaxbContext = JAXBContext.newInstance(Users.class.getPackage().getName());
+            JAXBPool jaxbPool = JAXBPool.forPackage(Users.class.getPackage().getName());
 
-            Marshaller marshaller = jaxbContext.createMarshaller();
-            marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-            marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+            Marshaller marshaller = jaxbPool.borrowMarshaller();
 
-            // Apply a file lock at this point so that when the file is being marshaled, no other
-            // file operations can happen at the same time
-            synchronized (fileLock) {
-                // Create the folder if it doesn't already exist
-                File file = new File(xmlFileLocation);
-                file.getParentFile().mkdirs();
+            try {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
 
-                marshaller.marshal(users, new File(xmlFileLocation));
+                marshaller.marshal(users, outputStream);
+
+                return outputStream.toByteArray();
+            } finally {
+                jaxbPool.returnMarshaller(marshaller);
             }
         } catch (JAXBException e) {
 
-            System.err.println("[ERROR] Could not create JAXBContext instance: " + e.getMessage());
+            System.err.println("[ERROR] Could not marshal users: " + e.getMessage());
 
-            return false;
+            return null;
+        }
+    }
+
+    /**
+     * Write a serialised snapshot to the local XML file. The snapshot is written to a temporary file and forced to disk before replacing the XML file, so a crash never leaves a partial file
+     *
+     * @param xml The marshaled XML document
+     * @return Whether the write was successful or not
+     */
+    boolean writeSnapshot(byte[] xml) {
+
+        // Apply a file lock at this point so that when the file is being written, no other
+        // file operations can happen at the same time
+        synchronized (fileLock) {
+            // Create the folder if it doesn't already exist
+            File file = new File(xmlFileLocation);
+            file.getParentFile().mkdirs();
+
+            File tempFile = new File(xmlFileLocation + ".tmp");
+
+            try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+                outputStream.write(xml);
+                outputStream.getFD().sync();
+            } catch (IOException e) {
+                System.err.println("[ERROR] Could not write users file: " + e.getMessage());
+
+                return false;
+            }
+
+            try {
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("[ERROR] Could not replace users file: " + e.getMessage());
+
+                return false;
+            }
         }
 
         return true;
@@ -85,25 +319,29 @@ public class UsersFileManager {
      *
      * @return The unmarshalled Users object
      */
-    public Users unmarshal() {
+    private Users unmarshal() {
 
         try {
 
-            JAXBContext jaxbContext = JAXBContext.newInstance(Users.class.getPackage().getName());
+            JAXBPool jaxbPool = JAXBPool.forPackage(Users.class.getPackage().getName());
 
-            Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
+            Unmarshaller unmarshaller = jaxbPool.borrowUnmarshaller();
 
             Users users;
 
             // Apply a file lock at this point so that when the file is being unmarshalled, no other
             // file operations can happen at the same time
-            synchronized (fileLock) {
-                users = (Users) unmarshaller.unmarshal(new File(xmlFileLocation));
+            try {
+                synchronized (fileLock) {
+                    users = (Users) unmarshaller.unmarshal(new File(xmlFileLocation));
+                }
+            } finally {
+                jaxbPool.returnUnmarshaller(unmarshaller);
             }
 
             return users;
         } catch (JAXBException e) {
-            System.err.println("[ERROR] Could not create JAXBContext instance: " + e.getMessage());
+            System.err.println("[ERROR] Could not unmarshal users: " + e.getMessage());
         }
 
         return null;
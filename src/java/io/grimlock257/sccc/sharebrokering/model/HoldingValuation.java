@@ -0,0 +1,76 @@
+package io.grimlock257.sccc.sharebrokering.model;
+
+import io.grimlock257.sccc.jaxb.binding.SharePrice;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+
+/**
+ * Represents the valuation of a single holding in a user's portfolio. Values are in the user's currency, while the price is the stock's own price in its listed currency
+ *
+ * @author Adam Watson
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+public class HoldingValuation {
+
+    private String stockName;
+    private String stockSymbol;
+    private double quantity;
+    private SharePrice price;
+
+    private boolean priced;
+    private double marketValue;
+    private double purchaseValue;
+    private double unrealisedProfitLoss;
+
+    public HoldingValuation() {
+    }
+
+    public HoldingValuation(String stockName, String stockSymbol, double quantity, SharePrice price, boolean priced, double marketValue, double purchaseValue) {
+        this.stockName = stockName;
+        this.stockSymbol = stockSymbol;
+        this.quantity = quantity;
+        this.price = price;
+        this.priced = priced;
+        this.marketValue = priced ? marketValue : 0;
+        this.purchaseValue = purchaseValue;
+        this.unrealisedProfitLoss = priced ? marketValue - purchaseValue : 0;
+    }
+
+    public String getStockName() {
+        return stockName;
+    }
+
+    public String getStockSymbol() {
+        return stockSymbol;
+    }
+
+    public double getQuantity() {
+        return quantity;
+    }
+
+    public SharePrice getPrice() {
+        return price;
+    }
+
+    /**
+     * Check whether the holding could be valued. A holding can't be valued when the stock no longer exists or no exchange rate to the user's currency could be retrieved, in which case its
+     * market value and unrealised P/L are 0 and it is left out of the portfolio totals
+     *
+     * @return Whether the holding has been valued
+     */
+    public boolean isPriced() {
+        return priced;
+    }
+
+    public double getMarketValue() {
+        return marketValue;
+    }
+
+    public double getPurchaseValue() {
+        return purchaseValue;
+    }
+
+    public double getUnrealisedProfitLoss() {
+        return unrealisedProfitLoss;
+    }
+}
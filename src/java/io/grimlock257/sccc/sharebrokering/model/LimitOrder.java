@@ -0,0 +1,86 @@
+package io.grimlock257.sccc.sharebrokering.model;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+
+/**
+ * Represents a limit order to return to the client. The limit price is in the currency the stock is listed in, and times are in milliseconds since the epoch
+ *
+ * @author Adam Watson
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+public class LimitOrder {
+
+    private String orderId;
+    private OrderSide side;
+    private String companySymbol;
+    private double limitPrice;
+    private double quantity;
+    private double filledQuantity;
+
+    private LimitOrderStatus status;
+    private String reason;
+    private long placed;
+    private long updated;
+
+    public LimitOrder() {
+    }
+
+    public LimitOrder(String orderId, OrderSide side, String companySymbol, double limitPrice, double quantity, double filledQuantity, LimitOrderStatus status, String reason, long placed, long updated) {
+        this.orderId = orderId;
+        this.side = side;
+        this.companySymbol = companySymbol;
+        this.limitPrice = limitPrice;
+        this.quantity = quantity;
+        this.filledQuantity = filledQuantity;
+        this.status = status;
+        this.reason = reason;
+        this.placed = placed;
+        this.updated = updated;
+    }
+
+    public String getOrderId() {
+        return orderId;
+    }
+
+    public OrderSide getSide() {
+        return side;
+    }
+
+    public String getCompanySymbol() {
+        return companySymbol;
+    }
+
+    public double getLimitPrice() {
+        return limitPrice;
+    }
+
+    public double getQuantity() {
+        return quantity;
+    }
+
+    public double getFilledQuantity() {
+        return filledQuantity;
+    }
+
+    public LimitOrderStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * Get why the order was rejected
+     *
+     * @return The reason, or null if the order wasn't rejected
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    public long getPlaced() {
+        return placed;
+    }
+
+    public long getUpdated() {
+        return updated;
+    }
+}
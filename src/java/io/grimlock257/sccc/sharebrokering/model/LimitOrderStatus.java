@@ -0,0 +1,13 @@
+package io.grimlock257.sccc.sharebrokering.model;
+
+/**
+ * Represents the state of a limit order. An open order may already be partly filled
+ *
+ * @author Adam Watson
+ */
+public enum LimitOrderStatus {
+    OPEN,
+    FILLED,
+    CANCELLED,
+    REJECTED
+}
@@ -0,0 +1,38 @@
+package io.grimlock257.sccc.sharebrokering.model;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+
+/**
+ * Represents a single buy or sell instruction submitted by the client as part of a bulk order
+ *
+ * @author Adam Watson
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+public class Order {
+
+    private OrderSide side;
+    private String companySymbol;
+    private double quantity;
+
+    public Order() {
+    }
+
+    public Order(OrderSide side, String companySymbol, double quantity) {
+        this.side = side;
+        this.companySymbol = companySymbol;
+        this.quantity = quantity;
+    }
+
+    public OrderSide getSide() {
+        return side;
+    }
+
+    public String getCompanySymbol() {
+        return companySymbol;
+    }
+
+    public double getQuantity() {
+        return quantity;
+    }
+}
@@ -0,0 +1,96 @@
+package io.grimlock257.sccc.sharebrokering.model;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+
+/**
+ * Represents the outcome of a single order within a bulk order, returned to the client in the same position as the order it belongs to
+ *
+ * @author Adam Watson
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+public class OrderResult {
+
+    private OrderSide side;
+    private String companySymbol;
+    private double quantity;
+
+    private boolean success;
+    private double price;
+    private String currency;
+    private String reason;
+
+    public OrderResult() {
+    }
+
+    public OrderResult(OrderSide side, String companySymbol, double quantity, boolean success, double price, String currency, String reason) {
+        this.side = side;
+        this.companySymbol = companySymbol;
+        this.quantity = quantity;
+        this.success = success;
+        this.price = price;
+        this.currency = currency;
+        this.reason = reason;
+    }
+
+    /**
+     * Create the result of an order that was executed
+     *
+     * @param order The order
+     * @param price The price charged or paid to the user
+     * @param currency The user's currency
+     * @return The result
+     */
+    public static OrderResult executed(Order order, double price, String currency) {
+        return new OrderResult(order.getSide(), order.getCompanySymbol(), order.getQuantity(), true, price, currency, null);
+    }
+
+    /**
+     * Create the result of an order that was rejected
+     *
+     * @param order The order
+     * @param reason Why the order was rejected
+     * @return The result
+     */
+    public static OrderResult rejected(Order order, String reason) {
+        return new OrderResult(order.getSide(), order.getCompanySymbol(), order.getQuantity(), false, 0, null, reason);
+    }
+
+    public OrderSide getSide() {
+        return side;
+    }
+
+    public String getCompanySymbol() {
+        return companySymbol;
+    }
+
+    public double getQuantity() {
+        return quantity;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * Get the price charged to the user for a purchase, or paid to the user for a sale
+     *
+     * @return The price in the user's currency, or 0 if the order was rejected
+     */
+    public double getPrice() {
+        return price;
+    }
+
+    public String getCurrency() {
+        return currency;
+    }
+
+    /**
+     * Get why the order was rejected
+     *
+     * @return The reason, or null if the order was executed
+     */
+    public String getReason() {
+        return reason;
+    }
+}
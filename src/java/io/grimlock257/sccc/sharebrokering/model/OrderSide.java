@@ -0,0 +1,11 @@
+package io.grimlock257.sccc.sharebrokering.model;
+
+/**
+ * Represents whether an order buys or sells shares
+ *
+ * @author Adam Watson
+ */
+public enum OrderSide {
+    BUY,
+    SELL
+}
@@ -0,0 +1,87 @@
+package io.grimlock257.sccc.sharebrokering.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+
+/**
+ * Represents the market valuation of a user's portfolio, with the value of each holding and the totals across all of them in the user's currency
+ *
+ * @author Adam Watson
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+public class PortfolioValuation {
+
+    private String currency;
+    private List<HoldingValuation> holdings;
+
+    private double totalMarketValue;
+    private double totalPurchaseValue;
+    private double totalUnrealisedProfitLoss;
+
+    private boolean complete;
+    private long updated;
+
+    public PortfolioValuation() {
+        this.holdings = new ArrayList<>();
+    }
+
+    public PortfolioValuation(String currency, List<HoldingValuation> holdings, double totalMarketValue, double totalPurchaseValue, boolean complete, long updated) {
+        this.currency = currency;
+        this.holdings = holdings;
+        this.totalMarketValue = totalMarketValue;
+        this.totalPurchaseValue = totalPurchaseValue;
+        this.totalUnrealisedProfitLoss = totalMarketValue - totalPurchaseValue;
+        this.complete = complete;
+        this.updated = updated;
+    }
+
+    public String getCurrency() {
+        return currency;
+    }
+
+    public List<HoldingValuation> getHoldings() {
+        return holdings;
+    }
+
+    /**
+     * Get the total market value of the priced holdings
+     *
+     * @return The total market value in the user's currency
+     */
+    public double getTotalMarketValue() {
+        return totalMarketValue;
+    }
+
+    /**
+     * Get the total purchase value of the priced holdings
+     *
+     * @return The total purchase value in the user's currency
+     */
+    public double getTotalPurchaseValue() {
+        return totalPurchaseValue;
+    }
+
+    public double getTotalUnrealisedProfitLoss() {
+        return totalUnrealisedProfitLoss;
+    }
+
+    /**
+     * Check whether every holding could be priced, and so is included in the totals
+     *
+     * @return Whether the totals cover the whole portfolio
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Get when the valuation was last marked to market
+     *
+     * @return The time in milliseconds since the epoch
+     */
+    public long getUpdated() {
+        return updated;
+    }
+}
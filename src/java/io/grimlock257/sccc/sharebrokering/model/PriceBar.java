@@ -0,0 +1,106 @@
+package io.grimlock257.sccc.sharebrokering.model;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+
+/**
+ * Represents the open, high, low and close share price of a stock over one interval. Times are in milliseconds since the epoch
+ *
+ * @author Adam Watson
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+public class PriceBar {
+
+    private long startTime;
+    private long endTime;
+    private double open;
+    private double high;
+    private double low;
+    private double close;
+    private int ticks;
+    private String currency;
+
+    private transient long openTime;
+    private transient long closeTime;
+
+    public PriceBar() {
+    }
+
+    /**
+     * Create a bar holding a single tick
+     *
+     * @param startTime The start of the interval (inclusive)
+     * @param endTime The end of the interval (exclusive)
+     * @param time The time of the tick
+     * @param price The price of the tick
+     * @param currency The currency of the price
+     */
+    public PriceBar(long startTime, long endTime, long time, double price, String currency) {
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.open = price;
+        this.high = price;
+        this.low = price;
+        this.close = price;
+        this.ticks = 1;
+        this.currency = currency;
+        this.openTime = time;
+        this.closeTime = time;
+    }
+
+    /**
+     * Add a tick within the interval to the bar
+     *
+     * @param time The time of the tick
+     * @param price The price of the tick
+     * @param currency The currency of the price
+     */
+    public void addTick(long time, double price, String currency) {
+        if (time < openTime) {
+            open = price;
+            openTime = time;
+        }
+
+        if (time >= closeTime) {
+            close = price;
+            closeTime = time;
+            this.currency = currency;
+        }
+
+        high = Math.max(high, price);
+        low = Math.min(low, price);
+        ticks++;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    public double getOpen() {
+        return open;
+    }
+
+    public double getHigh() {
+        return high;
+    }
+
+    public double getLow() {
+        return low;
+    }
+
+    public double getClose() {
+        return close;
+    }
+
+    public int getTicks() {
+        return ticks;
+    }
+
+    public String getCurrency() {
+        return currency;
+    }
+}
@@ -0,0 +1,54 @@
+package io.grimlock257.sccc.sharebrokering.model;
+
+import io.grimlock257.sccc.jaxb.binding.Stock;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+
+/**
+ * Represents a single page of stocks to return to the client, along with the cursor to request the following page with and the version of the stock book the page was read from
+ *
+ * @author Adam Watson
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+public class StockPage {
+
+    private List<Stock> stocks;
+    private String nextCursor;
+    private long version;
+
+    public StockPage() {
+        this.stocks = new ArrayList<>();
+        this.nextCursor = null;
+        this.version = 0;
+    }
+
+    public StockPage(List<Stock> stocks, String nextCursor, long version) {
+        this.stocks = stocks;
+        this.nextCursor = nextCursor;
+        this.version = version;
+    }
+
+    public List<Stock> getStocks() {
+        return stocks;
+    }
+
+    /**
+     * Get the cursor for the following page
+     *
+     * @return The opaque cursor, or null if this is the last page
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * Get the version of the stock book the page was read from. Every stock on the page reflects this version, and a later version means the stocks have changed since
+     *
+     * @return The stock book version
+     */
+    public long getVersion() {
+        return version;
+    }
+}
@@ -1,17 +1,36 @@
 package io.grimlock257.sccc.sharebrokering.service;
 
+import io.grimlock257.sccc.sharebrokering.util.CircuitBreaker;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import javax.json.Json;
+import javax.json.JsonException;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
 
 /**
  * CurrencyConverterAPIService
  *
- * This class handles calling out to the external currency converter API service
+ * This class handles calling out to the external currency converter API service. Rather than converting every value remotely, the exchange rate for each currency pair is retrieved once and
+ * cached for a configurable time to live, and conversions are calculated locally from the cached rate. Pairs that are in use are refreshed in the background before they expire, so trades
+ * only wait on the remote API the first time a pair is seen. Requests are bounded in number and time, and a circuit breaker fails them immediately while the API is down.
+ *
+ * The JDK only keeps 5 idle connections per host alive by default. Deployments that raise sharebrokering.currency.maxConnections should raise the JVM's http.maxConnections setting to match
+ * (for example -Dhttp.maxConnections=16), so connections beyond the fifth are reused rather than reopened. It is a JVM wide setting, so it is left to the deployment rather than set here
  *
  * @author Adam Watson
  */
@@ -19,12 +38,54 @@ public class CurrencyConverterAPIService {
 
     private static CurrencyConverterAPIService instance = null;
 
+    private static final long DEFAULT_RATE_TTL = 60 * 1000;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 2 * 1000;
+    private static final int DEFAULT_READ_TIMEOUT = 5 * 1000;
+    private static final int DEFAULT_MAX_CONNECTIONS = 16;
+    private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    private static final long DEFAULT_OPEN_DURATION = 10 * 1000;
+
+    private final Map<String, CachedRate> rates = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService refreshExecutor;
+
+    private final long rateTtl;
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    private final Semaphore requestPermits;
+
+    private final CircuitBreaker circuitBreaker;
+
+    private volatile RateSource rateSource = this::requestRate;
+
     /**
      * CurrencyConverterAPIService constructor
      *
      * Private to enforce singleton behaviour
      */
     private CurrencyConverterAPIService() {
+        rateTtl = Math.max(1000, Long.getLong("sharebrokering.currency.rateTtl", DEFAULT_RATE_TTL));
+        connectTimeout = Integer.getInteger("sharebrokering.currency.connectTimeout", DEFAULT_CONNECT_TIMEOUT);
+        readTimeout = Integer.getInteger("sharebrokering.currency.readTimeout", DEFAULT_READ_TIMEOUT);
+
+        int maxConnections = Math.max(1, Integer.getInteger("sharebrokering.currency.maxConnections", DEFAULT_MAX_CONNECTIONS));
+
+        requestPermits = new Semaphore(maxConnections);
+
+        circuitBreaker = new CircuitBreaker("Currency converter API",
+                Integer.getInteger("sharebrokering.currency.failureThreshold", DEFAULT_FAILURE_THRESHOLD),
+                Long.getLong("sharebrokering.currency.openDuration", DEFAULT_OPEN_DURATION));
+
+        refreshExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "CurrencyConverter-refresh");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+
+        // Refresh at half the time to live so that a rate in use is replaced before it expires
+        refreshExecutor.scheduleWithFixedDelay(this::refreshRates, rateTtl / 2, rateTtl / 2, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -32,7 +93,7 @@ public class CurrencyConverterAPIService {
      *
      * @return The instance of the CurrencyConverterAPIService
      */
-    public static CurrencyConverterAPIService getInstance() {
+    public static synchronized CurrencyConverterAPIService getInstance() {
 
         if (instance == null) {
             instance = new CurrencyConverterAPIService();
@@ -42,7 +103,7 @@ public class CurrencyConverterAPIService {
     }
 
     /**
-     * Convert the provided value from its currency to a target currency via calling an external API
+     * Convert the provided value from its currency to a target currency using the cached exchange rate, retrieving the rate from the external API if it is not cached
      *
      * @param baseCurrency The currency the provided sourceValue is in
      * @param targetCurrency The desired resulting currency
@@ -50,39 +111,351 @@ public class CurrencyConverterAPIService {
      * @return The converted price, or -1 if an error occurred
      */
     public double convertCurrency(String baseCurrency, String targetCurrency, double sourceValue) {
-        try {
-            // Request components
-            String baseUrl = "http://localhost:8080/CurrencyAPI/webresources/convert";
-            String apiQueryParam = "?baseCurrency=" + baseCurrency + "&targetCurrency=" + targetCurrency + "&value=" + sourceValue;
+        double rate = getRate(baseCurrency, targetCurrency);
+
+        if (rate < 0) {
+            return -1;
+        }
+
+        return sourceValue * rate;
+    }
 
-            // Create URL object
-            URL url = new URL(baseUrl + apiQueryParam);
+    /**
+     * Convert many values at once. Each distinct currency pair has its rate resolved a single time, however many of the conversions share it
+     *
+     * @param conversions The conversions to perform
+     * @return The converted values, in the same order as the conversions, with -1 for any conversion whose rate could not be retrieved
+     */
+    public double[] convertCurrencies(List<Conversion> conversions) {
+        Map<String, Double> pairRates = new HashMap<>();
+
+        double[] results = new double[conversions.size()];
+
+        for (int i = 0; i < conversions.size(); i++) {
+            Conversion conversion = conversions.get(i);
+
+            String base = normaliseCurrency(conversion.getBaseCurrency());
+            String target = normaliseCurrency(conversion.getTargetCurrency());
+
+            double rate = pairRates.computeIfAbsent(pairKey(base, target), key -> getRate(base, target));
+
+            results[i] = (rate < 0) ? -1 : conversion.getValue() * rate;
+        }
+
+        return results;
+    }
+
+    /**
+     * Get the exchange rate between two currencies. Identical currencies have a rate of 1, and a cached rate in the opposite direction is inverted rather than retrieving a new one
+     *
+     * @param baseCurrency The currency to convert from
+     * @param targetCurrency The currency to convert to
+     * @return The amount of the target currency one unit of the base currency is worth, or -1 if an error occurred
+     */
+    public double getRate(String baseCurrency, String targetCurrency) {
+        String base = normaliseCurrency(baseCurrency);
+        String target = normaliseCurrency(targetCurrency);
+
+        if (base.equals(target)) {
+            return 1;
+        }
+
+        long now = System.currentTimeMillis();
+
+        CachedRate cached = rates.get(pairKey(base, target));
+
+        if (cached != null && !cached.isExpired(now, rateTtl)) {
+            cached.used = true;
+
+            return cached.rate;
+        }
 
-            // Create HTTP connection
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        CachedRate inverse = rates.get(pairKey(target, base));
 
-            // If the response was not a 200, throw an error
-            if (conn.getResponseCode() != 200) {
-                throw new IOException(conn.getResponseMessage());
+        if (inverse != null && !inverse.isExpired(now, rateTtl)) {
+            inverse.used = true;
+
+            return 1 / inverse.rate;
+        }
+
+        double rate = fetchRate(base, target);
+
+        if (rate > 0) {
+            rates.put(pairKey(base, target), new CachedRate(rate, now, true));
+        }
+
+        return rate;
+    }
+
+    /**
+     * Replace where exchange rates are retrieved from, forgetting every cached rate. Used by the benchmarks to run against an in-process stub rather than the external API
+     *
+     * @param rateSource The source of exchange rates
+     */
+    public void setRateSource(RateSource rateSource) {
+        this.rateSource = rateSource;
+
+        rates.clear();
+    }
+
+    /**
+     * Stop refreshing cached rates in the background
+     */
+    public void shutdown() {
+        refreshExecutor.shutdownNow();
+    }
+
+    /**
+     * Get a summary of the rate cache and circuit breaker statistics, for logging
+     *
+     * @return The statistics as a string
+     */
+    public String getMetrics() {
+        return "cachedRates=" + rates.size()
+                + ", " + circuitBreaker.getMetrics();
+    }
+
+    /**
+     * Refresh every cached rate used since it was last retrieved, and forget rates that have expired without being used
+     */
+    private void refreshRates() {
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<String, CachedRate> entry : rates.entrySet()) {
+            CachedRate cached = entry.getValue();
+
+            if (!cached.used) {
+                if (cached.isExpired(now, rateTtl)) {
+                    rates.remove(entry.getKey(), cached);
+                }
+
+                continue;
             }
 
-            // Retrieve the connection input stream and store as a JsonObject
-            JsonReader jsonReader = Json.createReader(conn.getInputStream());
-            JsonObject jsonObject = jsonReader.readObject();
+            String[] pair = entry.getKey().split("/");
 
-            boolean isSuccess = jsonObject.getBoolean("success");
+            double rate = fetchRate(pair[0], pair[1]);
+
+            // On failure the existing rate is kept until it expires, at which point a trade retries the remote API itself
+            if (rate > 0) {
+                rates.put(entry.getKey(), new CachedRate(rate, System.currentTimeMillis(), false));
+            }
+        }
+    }
+
+    /**
+     * Retrieve the exchange rate between two currencies by converting a single unit through the external API
+     *
+     * @param baseCurrency The currency to convert from
+     * @param targetCurrency The currency to convert to
+     * @return The exchange rate, or -1 if an error occurred
+     */
+    private double fetchRate(String baseCurrency, String targetCurrency) {
+        // Fail fast rather than waiting on timeouts while the API is known to be down
+        if (!circuitBreaker.allowRequest()) {
+            return -1;
+        }
+
+        boolean acquired = false;
+
+        try {
+            // Bound the amount of concurrent requests, so a slow API can't take every connection and thread
+            acquired = requestPermits.tryAcquire(connectTimeout, TimeUnit.MILLISECONDS);
+
+            // Waiting too long for a permit says nothing about the API's health, so it isn't counted as a failure
+            if (!acquired) {
+                System.err.println("[ShareBrokering JAX-WS] Too many concurrent requests to the currency converter API, gave up waiting");
+
+                circuitBreaker.recordAbandoned();
 
-            if (!isSuccess) {
                 return -1;
             }
 
-            return jsonObject.getJsonNumber("value").doubleValue();
+            double rate = rateSource.fetchRate(baseCurrency, targetCurrency);
+
+            circuitBreaker.recordSuccess();
+
+            return rate;
         } catch (MalformedURLException e) {
             System.err.println("[ShareBrokering JAX-WS] Malformed URL: " + e.getMessage());
         } catch (IOException e) {
             System.err.println("[ShareBrokering JAX-WS] IOException connecting to URL: " + e.getMessage());
+        } catch (JsonException | ClassCastException | NullPointerException e) {
+            System.err.println("[ShareBrokering JAX-WS] Invalid response from currency converter API: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            // Interrupted while waiting for a permit, before the API was reached
+            circuitBreaker.recordAbandoned();
+
+            return -1;
+        } finally {
+            if (acquired) {
+                requestPermits.release();
+            }
         }
 
+        circuitBreaker.recordFailure();
+
         return -1;
     }
+
+    /**
+     * Make the HTTP request for the exchange rate between two currencies. The response is always read to the end and closed so that the underlying connection can be kept alive and reused
+     *
+     * @param baseCurrency The currency to convert from
+     * @param targetCurrency The currency to convert to
+     * @return The exchange rate, or -1 if the API reported the conversion as unsuccessful
+     * @throws IOException If the request failed or timed out
+     */
+    private double requestRate(String baseCurrency, String targetCurrency) throws IOException {
+        // Request components
+        String baseUrl = "http://localhost:8080/CurrencyAPI/webresources/convert";
+        String apiQueryParam = "?baseCurrency=" + encode(baseCurrency) + "&targetCurrency=" + encode(targetCurrency) + "&value=1";
+
+        // Create URL object
+        URL url = new URL(baseUrl + apiQueryParam);
+
+        // Create HTTP connection
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+
+        // If the response was not a 200, discard the body so the connection can be reused, then throw an error
+        if (conn.getResponseCode() != 200) {
+            String message = conn.getResponseMessage();
+
+            try (InputStream errorStream = conn.getErrorStream()) {
+                if (errorStream != null) {
+                    byte[] discard = new byte[1024];
+
+                    while (errorStream.read(discard) != -1) {
+                        // Discard the error body
+                    }
+                }
+            }
+
+            throw new IOException(message);
+        }
+
+        // Retrieve the connection input stream and store as a JsonObject
+        try (InputStream inputStream = conn.getInputStream(); JsonReader jsonReader = Json.createReader(inputStream)) {
+            JsonObject jsonObject = jsonReader.readObject();
+
+            boolean isSuccess = jsonObject.getBoolean("success");
+
+            if (!isSuccess) {
+                return -1;
+            }
+
+            return jsonObject.getJsonNumber("value").doubleValue();
+        }
+    }
+
+    /**
+     * URL encode a query parameter value
+     *
+     * @param value The value to encode
+     * @return The encoded value
+     */
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            return value;
+        }
+    }
+
+    /**
+     * Normalise a currency code so that cache keys are independent of case
+     *
+     * @param currency The currency code
+     * @return The upper case currency code
+     */
+    private static String normaliseCurrency(String currency) {
+        return currency.trim().toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * Build the cache key for a currency pair
+     *
+     * @param base The normalised base currency
+     * @param target The normalised target currency
+     * @return The cache key
+     */
+    private static String pairKey(String base, String target) {
+        return base + "/" + target;
+    }
+
+    /**
+     * Where exchange rates are retrieved from when they aren't cached
+     */
+    public interface RateSource {
+
+        /**
+         * Retrieve the exchange rate between two currencies
+         *
+         * @param baseCurrency The currency to convert from
+         * @param targetCurrency The currency to convert to
+         * @return The exchange rate, or -1 if the conversion was unsuccessful
+         * @throws IOException If the rate could not be retrieved
+         */
+        double fetchRate(String baseCurrency, String targetCurrency) throws IOException;
+    }
+
+    /**
+     * A single value to convert as part of a batch
+     */
+    public static class Conversion {
+
+        private final String baseCurrency;
+        private final String targetCurrency;
+        private final double value;
+
+        /**
+         * Create a conversion
+         *
+         * @param baseCurrency The currency the value is in
+         * @param targetCurrency The desired resulting currency
+         * @param value The value to convert
+         */
+        public Conversion(String baseCurrency, String targetCurrency, double value) {
+            this.baseCurrency = baseCurrency;
+            this.targetCurrency = targetCurrency;
+            this.value = value;
+        }
+
+        public String getBaseCurrency() {
+            return baseCurrency;
+        }
+
+        public String getTargetCurrency() {
+            return targetCurrency;
+        }
+
+        public double getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * An exchange rate along with when it was retrieved and whether it has been used since
+     */
+    private static class CachedRate {
+
+        private final double rate;
+        private final long fetchedAt;
+        private volatile boolean used;
+
+        private CachedRate(double rate, long fetchedAt, boolean used) {
+            this.rate = rate;
+            this.fetchedAt = fetchedAt;
+            this.used = used;
+        }
+
+        private boolean isExpired(long now, long ttl) {
+            return now - fetchedAt >= ttl;
+        }
+    }
 }
@@ -0,0 +1,197 @@
+package io.grimlock257.sccc.sharebrokering.service;
+
+import io.github.grimlock257.stocks.StockPrice;
+import io.github.grimlock257.stocks.StockPriceResponse;
+import io.github.grimlock257.stocks.StockPriceSoap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.WebServiceException;
+
+/**
+ * StockPriceClient
+ *
+ * Shared client for the remote stock price SOAP service. Creating the StockPrice service parses the remote WSDL, so it is only done once. The StockPriceSoap ports it creates are not
+ * guaranteed to be thread safe, so a pool of them is kept and each request borrows one for the duration of the call
+ *
+ * @author Adam Watson
+ */
+public class StockPriceClient {
+
+    private static StockPriceClient instance = null;
+
+    private static final int DEFAULT_CONNECT_TIMEOUT = 2 * 1000;
+    private static final int DEFAULT_REQUEST_TIMEOUT = 5 * 1000;
+    private static final int DEFAULT_MAX_IDLE = 64;
+
+    private StockPrice service = null;
+
+    private final Queue<StockPriceSoap> ports = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idlePorts = new AtomicInteger();
+
+    private final AtomicLong portCreations = new AtomicLong();
+    private final AtomicLong portHits = new AtomicLong();
+
+    private volatile int connectTimeout;
+    private volatile int requestTimeout;
+    private final int maxIdle;
+
+    private volatile Supplier<StockPriceSoap> portFactory = this::createPort;
+
+    /**
+     * StockPriceClient constructor
+     *
+     * Private to enforce singleton behaviour
+     */
+    private StockPriceClient() {
+        connectTimeout = Integer.getInteger("sharebrokering.stockPrice.connectTimeout", DEFAULT_CONNECT_TIMEOUT);
+        requestTimeout = Integer.getInteger("sharebrokering.stockPrice.requestTimeout", DEFAULT_REQUEST_TIMEOUT);
+        maxIdle = Math.max(1, Integer.getInteger("sharebrokering.stockPrice.maxIdlePorts", DEFAULT_MAX_IDLE));
+    }
+
+    /**
+     * Get the instance of the StockPriceClient singleton
+     *
+     * @return The instance of the StockPriceClient
+     */
+    public static synchronized StockPriceClient getInstance() {
+
+        if (instance == null) {
+            instance = new StockPriceClient();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Set the connect and request timeouts (in milliseconds) applied to ports created from now on
+     *
+     * @param connectTimeout The connect timeout in milliseconds
+     * @param requestTimeout The request timeout in milliseconds
+     */
+    public void setTimeouts(int connectTimeout, int requestTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * Replace how ports are created, discarding every idle port. Used by the benchmarks to run against an in-process stub rather than the remote service
+     *
+     * @param portFactory Creates a new port each time it is called
+     */
+    public void setPortFactory(Supplier<StockPriceSoap> portFactory) {
+        this.portFactory = portFactory;
+
+        while (ports.poll() != null) {
+            idlePorts.decrementAndGet();
+        }
+    }
+
+    /**
+     * Retrieve the stock price information from the remote web service for the provided stock symbol
+     *
+     * @param symbol The stock symbol for which to retrieve stock price information for
+     * @return The share price, currency and updated time contained within a StockPriceResponse object
+     * @throws WebServiceException If the remote web service could not be reached or the request timed out
+     */
+    public StockPriceResponse getSharePrice(String symbol) {
+        StockPriceSoap port = borrowPort();
+
+        // The port may be left in a bad state if the call throws, so it is only returned to the pool on success
+        StockPriceResponse response = port.getSharePrice(symbol);
+
+        returnPort(port);
+
+        return response;
+    }
+
+    public long getPortCreations() {
+        return portCreations.get();
+    }
+
+    public long getPortHits() {
+        return portHits.get();
+    }
+
+    /**
+     * Get a summary of the pool statistics, for logging
+     *
+     * @return The statistics as a string
+     */
+    public String getMetrics() {
+        return "portCreations=" + getPortCreations()
+                + ", portHits=" + getPortHits()
+                + ", idlePorts=" + idlePorts.get();
+    }
+
+    /**
+     * Borrow a port from the pool, creating one if none are idle
+     *
+     * @return A port for the calling thread's exclusive use until returned
+     */
+    private StockPriceSoap borrowPort() {
+        StockPriceSoap port = ports.poll();
+
+        if (port != null) {
+            idlePorts.decrementAndGet();
+            portHits.incrementAndGet();
+
+            return port;
+        }
+
+        portCreations.incrementAndGet();
+
+        return portFactory.get();
+    }
+
+    /**
+     * Return a port to the pool once finished with, discarding it if enough are already idle
+     *
+     * @param port The port to return
+     */
+    private void returnPort(StockPriceSoap port) {
+
+        if (idlePorts.incrementAndGet() <= maxIdle) {
+            ports.offer(port);
+        } else {
+            idlePorts.decrementAndGet();
+        }
+    }
+
+    /**
+     * Create a port with the connect and request timeouts applied
+     *
+     * @return The new port
+     */
+    private StockPriceSoap createPort() {
+        StockPriceSoap port = getService().getStockPriceSoap();
+
+        Map<String, Object> requestContext = ((BindingProvider) port).getRequestContext();
+
+        // Both the standalone and the JDK bundled JAX-WS implementations are covered, as either may be in use
+        requestContext.put("com.sun.xml.ws.connect.timeout", connectTimeout);
+        requestContext.put("com.sun.xml.ws.request.timeout", requestTimeout);
+        requestContext.put("com.sun.xml.internal.ws.connect.timeout", connectTimeout);
+        requestContext.put("com.sun.xml.internal.ws.request.timeout", requestTimeout);
+
+        return port;
+    }
+
+    /**
+     * Get the stock price service, creating it on first use. Not created up front as the remote WSDL may be unavailable at startup
+     *
+     * @return The stock price service
+     */
+    private synchronized StockPrice getService() {
+
+        if (service == null) {
+            service = new StockPrice();
+        }
+
+        return service;
+    }
+}
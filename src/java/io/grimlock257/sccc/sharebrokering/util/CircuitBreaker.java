@@ -0,0 +1,123 @@
+package io.grimlock257.sccc.sharebrokering.util;
+
+/**
+ * CircuitBreaker
+ *
+ * Stops calls to a remote service that keeps failing. After a number of consecutive failures the breaker opens and calls fail immediately without reaching the service. Once the open period
+ * has passed a single trial call is let through: if it succeeds the breaker closes again, otherwise it stays open for another period
+ *
+ * @author Adam Watson
+ */
+public class CircuitBreaker {
+
+    /**
+     * The states a circuit breaker can be in
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openDuration;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+
+    private long rejections = 0;
+    private long trips = 0;
+
+    /**
+     * Create a circuit breaker
+     *
+     * @param name The name of the protected service, used when logging
+     * @param failureThreshold The amount of consecutive failures that open the breaker
+     * @param openDuration How long (in milliseconds) the breaker stays open before a trial call is allowed
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openDuration) {
+        this.name = name;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openDuration = Math.max(0, openDuration);
+    }
+
+    /**
+     * Check whether a call may be made. Every permitted call must be followed by either recordSuccess, recordFailure or recordAbandoned
+     *
+     * @return True if the call may go ahead, false if it should fail immediately
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt >= openDuration) {
+                    state = State.HALF_OPEN;
+
+                    return true;
+                }
+                break;
+            case HALF_OPEN:
+                // A trial call is already in progress
+                break;
+        }
+
+        rejections++;
+
+        return false;
+    }
+
+    /**
+     * Record that a permitted call succeeded, closing the breaker
+     */
+    public synchronized void recordSuccess() {
+        if (state != State.CLOSED) {
+            System.out.println("[ShareBrokering JAX-WS] " + name + " has recovered, circuit closed");
+        }
+
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * Record that a permitted call failed, opening the breaker if the failure threshold has been reached or the trial call failed
+     */
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            if (state == State.CLOSED) {
+                System.err.println("[ShareBrokering JAX-WS] " + name + " failed " + consecutiveFailures + " times in a row, circuit opened for " + openDuration + "ms");
+            }
+
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            trips++;
+        }
+    }
+
+    /**
+     * Record that a permitted call was given up before it reached the service, such as when no connection became free in time. It counts as neither a success nor a failure; an abandoned
+     * trial call lets the next call be the trial instead
+     */
+    public synchronized void recordAbandoned() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Get a summary of the breaker statistics, for logging
+     *
+     * @return The statistics as a string
+     */
+    public synchronized String getMetrics() {
+        return "state=" + state
+                + ", trips=" + trips
+                + ", rejections=" + rejections;
+    }
+}
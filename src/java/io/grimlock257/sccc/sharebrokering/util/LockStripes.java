@@ -0,0 +1,97 @@
+package io.grimlock257.sccc.sharebrokering.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockStripes
+ *
+ * A fixed set of locks that keys (stock symbols or user GUIDs) are hashed onto. Operations on different keys usually land on different stripes and so run in parallel, while operations on the
+ * same key always share a stripe and are serialised. When more than one stripe is needed they are taken in ascending stripe order so that two callers can never deadlock against each other
+ *
+ * @author Adam Watson
+ */
+public class LockStripes {
+
+    private final ReentrantLock[] locks;
+
+    /**
+     * Create a set of lock stripes
+     *
+     * @param stripes The amount of stripes, rounded up to the next power of two
+     */
+    public LockStripes(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+
+        locks = new ReentrantLock[size];
+
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Get the lock guarding the provided key. Keys are compared regardless of case
+     *
+     * @param key The key to get the lock for
+     * @return The lock for the key's stripe
+     */
+    public Lock getLock(String key) {
+        return locks[stripeFor(key)];
+    }
+
+    /**
+     * Lock the stripes for all of the provided keys in ascending stripe order. Keys sharing a stripe only lock it once
+     *
+     * @param keys The keys to lock
+     * @return The acquired locks, to be handed to unlockAll once finished
+     */
+    public List<Lock> lockAll(Collection<String> keys) {
+        TreeSet<Integer> stripes = new TreeSet<>();
+
+        for (String key : keys) {
+            stripes.add(stripeFor(key));
+        }
+
+        List<Lock> acquired = new ArrayList<>(stripes.size());
+
+        for (int stripe : stripes) {
+            locks[stripe].lock();
+
+            acquired.add(locks[stripe]);
+        }
+
+        return acquired;
+    }
+
+    /**
+     * Release locks acquired through lockAll, in the reverse order to which they were taken
+     *
+     * @param acquired The locks returned by lockAll
+     */
+    public static void unlockAll(List<Lock> acquired) {
+        for (int i = acquired.size() - 1; i >= 0; i--) {
+            acquired.get(i).unlock();
+        }
+    }
+
+    /**
+     * Work out which stripe a key belongs to
+     *
+     * @param key The key
+     * @return The index of the stripe
+     */
+    private int stripeFor(String key) {
+        int hash = key.toLowerCase(Locale.ROOT).hashCode();
+
+        // Spread the higher bits downwards as the stripe count is a power of two
+        hash ^= (hash >>> 16);
+
+        return hash & (locks.length - 1);
+    }
+}
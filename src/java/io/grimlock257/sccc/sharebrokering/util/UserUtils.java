@@ -3,14 +3,14 @@ package io.grimlock257.sccc.sharebrokering.util;
 import io.grimlock257.sccc.jaxb.binding.SharePrice;
 import io.grimlock257.sccc.jaxb.binding.users.Share;
 import io.grimlock257.sccc.jaxb.binding.users.User;
-import io.grimlock257.sccc.jaxb.binding.users.Users;
+import io.grimlock257.sccc.sharebrokering.manager.PortfolioValuations;
 import io.grimlock257.sccc.sharebrokering.manager.UsersFileManager;
-import io.grimlock257.sccc.sharebrokering.service.CurrencyConverterAPIService;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
 import javax.xml.bind.DatatypeConverter;
 
 /**
@@ -21,129 +21,276 @@ import javax.xml.bind.DatatypeConverter;
 public class UserUtils {
 
     /**
-     * Add Share(s) to a user
+     * Get the currency of a user's funds, so the exchange rate for a trade can be resolved before any lock is taken
+     *
+     * @param guid The GUID of the user
+     * @return The user's currency, or null if the user doesn't exist
+     */
+    public static String getUserCurrency(String guid) {
+        UsersFileManager usersFileManager = UsersFileManager.getInstance();
+
+        Lock userLock = usersFileManager.getUserLock(guid);
+
+        usersFileManager.readLock().lock();
+        userLock.lock();
+
+        try {
+            User user = usersFileManager.getUserByGuid(guid);
+
+            return (user != null) ? user.getCurrency() : null;
+        } finally {
+            userLock.unlock();
+            usersFileManager.readLock().unlock();
+        }
+    }
+
+    /**
+     * Add Share(s) to a user. The exchange rate is resolved by the caller before taking any lock, so the user is never locked while a rate is retrieved. The caller is responsible for
+     * journaling the purchase, using the returned purchase price
      *
      * @param guid The GUID of the user purchasing a stock
      * @param stockSymbol The stock symbol for the purchased share
      * @param sharePriceInformation The SharePrice object for the stock to be purchased
      * @param quantity The quantity of shares purchased
-     * @return Whether the purchase was successful or not
+     * @param userCurrency The user's currency the rate was resolved for
+     * @param rate The exchange rate from the share price's currency to userCurrency
+     * @return The price charged to the user in their currency, or -1 if the purchase was unsuccessful
      */
-    public static boolean tryAddStockToUser(String guid, String stockSymbol, SharePrice sharePriceInformation, double quantity) {
-        Users users = UsersFileManager.getInstance().unmarshal();
+    public static double tryAddStockToUser(String guid, String stockSymbol, SharePrice sharePriceInformation, double quantity, String userCurrency, double rate) {
+        UsersFileManager usersFileManager = UsersFileManager.getInstance();
 
-        // Iterate over list and look for matching GUID
-        for (User user : users.getUsers()) {
-            if (user.getGuid().equalsIgnoreCase(guid)) {
-                // Check the user has enough funds to complete the purchase
-                String userFundsCurrency = user.getCurrency();
-                String stockListCurrency = sharePriceInformation.getCurrency();
-                double stockListPrice = sharePriceInformation.getPrice();
+        Lock userLock = usersFileManager.getUserLock(guid);
 
-                double purchasePrice = CurrencyConverterAPIService.getInstance().convertCurrency(stockListCurrency, userFundsCurrency, stockListPrice * quantity);
+        usersFileManager.readLock().lock();
+        userLock.lock();
 
-                if (purchasePrice < 0 || purchasePrice > user.getAvailableFunds()) {
-                    break;
-                }
+        try {
+            // Look up the user with the matching GUID
+            User user = usersFileManager.getUserByGuid(guid);
 
-                user.setAvailableFunds(user.getAvailableFunds() - purchasePrice);
+            if (user == null) {
+                return -1;
+            }
+
+            // The rate only applies to the currency it was resolved for
+            if (rate < 0 || !user.getCurrency().equals(userCurrency)) {
+                return -1;
+            }
 
-                // User has funds, proceed with purchase
-                boolean hasShareAlready = false;
+            // Check the user has enough funds to complete the purchase
+            double purchasePrice = sharePriceInformation.getPrice() * quantity * rate;
 
-                List<Share> userShares = user.getShares();
+            if (purchasePrice > user.getAvailableFunds()) {
+                return -1;
+            }
 
-                // Check if user already owns shares for the provided symbol, if so edit existing, otherwise add new entry
-                for (Share share : userShares) {
-                    if (share.getStockSymbol().equalsIgnoreCase(stockSymbol)) {
-                        hasShareAlready = true;
+            // User has funds, proceed with purchase
+            applyPurchase(user, stockSymbol, quantity, purchasePrice);
 
-                        share.setQuantity(share.getQuantity() + quantity);
-                        share.setPurchaseValue(share.getPurchaseValue() + purchasePrice);
+            return purchasePrice;
+        } finally {
+            userLock.unlock();
+            usersFileManager.readLock().unlock();
+        }
+    }
 
-                        break;
-                    }
-                }
+    /**
+     * Remove Share(s) from a user. The exchange rate is resolved by the caller before taking any lock, so the user is never locked while a rate is retrieved. The caller is responsible for
+     * journaling the sale, using the returned sale price
+     *
+     * @param guid The GUID of the user selling a stock
+     * @param stockSymbol The stock symbol for the sold share
+     * @param sharePriceInformation The SharePrice object for the stock to be sold
+     * @param quantity The quantity of shares sold
+     * @param userCurrency The user's currency the rate was resolved for
+     * @param rate The exchange rate from the share price's currency to userCurrency
+     * @return The price paid to the user in their currency, or -1 if the sale was unsuccessful
+     */
+    public static double trySellStockFromUser(String guid, String stockSymbol, SharePrice sharePriceInformation, double quantity, String userCurrency, double rate) {
+        UsersFileManager usersFileManager = UsersFileManager.getInstance();
 
-                if (!hasShareAlready) {
-                    Share share = new Share();
+        Lock userLock = usersFileManager.getUserLock(guid);
 
-                    share.setStockSymbol(stockSymbol);
-                    share.setPurchaseValue(purchasePrice);
-                    share.setQuantity(quantity);
+        usersFileManager.readLock().lock();
+        userLock.lock();
 
-                    userShares.add(share);
-                }
+        try {
+            // Look up the user with the matching GUID
+            User user = usersFileManager.getUserByGuid(guid);
+
+            if (user == null) {
+                return -1;
+            }
+
+            // Look for a stock symbol match, and that the user owns the same as or more than the quantity attempted to be sold
+            boolean hasEnoughShares = user.getShares()
+                    .stream()
+                    .anyMatch(share -> share.getStockSymbol().equalsIgnoreCase(stockSymbol) && share.getQuantity() >= quantity);
+
+            // Attempted to sell a share the user does not own
+            if (!hasEnoughShares) {
+                return -1;
+            }
+
+            // The rate only applies to the currency it was resolved for
+            if (rate < 0 || !user.getCurrency().equals(userCurrency)) {
+                return -1;
+            }
+
+            // Convert price
+            double salePrice = sharePriceInformation.getPrice() * quantity * rate;
+
+            applySale(user, stockSymbol, quantity, salePrice);
+
+            return salePrice;
+        } finally {
+            userLock.unlock();
+            usersFileManager.readLock().unlock();
+        }
+    }
+
+    /**
+     * Apply an already validated purchase to a user, used both for live trades and when replaying the trade journal. The caller must hold the lock for the user
+     *
+     * @param user The user purchasing shares
+     * @param stockSymbol The stock symbol for the purchased share
+     * @param quantity The quantity of shares purchased
+     * @param purchasePrice The price charged to the user in their currency
+     */
+    public static void applyPurchase(User user, String stockSymbol, double quantity, double purchasePrice) {
+        user.setAvailableFunds(user.getAvailableFunds() - purchasePrice);
+
+        boolean hasShareAlready = false;
 
-                return UsersFileManager.getInstance().marshal(users);
+        List<Share> userShares = user.getShares();
+
+        // Check if user already owns shares for the provided symbol, if so edit existing, otherwise add new entry
+        for (Share share : userShares) {
+            if (share.getStockSymbol().equalsIgnoreCase(stockSymbol)) {
+                hasShareAlready = true;
+
+                share.setQuantity(share.getQuantity() + quantity);
+                share.setPurchaseValue(share.getPurchaseValue() + purchasePrice);
+
+                break;
             }
         }
 
-        return false;
+        if (!hasShareAlready) {
+            Share share = new Share();
+
+            share.setStockSymbol(stockSymbol);
+            share.setPurchaseValue(purchasePrice);
+            share.setQuantity(quantity);
+
+            userShares.add(share);
+        }
+
+        PortfolioValuations.getInstance().invalidate(user.getGuid());
     }
 
     /**
-     * Remove Share(s) from a user
+     * Apply an already validated sale to a user, used both for live trades and when replaying the trade journal. The caller must hold the lock for the user
      *
-     * @param guid The GUID of the user selling a stock
+     * @param user The user selling shares
      * @param stockSymbol The stock symbol for the sold share
-     * @param sharePriceInformation The SharePrice object for the stock to be sold
      * @param quantity The quantity of shares sold
-     * @return Whether the sale was successful or not
+     * @param salePrice The price paid to the user in their currency
      */
-    public static boolean trySellStockFromUser(String guid, String stockSymbol, SharePrice sharePriceInformation, double quantity) {
-        Users users = UsersFileManager.getInstance().unmarshal();
+    public static void applySale(User user, String stockSymbol, double quantity, double salePrice) {
+        Iterator<Share> userSharesIterator = user.getShares().iterator();
+
+        while (userSharesIterator.hasNext()) {
+            Share share = userSharesIterator.next();
 
-        // Iterate over list and look for matching GUID
-        for (User user : users.getUsers()) {
-            if (user.getGuid().equalsIgnoreCase(guid)) {
-                boolean hasShareAlready = false;
+            if (share.getStockSymbol().equalsIgnoreCase(stockSymbol)) {
+                user.setAvailableFunds(user.getAvailableFunds() + salePrice);
 
-                Iterator<Share> userSharesIterator = user.getShares().iterator();
+                // The sale results in the user owning no shares, remove the entry, otherwise edit the existing entry
+                if (share.getQuantity() - quantity == 0) {
+                    userSharesIterator.remove();
+                } else {
+                    share.setQuantity(share.getQuantity() - quantity);
+                    share.setPurchaseValue(share.getPurchaseValue() - salePrice);
+                }
+
+                PortfolioValuations.getInstance().invalidate(user.getGuid());
+
+                return;
+            }
+        }
+    }
 
-                // Iterate over owned shares, looking for stock symbol match, and that the user owns the same as or more than the quantity attempted to be sold
-                while (userSharesIterator.hasNext()) {
-                    Share share = userSharesIterator.next();
+    /**
+     * Undo a purchase applied through applyPurchase whose journal entry could not be made durable. The caller must hold the lock for the user
+     *
+     * @param user The user who purchased shares
+     * @param stockSymbol The stock symbol for the purchased share
+     * @param quantity The quantity of shares purchased
+     * @param purchasePrice The price charged to the user in their currency
+     */
+    public static void revertPurchase(User user, String stockSymbol, double quantity, double purchasePrice) {
+        user.setAvailableFunds(user.getAvailableFunds() + purchasePrice);
 
-                    // User has enough to sell
-                    if (share.getStockSymbol().equalsIgnoreCase(stockSymbol) && share.getQuantity() >= quantity) {
-                        // Convert price
-                        String userFundsCurrency = user.getCurrency();
-                        String stockListCurrency = sharePriceInformation.getCurrency();
-                        double stockListPrice = sharePriceInformation.getPrice();
+        adjustShare(user, stockSymbol, -quantity, -purchasePrice);
+    }
 
-                        double salePrice = CurrencyConverterAPIService.getInstance().convertCurrency(stockListCurrency, userFundsCurrency, stockListPrice * quantity);
+    /**
+     * Undo a sale applied through applySale whose journal entry could not be made durable. The caller must hold the lock for the user
+     *
+     * @param user The user who sold shares
+     * @param stockSymbol The stock symbol for the sold share
+     * @param quantity The quantity of shares sold
+     * @param salePrice The price paid to the user in their currency
+     */
+    public static void revertSale(User user, String stockSymbol, double quantity, double salePrice) {
+        user.setAvailableFunds(user.getAvailableFunds() - salePrice);
 
-                        if (salePrice < 0) {
-                            break;
-                        }
+        adjustShare(user, stockSymbol, quantity, salePrice);
+    }
 
-                        user.setAvailableFunds(user.getAvailableFunds() + salePrice);
+    /**
+     * Add to (or subtract from) a user's holding of a stock, creating the holding if needed and removing it once no shares are left. Adjustments add up the same whichever order they are made
+     * in, so trades that failed together can be undone in any order
+     *
+     * @param user The user
+     * @param stockSymbol The stock symbol
+     * @param quantity The change in quantity
+     * @param purchaseValue The change in purchase value
+     */
+    private static void adjustShare(User user, String stockSymbol, double quantity, double purchaseValue) {
+        Iterator<Share> userSharesIterator = user.getShares().iterator();
 
-                        hasShareAlready = true;
+        boolean hasShareAlready = false;
 
-                        // The sale results in the user owning no shares, remove the entry, otherwise edit the existing entry
-                        if (share.getQuantity() - quantity == 0) {
-                            userSharesIterator.remove();
-                        } else {
-                            share.setQuantity(share.getQuantity() - quantity);
-                            share.setPurchaseValue(share.getPurchaseValue() - salePrice);
-                        }
+        while (userSharesIterator.hasNext()) {
+            Share share = userSharesIterator.next();
 
-                        break;
-                    }
-                }
+            if (share.getStockSymbol().equalsIgnoreCase(stockSymbol)) {
+                hasShareAlready = true;
 
-                // Attempted to sell a share the user does not own, don't bother marshalling
-                if (!hasShareAlready) {
-                    return false;
+                if (share.getQuantity() + quantity == 0) {
+                    userSharesIterator.remove();
+                } else {
+                    share.setQuantity(share.getQuantity() + quantity);
+                    share.setPurchaseValue(share.getPurchaseValue() + purchaseValue);
                 }
 
-                return UsersFileManager.getInstance().marshal(users);
+                break;
             }
         }
 
-        return false;
+        if (!hasShareAlready && quantity != 0) {
+            Share share = new Share();
+
+            share.setStockSymbol(stockSymbol);
+            share.setPurchaseValue(purchaseValue);
+            share.setQuantity(quantity);
+
+            user.getShares().add(share);
+        }
+
+        PortfolioValuations.getInstance().invalidate(user.getGuid());
     }
 
     /**